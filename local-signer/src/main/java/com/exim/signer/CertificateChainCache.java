@@ -0,0 +1,145 @@
+package com.exim.signer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Properties;
+
+/**
+ * Local file remembering, per token, the signing alias and its certificate
+ * chain (DER, Base64). Lets login skip walking every alias on the token and
+ * re-reading the chain; DscService checks the cached leaf certificate against
+ * the token before trusting an entry.
+ */
+public class CertificateChainCache {
+
+    public static final String DEFAULT_FILE = "token-cache.properties";
+
+    private final File file;
+
+    public CertificateChainCache(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Cached entry for the token, or null if there is none or it is unreadable.
+     */
+    public Entry load(String tokenKey) {
+        synchronized (CertificateChainCache.class) {
+            try {
+                Properties properties = read();
+                String alias = properties.getProperty(tokenKey + ".alias");
+                String chain = properties.getProperty(tokenKey + ".chain");
+                if (alias == null || chain == null || chain.isEmpty()) {
+                    return null;
+                }
+                CertificateFactory factory = CertificateFactory.getInstance("X.509");
+                String[] encoded = chain.split(",");
+                X509Certificate[] certificates = new X509Certificate[encoded.length];
+                for (int i = 0; i < encoded.length; i++) {
+                    certificates[i] = (X509Certificate) factory.generateCertificate(
+                            new ByteArrayInputStream(Base64.getDecoder().decode(encoded[i].trim())));
+                }
+                return new Entry(alias, certificates);
+            } catch (Exception e) {
+                System.err.println("⚠ Ignoring certificate cache " + file + ": " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Remember the alias and chain for the token. Failures are logged only;
+     * the next login just resolves the chain from the token again.
+     */
+    public void store(String tokenKey, String alias, X509Certificate[] chain) {
+        synchronized (CertificateChainCache.class) {
+            try {
+                Properties properties = read();
+                StringBuilder encoded = new StringBuilder();
+                for (X509Certificate certificate : chain) {
+                    if (encoded.length() > 0) {
+                        encoded.append(',');
+                    }
+                    encoded.append(Base64.getEncoder().encodeToString(certificate.getEncoded()));
+                }
+                properties.setProperty(tokenKey + ".alias", alias);
+                properties.setProperty(tokenKey + ".chain", encoded.toString());
+
+                // Write then rename so a concurrent reader never sees half a file
+                File parent = file.getAbsoluteFile().getParentFile();
+                File temp = File.createTempFile("token-cache-", ".tmp", parent);
+                try (OutputStream output = new FileOutputStream(temp)) {
+                    properties.store(output, "Signing alias and certificate chain per token");
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (Exception e) {
+                System.err.println("⚠ Could not write certificate cache " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drop the entry for the token, e.g. after it failed validation.
+     */
+    public void remove(String tokenKey) {
+        synchronized (CertificateChainCache.class) {
+            try {
+                Properties properties = read();
+                boolean removed = properties.remove(tokenKey + ".alias") != null;
+                removed |= properties.remove(tokenKey + ".chain") != null;
+                if (!removed) {
+                    return;
+                }
+                try (OutputStream output = new FileOutputStream(file)) {
+                    properties.store(output, "Signing alias and certificate chain per token");
+                }
+            } catch (Exception e) {
+                System.err.println("⚠ Could not update certificate cache " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private Properties read() throws Exception {
+        Properties properties = new Properties();
+        if (file.isFile()) {
+            try (InputStream input = new FileInputStream(file)) {
+                properties.load(input);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Alias and chain (leaf first) of one token.
+     */
+    public static final class Entry {
+        private final String alias;
+        private final X509Certificate[] chain;
+
+        Entry(String alias, X509Certificate[] chain) {
+            this.alias = alias;
+            this.chain = chain;
+        }
+
+        public String getAlias() {
+            return alias;
+        }
+
+        public X509Certificate[] getChain() {
+            return chain.clone();
+        }
+    }
+}
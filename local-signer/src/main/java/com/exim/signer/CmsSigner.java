@@ -0,0 +1,169 @@
+package com.exim.signer;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cms.CMSAbsentContent;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.util.CollectionStore;
+import org.bouncycastle.util.Store;
+
+/**
+ * SHA256withRSA CMS SignedData for one certificate chain. The certificate
+ * store, the signer certificate and the builders are created once per login
+ * and shared by all threads; only the per-signature generator and content
+ * signer (which wrap a Signature object) are created per call. Signatures
+ * over a precomputed digest use the same builders.
+ */
+public class CmsSigner {
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final X509CertificateHolder signingCertificate;
+    private final Store<X509CertificateHolder> certificates;
+    private final JcaContentSignerBuilder contentSignerBuilder;
+    private final DigestProvider digestProvider;
+    private final JcaSignerInfoGeneratorBuilder signerInfoGeneratorBuilder;
+
+    /**
+     * @param provider provider owning the key, or null for the default ones
+     */
+    public CmsSigner(X509Certificate[] chain, Provider provider) throws Exception {
+        this.signingCertificate = new JcaX509CertificateHolder(chain[0]);
+        List<X509CertificateHolder> holders = new ArrayList<>(chain.length);
+        for (X509Certificate certificate : chain) {
+            holders.add(new JcaX509CertificateHolder(certificate));
+        }
+        this.certificates = new CollectionStore<>(holders);
+        this.contentSignerBuilder = new JcaContentSignerBuilder("SHA256withRSA");
+        if (provider != null) {
+            contentSignerBuilder.setProvider(provider);
+        }
+        this.digestProvider = new DigestProvider(new JcaDigestCalculatorProviderBuilder().build());
+        this.signerInfoGeneratorBuilder = new JcaSignerInfoGeneratorBuilder(digestProvider);
+    }
+
+    /**
+     * Signature over data held in memory; attached includes the data.
+     */
+    public byte[] sign(PrivateKey privateKey, byte[] data, boolean detached) throws Exception {
+        CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+        generator.addSignerInfoGenerator(signerInfoGenerator(privateKey));
+        generator.addCertificates(certificates);
+
+        // If detached=true -> do not include data in output
+        long start = System.nanoTime();
+        CMSSignedData signedData = generator.generate(new CMSProcessableByteArray(data), !detached);
+        SignerMetrics.get().tokenSignDuration.labels("pkcs7").observeNanos(System.nanoTime() - start);
+        return signedData.getEncoded();
+    }
+
+    /**
+     * Detached signature for content whose SHA-256 was computed beforehand
+     * (see {@link #sha256(InputStream)}), so the key is only needed for the
+     * signed attributes. Returned DER-encoded, as PDF signature dictionaries
+     * expect.
+     */
+    public byte[] signDigest(PrivateKey privateKey, byte[] sha256ContentDigest) throws Exception {
+        if (sha256ContentDigest == null || sha256ContentDigest.length != 32) {
+            throw new Exception("Content digest must be 32 bytes (SHA-256)");
+        }
+        CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+        // The generator takes its digest calculator while being built
+        digestProvider.precomputed.set(sha256ContentDigest.clone());
+        try {
+            generator.addSignerInfoGenerator(signerInfoGenerator(privateKey));
+        } finally {
+            digestProvider.precomputed.remove();
+        }
+        generator.addCertificates(certificates);
+
+        long start = System.nanoTime();
+        // No content is written; the messageDigest attribute comes from DigestProvider
+        CMSSignedData signedData = generator.generate(new CMSAbsentContent(), false);
+        SignerMetrics.get().tokenSignDuration.labels("pkcs7").observeNanos(System.nanoTime() - start);
+        return signedData.getEncoded(ASN1Encoding.DER);
+    }
+
+    /**
+     * SHA-256 of a stream, read in fixed-size chunks so memory use does not
+     * depend on the content length.
+     */
+    public static byte[] sha256(InputStream content) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return digest.digest();
+    }
+
+    private SignerInfoGenerator signerInfoGenerator(PrivateKey privateKey) throws Exception {
+        return signerInfoGeneratorBuilder.build(contentSignerBuilder.build(privateKey), signingCertificate);
+    }
+
+    /**
+     * Digest calculators for the shared builder. While signDigest builds a
+     * generator on this thread, hands it the SHA-256 computed elsewhere
+     * instead of hashing the (absent) content; otherwise hashes normally.
+     */
+    private static class DigestProvider implements DigestCalculatorProvider {
+
+        private static final AlgorithmIdentifier SHA256 = new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256);
+
+        private final DigestCalculatorProvider hashing;
+        private final ThreadLocal<byte[]> precomputed = new ThreadLocal<>();
+
+        DigestProvider(DigestCalculatorProvider hashing) {
+            this.hashing = hashing;
+        }
+
+        @Override
+        public DigestCalculator get(AlgorithmIdentifier algorithm) throws OperatorCreationException {
+            byte[] digest = precomputed.get();
+            if (digest == null) {
+                return hashing.get(algorithm);
+            }
+            if (!SHA256.getAlgorithm().equals(algorithm.getAlgorithm())) {
+                throw new OperatorCreationException("Precomputed digest is SHA-256, not " + algorithm.getAlgorithm());
+            }
+            return new DigestCalculator() {
+                @Override
+                public AlgorithmIdentifier getAlgorithmIdentifier() {
+                    return SHA256;
+                }
+
+                @Override
+                public OutputStream getOutputStream() {
+                    return OutputStream.nullOutputStream();
+                }
+
+                @Override
+                public byte[] getDigest() {
+                    return digest.clone();
+                }
+            };
+        }
+    }
+}
@@ -1,183 +1,297 @@
 package com.exim.signer;
 
 import java.io.File;
-import java.nio.file.Files;
-import java.security.KeyStore;
+import java.io.InputStream;
 import java.security.PrivateKey;
 import java.security.Provider;
-import java.security.Security;
-import java.security.Signature;
-import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
-import java.util.Enumeration;
-
-import org.bouncycastle.cert.jcajce.JcaCertStore;
-import org.bouncycastle.cms.CMSProcessableByteArray;
-import org.bouncycastle.cms.CMSSignedData;
-import org.bouncycastle.cms.CMSSignedDataGenerator;
-import org.bouncycastle.cms.CMSTypedData;
-import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
-import org.bouncycastle.operator.ContentSigner;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import java.util.function.BooleanSupplier;
 
 public class DscService {
 
-    private KeyStore keyStore;
-    private Provider pkcs11Provider;
-    private String alias;
-    private char[] pinChars;
+    public static final String DEFAULT_TOKEN_NAME = "DSCToken";
+
+    private final String tokenName;
+    private volatile SigningBackend backend;
+    private CertificateChainCache certificateCache = new CertificateChainCache(
+            new File(CertificateChainCache.DEFAULT_FILE));
+    private volatile SbEnvelope envelope;
+    private long sessionProbeIntervalMillis = TokenSession.DEFAULT_PROBE_INTERVAL_MILLIS;
+    private boolean hostHashingRequested;
+    private long keepAliveIntervalMillis;
+    private boolean warmup;
+    private long warmupIdleMillis = TokenKeepAlive.DEFAULT_WARMUP_IDLE_MILLIS;
+    private TokenKeepAlive.TokenAccess tokenAccess = task -> task.run(this);
+    private volatile TokenKeepAlive keepAlive;
+
+    public DscService() {
+        this(DEFAULT_TOKEN_NAME);
+    }
+
+    /**
+     * @param tokenName name used in logs and for the SunPKCS11 provider when
+     *                  this login configures a new one
+     */
+    public DscService(String tokenName) {
+        this.tokenName = tokenName;
+    }
 
     /**
      * Login into DSC Token using PKCS11 DLL path and PIN.
      */
     public void login(String pin, String dllPath) throws Exception {
+        login(pin, dllPath, -1);
+    }
 
-        if (pin == null || pin.trim().isEmpty()) {
-            throw new Exception("PIN cannot be empty.");
-        }
+    /**
+     * Login into the token in the given slot of the PKCS11 library. A negative
+     * slotListIndex lets SunPKCS11 pick the first slot.
+     */
+    public void login(String pin, String dllPath, int slotListIndex) throws Exception {
 
         if (dllPath == null || dllPath.trim().isEmpty()) {
             throw new Exception("DLL Path cannot be empty.");
         }
 
-        // Escape Windows path for PKCS11 config
-        String sanitizedPath = dllPath.replace("\\", "\\\\");
+        login(new Pkcs11SigningBackend(this, tokenName, dllPath, slotListIndex, sessionProbeIntervalMillis,
+                hostHashingRequested, certificateCache), pin);
+    }
 
-        String configContent = "name=DSCToken\n" +
-                "library=" + sanitizedPath + "\n";
+    /**
+     * Use a PKCS#12 or JKS keystore file instead of a token, e.g. on CI or
+     * load-test machines.
+     *
+     * @param alias key entry to use, or null for the first signing key
+     */
+    public void loginKeyStore(String password, File keyStoreFile, String keyStoreType, String alias)
+            throws Exception {
+        login(new SoftwareSigningBackend(keyStoreFile, keyStoreType, alias, sessionProbeIntervalMillis), password);
+    }
 
-        File configFile = File.createTempFile("pkcs11-", ".cfg");
-        configFile.deleteOnExit();
-        Files.write(configFile.toPath(), configContent.getBytes());
+    /**
+     * Log into the backend and make it the one all signatures go to. The
+     * previous backend stays in place until the new one has logged in, so a
+     * wrong PIN leaves the working login alone; on success it is closed, so a
+     * re-login to the same token can reuse its provider.
+     */
+    public void login(SigningBackend newBackend, String pin) throws Exception {
 
-        // Load SunPKCS11 provider
-        Provider baseProvider = Security.getProvider("SunPKCS11");
-        if (baseProvider == null) {
-            throw new Exception("SunPKCS11 provider not found. Use Oracle JDK / OpenJDK standard build.");
+        if (pin == null || pin.trim().isEmpty()) {
+            throw new Exception("PIN cannot be empty.");
         }
 
-        pkcs11Provider = baseProvider.configure(configFile.getAbsolutePath());
-        Security.addProvider(pkcs11Provider);
+        long started = System.nanoTime();
+        SigningBackend previous = backend;
+        stopKeepAlive();
 
-        // Load KeyStore from token
-        this.pinChars = pin.toCharArray();
-        keyStore = KeyStore.getInstance("PKCS11", pkcs11Provider);
-        keyStore.load(null, this.pinChars);
+        SbEnvelope newEnvelope;
+        try {
+            newBackend.login(pin.toCharArray());
+
+            // Certificate encodings and the .sb trailer are built once per login
+            newEnvelope = new SbEnvelope(newBackend.getCertificateChain()[0]);
+        } catch (Exception e) {
+            newBackend.close();
+            if (previous != null) {
+                startKeepAlive();
+            }
+            throw e;
+        }
 
-        // Select best signing alias
-        alias = findSigningAlias();
+        envelope = newEnvelope;
+        backend = newBackend;
+        if (previous != null) {
+            previous.close();
+        }
+
+        System.out.println("✅ DSC Login successful (" + tokenName + ", " + newBackend.getType() + ", "
+                + (System.nanoTime() - started) / 1_000_000 + " ms). Selected Alias: " + newBackend.getAlias());
+
+        startKeepAlive();
+    }
 
-        if (alias == null) {
-            throw new Exception("No valid signing certificate found in token.");
+    private void startKeepAlive() {
+        if (keepAliveIntervalMillis > 0 || warmup) {
+            TokenKeepAlive created = new TokenKeepAlive(this, keepAliveIntervalMillis, warmup, warmupIdleMillis,
+                    tokenAccess);
+            keepAlive = created;
+            created.start();
         }
+    }
 
-        System.out.println("✅ DSC Login successful. Selected Alias: " + alias);
+    private void stopKeepAlive() {
+        TokenKeepAlive current = keepAlive;
+        keepAlive = null;
+        if (current != null) {
+            current.stop();
+        }
     }
 
     /**
-     * Find correct signing alias (certificate that has private key +
-     * DigitalSignature usage).
+     * Get signing certificate.
      */
-    private String findSigningAlias() throws Exception {
-
-        Enumeration<String> aliases = keyStore.aliases();
+    public X509Certificate getCertificate() throws Exception {
+        return getCertificateChain()[0];
+    }
 
-        while (aliases.hasMoreElements()) {
-            String tempAlias = aliases.nextElement();
+    /**
+     * Certificate chain of the signing key, leaf first, as resolved at login.
+     */
+    public X509Certificate[] getCertificateChain() throws Exception {
+        return requireBackend().getCertificateChain();
+    }
 
-            if (!keyStore.isKeyEntry(tempAlias)) {
-                continue;
-            }
+    /**
+     * Get certificate as Base64 encoded DER string.
+     */
+    public String getCertificateBase64() throws Exception {
+        return getEnvelope().getCertificateBase64();
+    }
 
-            Certificate certObj = keyStore.getCertificate(tempAlias);
-            if (!(certObj instanceof X509Certificate)) {
-                continue;
-            }
+    public String getTokenName() {
+        return tokenName;
+    }
 
-            X509Certificate cert = (X509Certificate) certObj;
+    /**
+     * True once login() has selected a signing certificate.
+     */
+    public boolean isLoggedIn() {
+        SigningBackend current = backend;
+        return envelope != null && current != null && current.isLoggedIn();
+    }
 
-            // Check KeyUsage if present
-            boolean[] usage = cert.getKeyUsage();
+    /**
+     * Backend of the last successful login, or null.
+     */
+    public SigningBackend getBackend() {
+        return backend;
+    }
 
-            // usage[0] = digitalSignature
-            boolean isSigningCert = (usage == null || (usage.length > 0 && usage[0]));
+    /**
+     * Maximum number of sessions the key allows, 0 if unlimited, or -1 if
+     * unknown (see Pkcs11SigningBackend#getMaxSessionCount()).
+     */
+    public long getMaxSessionCount() {
+        SigningBackend current = backend;
+        return current != null ? current.getMaxSessionCount() : -1;
+    }
 
-            if (isSigningCert) {
-                System.out.println("✔ Found signing alias: " + tempAlias);
-                System.out.println("   Subject: " + cert.getSubjectX500Principal());
-                return tempAlias;
-            }
+    /**
+     * .sb envelope writer for the certificate selected at login.
+     */
+    public SbEnvelope getEnvelope() throws Exception {
+        SbEnvelope current = envelope;
+        if (current == null) {
+            throw new Exception("DSC not initialized. Call login() first.");
         }
+        return current;
+    }
 
-        return null;
+    /**
+     * Private key handle of the current token session. The handle is cached
+     * between signatures and only re-fetched (with a re-login if needed) when
+     * the periodic liveness probe fails.
+     * Prevents CKR_USER_NOT_LOGGED_IN / Key must not be null.
+     */
+    public PrivateKey getFreshPrivateKey() throws Exception {
+        return signingBackend().getPrivateKey();
     }
 
     /**
-     * Get signing certificate.
+     * Where the signing alias and chain are cached between logins; null turns
+     * the cache off. Applies from the next login.
      */
-    public X509Certificate getCertificate() throws Exception {
-        if (keyStore == null || alias == null) {
-            throw new Exception("DSC not initialized. Call login() first.");
-        }
-        return (X509Certificate) keyStore.getCertificate(alias);
+    public void setCertificateCache(CertificateChainCache certificateCache) {
+        this.certificateCache = certificateCache;
     }
 
     /**
-     * Get certificate as Base64 encoded DER string.
+     * Background keep-alive for the next login: probe an idle token every
+     * intervalMillis (0 = never), and with warmup sign a throwaway digest
+     * after login and after warmupIdleMillis without signatures. Both are off
+     * unless set.
      */
-    public String getCertificateBase64() throws Exception {
-        X509Certificate cert = getCertificate();
-        return java.util.Base64.getEncoder().encodeToString(cert.getEncoded());
+    public void setKeepAlive(long intervalMillis, boolean warmup, long warmupIdleMillis) {
+        this.keepAliveIntervalMillis = intervalMillis;
+        this.warmup = warmup;
+        this.warmupIdleMillis = warmupIdleMillis;
     }
 
     /**
-     * Forcefully reloads the keystore session and fetches a fresh PrivateKey
-     * handle.
-     * Prevents CKR_USER_NOT_LOGGED_IN / Key must not be null.
+     * How keep-alive reaches the token; by default directly, in the server
+     * through the token's SigningWorker.
      */
-    public PrivateKey getFreshPrivateKey() throws Exception {
-        if (keyStore == null || alias == null) {
-            throw new Exception("DSC not initialized. Call login() first.");
-        }
+    public void setTokenAccess(TokenKeepAlive.TokenAccess tokenAccess) {
+        this.tokenAccess = tokenAccess;
+    }
 
-        try {
-            keyStore.load(null, this.pinChars);
-        } catch (Exception e) {
-            System.err.println("⚠ Soft warning: keystore reload failed: " + e.getMessage());
+    /**
+     * Keep-alive of the current login, or null if disabled.
+     */
+    public TokenKeepAlive getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * How often the cached key handle is re-verified against the token.
+     * Applies from the next login.
+     */
+    public void setSessionProbeIntervalMillis(long sessionProbeIntervalMillis) {
+        this.sessionProbeIntervalMillis = sessionProbeIntervalMillis;
+    }
+
+    /**
+     * Hash on the host and let the token do only the raw RSA operation
+     * (NONEwithRSA / CKM_RSA_PKCS) instead of streaming every byte to it with
+     * SHA1withRSA. Checked against SHA1withRSA at the next login and left off
+     * if the token does not support it or the signatures differ.
+     */
+    public void setHostHashing(boolean hostHashing) {
+        this.hostHashingRequested = hostHashing;
+    }
+
+    /**
+     * True if host hashing was requested and passed the login self-check.
+     */
+    public boolean isHostHashing() {
+        SigningBackend current = backend;
+        return current != null && current.isHostHashing();
+    }
+
+    private SigningBackend requireBackend() throws Exception {
+        SigningBackend current = backend;
+        if (current == null) {
+            throw new Exception("DSC not initialized. Call login() first.");
         }
+        return current;
+    }
 
-        PrivateKey privateKey = (PrivateKey) keyStore.getKey(alias, this.pinChars);
-        if (privateKey == null) {
-            throw new Exception("Failed to retrieve Private Key from token. Ensure correct DSC is used.");
+    /**
+     * Backend for a real signature; resets the keep-alive idle timer.
+     */
+    private SigningBackend signingBackend() throws Exception {
+        SigningBackend current = requireBackend();
+        TokenKeepAlive idleTimer = keepAlive;
+        if (idleTimer != null) {
+            idleTimer.touch();
         }
-        return privateKey;
+        return current;
     }
 
     /**
      * RAW Signature (SHA1withRSA) required for ICEGATE .sb file signing.
-     * 
+     *
      * This matches NCode signing tool behavior.
      */
     public byte[] signRaw(byte[] data) throws Exception {
 
-        if (keyStore == null || alias == null) {
-            throw new Exception("DSC not initialized. Call login() first.");
-        }
+        SigningBackend current = signingBackend();
 
         if (data == null || data.length == 0) {
             throw new Exception("No data provided for signing.");
         }
 
-        PrivateKey privateKey = getFreshPrivateKey();
-
-        // ICEGATE ICES 1.5 flat-file strictly requires SHA1withRSA for the V-NCODE format
-        Signature signature = Signature.getInstance("SHA1withRSA", pkcs11Provider);
-        signature.initSign(privateKey);
-        signature.update(data);
-
-        byte[] signedBytes = signature.sign();
+        byte[] signedBytes = current.signRaw(data, 0, data.length);
 
         System.out.println("✅ RAW SHA1withRSA signature generated. Length: " + signedBytes.length);
 
@@ -190,35 +304,80 @@ public class DscService {
      */
     public byte[] signSHA2(byte[] strippedData) throws Exception {
 
-        if (keyStore == null || alias == null) {
-            throw new Exception("DSC not initialized. Call login() first.");
+        if (strippedData == null) {
+            throw new Exception("No data provided for signing.");
         }
+        return signSHA2(strippedData, 0, strippedData.length);
+    }
 
-        if (strippedData == null || strippedData.length == 0) {
+    /**
+     * {@link #signSHA2(byte[])} over data[off, off+len), hashed in place so the
+     * caller can pass the raw file buffer with its canonical length.
+     */
+    public byte[] signSHA2(byte[] data, int off, int len) throws Exception {
+
+        if (data == null || len == 0) {
             throw new Exception("No data provided for signing.");
         }
 
-        PrivateKey privateKey = getFreshPrivateKey();
-
         // 1. Compute SHA-256 digest of the stripped ISO-8859-1 content bytes
-        java.security.MessageDigest md = java.security.MessageDigest.getInstance("SHA-256");
-        byte[] sha256Digest = md.digest(strippedData);
+        byte[] sha256Digest = SbCanonicalizer.digest(data, off, len);
 
-        // 2. Initialize signature using SHA1withRSA via SunPKCS11 provider
-        Signature signature = Signature.getInstance("SHA1withRSA", pkcs11Provider);
-        signature.initSign(privateKey);
+        return signSha256Digest(sha256Digest);
+    }
 
-        // 3. Update the signature with the 32-byte SHA-256 digest
-        signature.update(sha256Digest);
+    /**
+     * Second half of {@link #signSHA2(byte[])}: signs an already computed 32-byte
+     * SHA-256 digest with SHA1withRSA. Lets callers hash (and cache by digest)
+     * without holding the token.
+     */
+    public byte[] signSha256Digest(byte[] sha256Digest) throws Exception {
 
-        // 4. Compute the signature
-        byte[] signedBytes = signature.sign();
+        checkDigest(sha256Digest);
+        return logSha2(signingBackend().signSha256Digest(sha256Digest));
+    }
 
-        System.out.println("✅ ICEGATE Double-Nested Hashing (SHA-256 -> SHA1withRSA) signature generated. Length: " + signedBytes.length);
+    /**
+     * {@link #signSha256Digest(byte[])} for a batch chunk: one key handle
+     * through the token session, so a stale session logs in again once
+     * instead of failing every remaining digest. Entries after stop reported
+     * true stay null.
+     */
+    public byte[][] signSha256Digests(byte[][] sha256Digests, BooleanSupplier stop) throws Exception {
+
+        for (byte[] sha256Digest : sha256Digests) {
+            checkDigest(sha256Digest);
+        }
+        byte[][] signatures = signingBackend().signSha256Digests(sha256Digests, stop);
+        int signed = 0;
+        for (byte[] signature : signatures) {
+            if (signature != null) {
+                signed++;
+            }
+        }
+        System.out.println("✅ ICEGATE Double-Nested Hashing (SHA-256 -> SHA1withRSA) signatures generated: "
+                + signed + "/" + sha256Digests.length);
+        return signatures;
+    }
+
+    private static void checkDigest(byte[] sha256Digest) throws Exception {
+        if (sha256Digest == null || sha256Digest.length != 32) {
+            throw new Exception("SHA-256 digest must be exactly 32 bytes.");
+        }
+    }
 
+    private static byte[] logSha2(byte[] signedBytes) {
+        System.out.println("✅ ICEGATE Double-Nested Hashing (SHA-256 -> SHA1withRSA) signature generated. Length: " + signedBytes.length);
         return signedBytes;
     }
 
+    /**
+     * Hex SHA-256 fingerprint of the signing certificate, computed at login.
+     * Used to key cached signatures.
+     */
+    public String getCertificateFingerprint() throws Exception {
+        return getEnvelope().getFingerprint();
+    }
 
     /**
      * Generate PKCS#7 (CMS) signature (ATTACHED).
@@ -237,55 +396,63 @@ public class DscService {
     }
 
     /**
-     * Internal PKCS#7 signer.
+     * Detached PKCS#7 (CMS) signature over a stream, e.g. a large XML file.
+     * The content is hashed while it is read and never held in memory as a
+     * whole.
      */
-    private byte[] signPKCS7Internal(byte[] data, boolean detached) throws Exception {
-
-        PrivateKey privateKey = getFreshPrivateKey();
+    public byte[] signPKCS7Detached(InputStream content) throws Exception {
+        byte[] signed = signingBackend().signCmsDetached(content);
 
-        Certificate[] certChain = keyStore.getCertificateChain(alias);
-        if (certChain == null || certChain.length == 0) {
-            Certificate cert = keyStore.getCertificate(alias);
-            if (cert != null) {
-                certChain = new Certificate[] { cert };
-            } else {
-                throw new Exception("No certificate found for alias: " + alias);
-            }
-        }
-
-        X509Certificate signingCert = (X509Certificate) certChain[0];
-
-        CMSTypedData cmsData = new CMSProcessableByteArray(data);
+        System.out.println("✅ PKCS7 Signature generated (Detached=true, streamed)");
+        return signed;
+    }
 
-        JcaCertStore certStore = new JcaCertStore(Arrays.asList(certChain));
+    /**
+     * Detached PKCS#7 (CMS) signature for content hashed by the caller (32-byte
+     * SHA-256); only the signed attributes are signed with the key.
+     */
+    public byte[] signPKCS7DetachedDigest(byte[] sha256ContentDigest) throws Exception {
+        byte[] signed = signingBackend().signCmsDetachedDigest(sha256ContentDigest);
 
-        ContentSigner contentSigner = new JcaContentSignerBuilder("SHA256withRSA")
-                .setProvider(pkcs11Provider)
-                .build(privateKey);
+        System.out.println("✅ PKCS7 Signature generated (Detached=true, external digest)");
+        return signed;
+    }
 
-        CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
-        generator.addSignerInfoGenerator(
-                new JcaSignerInfoGeneratorBuilder(
-                        new JcaDigestCalculatorProviderBuilder().build()).build(contentSigner, signingCert));
+    /**
+     * {@link #signPKCS7DetachedDigest(byte[])}, refused unless the key's
+     * certificate still has the given fingerprint. A PDF names its signer
+     * before the CMS is made, so a re-login in between would otherwise
+     * embed one certificate and sign with another key.
+     */
+    public byte[] signPKCS7DetachedDigest(byte[] sha256ContentDigest, String certificateFingerprint)
+            throws Exception {
+        SigningBackend current = signingBackend();
+        if (!certificateFingerprint.equals(SbEnvelope.fingerprint(current.getCertificateChain()[0]))) {
+            throw new Exception("Signing certificate changed during the request. Please retry.");
+        }
+        byte[] signed = current.signCmsDetachedDigest(sha256ContentDigest);
 
-        generator.addCertificates(certStore);
+        System.out.println("✅ PKCS7 Signature generated (Detached=true, external digest)");
+        return signed;
+    }
 
-        // If detached=true -> do not include data in output
-        CMSSignedData signedData = generator.generate(cmsData, !detached);
+    /**
+     * Internal PKCS#7 signer.
+     */
+    private byte[] signPKCS7Internal(byte[] data, boolean detached) throws Exception {
+        byte[] signed = signingBackend().signCms(data, detached);
 
         System.out.println("✅ PKCS7 Signature generated (Detached=" + detached + ")");
-        return signedData.getEncoded();
-    }
-
-    public KeyStore getKeyStore() {
-        return keyStore;
+        return signed;
     }
 
     public String getAlias() {
-        return alias;
+        SigningBackend current = backend;
+        return current != null ? current.getAlias() : null;
     }
 
     public Provider getProvider() {
-        return pkcs11Provider;
+        SigningBackend current = backend;
+        return current != null ? current.getProvider() : null;
     }
 }
@@ -0,0 +1,280 @@
+package com.exim.signer;
+
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Common part of backends whose key sits in a java.security.KeyStore: alias
+ * selection, the certificate chain, the cached key handle (TokenSession) and
+ * the signatures themselves, computed with the KeyStore's provider.
+ */
+public abstract class KeyStoreSigningBackend implements SigningBackend {
+
+    /**
+     * DER DigestInfo header for SHA-1 (RFC 8017, section 9.2, note 1); the
+     * 20-byte hash follows it.
+     */
+    private static final byte[] SHA1_DIGEST_INFO_PREFIX = {
+            0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00, 0x04, 0x14 };
+
+    /**
+     * Digest signed by warm-ups; any fixed 32 bytes will do.
+     */
+    private static final byte[] WARMUP_DIGEST = new byte[32];
+
+    private final long probeIntervalMillis;
+    protected KeyStore keyStore;
+    protected Provider provider;
+    private volatile String alias;
+    private volatile X509Certificate[] certificateChain;
+    private volatile CmsSigner cmsSigner;
+    private volatile TokenSession session;
+    protected volatile boolean hostHashing;
+
+    protected KeyStoreSigningBackend(long probeIntervalMillis) {
+        this.probeIntervalMillis = probeIntervalMillis;
+    }
+
+    /**
+     * Called by login() once keyStore is loaded: makes the backend usable with
+     * the given alias and chain. relogin restores a lost login.
+     */
+    protected void open(String alias, X509Certificate[] chain, char[] pin, TokenSession.Login relogin)
+            throws Exception {
+        this.alias = alias;
+        this.certificateChain = chain;
+        // CMS certificate store and builders are reused for every PKCS#7 signature
+        this.cmsSigner = new CmsSigner(chain, provider);
+        this.session = new TokenSession(keyStore, alias, pin, relogin, probeIntervalMillis);
+    }
+
+    /**
+     * Find correct signing alias (certificate that has private key +
+     * DigitalSignature usage).
+     */
+    protected String findSigningAlias() throws Exception {
+
+        Enumeration<String> aliases = keyStore.aliases();
+
+        while (aliases.hasMoreElements()) {
+            String tempAlias = aliases.nextElement();
+
+            if (!keyStore.isKeyEntry(tempAlias)) {
+                continue;
+            }
+
+            Certificate certObj = keyStore.getCertificate(tempAlias);
+            if (!(certObj instanceof X509Certificate)) {
+                continue;
+            }
+
+            X509Certificate cert = (X509Certificate) certObj;
+
+            // Check KeyUsage if present
+            boolean[] usage = cert.getKeyUsage();
+
+            // usage[0] = digitalSignature
+            boolean isSigningCert = (usage == null || (usage.length > 0 && usage[0]));
+
+            if (isSigningCert) {
+                System.out.println("✔ Found signing alias: " + tempAlias);
+                System.out.println("   Subject: " + cert.getSubjectX500Principal());
+                return tempAlias;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Chain stored for the alias, or just its certificate.
+     */
+    protected X509Certificate[] readCertificateChain(String alias) throws Exception {
+        Certificate[] chain = keyStore.getCertificateChain(alias);
+        if (chain == null || chain.length == 0) {
+            Certificate cert = keyStore.getCertificate(alias);
+            if (cert == null) {
+                throw new Exception("No certificate found for alias: " + alias);
+            }
+            chain = new Certificate[] { cert };
+        }
+        X509Certificate[] resolved = new X509Certificate[chain.length];
+        for (int i = 0; i < chain.length; i++) {
+            resolved[i] = (X509Certificate) chain[i];
+        }
+        return resolved;
+    }
+
+    @Override
+    public boolean isLoggedIn() {
+        return session != null;
+    }
+
+    @Override
+    public void close() {
+        session = null;
+        cmsSigner = null;
+    }
+
+    @Override
+    public String getAlias() {
+        return alias;
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain() throws Exception {
+        X509Certificate[] chain = certificateChain;
+        if (chain == null) {
+            throw new Exception("DSC not initialized. Call login() first.");
+        }
+        return chain.clone();
+    }
+
+    @Override
+    public Provider getProvider() {
+        return provider;
+    }
+
+    @Override
+    public boolean isHostHashing() {
+        return hostHashing;
+    }
+
+    @Override
+    public PrivateKey getPrivateKey() throws Exception {
+        return requireSession().getPrivateKey();
+    }
+
+    /**
+     * Run an operation with the session's private key, logging in again and
+     * retrying once if the key reports a lost session.
+     */
+    public <T> T withPrivateKey(TokenSession.KeyOperation<T> operation) throws Exception {
+        return requireSession().withKey(operation);
+    }
+
+    protected TokenSession requireSession() throws Exception {
+        TokenSession current = session;
+        if (current == null) {
+            throw new Exception("DSC not initialized. Call login() first.");
+        }
+        return current;
+    }
+
+    @Override
+    public void probe() throws Exception {
+        requireSession().verify();
+    }
+
+    @Override
+    public void warmUp() throws Exception {
+        // Same key and signing path as a flat-file signature, like the
+        // host-hashing self-check at login; the result is discarded
+        requireSession().withKey(privateKey -> sha1WithRsa(provider, privateKey, WARMUP_DIGEST, 0,
+                WARMUP_DIGEST.length, hostHashing));
+    }
+
+    @Override
+    public byte[] signRaw(byte[] data, int off, int len) throws Exception {
+        return requireSession().withKey(privateKey -> {
+            long start = System.nanoTime();
+
+            // ICEGATE ICES 1.5 flat-file strictly requires SHA1withRSA for the V-NCODE format
+            byte[] signed = sha1WithRsa(provider, privateKey, data, off, len, hostHashing);
+            SignerMetrics.get().tokenSignDuration.labels("raw").observeNanos(System.nanoTime() - start);
+            return signed;
+        });
+    }
+
+    @Override
+    public byte[] signSha256Digest(byte[] sha256Digest) throws Exception {
+        return requireSession().withKey(privateKey -> signSha256Digest(sha256Digest, privateKey));
+    }
+
+    @Override
+    public byte[][] signSha256Digests(byte[][] sha256Digests, BooleanSupplier stop) throws Exception {
+        byte[][] signatures = new byte[sha256Digests.length][];
+        requireSession().withKey(privateKey -> {
+            // After a re-login the retry skips what was already signed
+            for (int i = 0; i < sha256Digests.length && !stop.getAsBoolean(); i++) {
+                if (signatures[i] == null) {
+                    signatures[i] = signSha256Digest(sha256Digests[i], privateKey);
+                }
+            }
+            return null;
+        });
+        return signatures;
+    }
+
+    private byte[] signSha256Digest(byte[] sha256Digest, PrivateKey privateKey) throws Exception {
+        long start = System.nanoTime();
+        byte[] signed = sha1WithRsa(provider, privateKey, sha256Digest, 0, sha256Digest.length, hostHashing);
+        SignerMetrics.get().tokenSignDuration.labels("sha2").observeNanos(System.nanoTime() - start);
+        return signed;
+    }
+
+    @Override
+    public byte[] signCms(byte[] data, boolean detached) throws Exception {
+        CmsSigner signer = requireCmsSigner();
+        return requireSession().withKey(privateKey -> signer.sign(privateKey, data, detached));
+    }
+
+    @Override
+    public byte[] signCmsDetached(InputStream content) throws Exception {
+        return signCmsDetachedDigest(CmsSigner.sha256(content));
+    }
+
+    @Override
+    public byte[] signCmsDetachedDigest(byte[] sha256ContentDigest) throws Exception {
+        CmsSigner signer = requireCmsSigner();
+        return requireSession().withKey(privateKey -> signer.signDigest(privateKey, sha256ContentDigest));
+    }
+
+    private CmsSigner requireCmsSigner() throws Exception {
+        CmsSigner signer = cmsSigner;
+        if (signer == null) {
+            throw new Exception("DSC not initialized. Call login() first.");
+        }
+        return signer;
+    }
+
+    /**
+     * SHA1withRSA over data[off, off+len). With hostHashing the SHA-1 and the
+     * DigestInfo are computed here and the provider only applies PKCS#1 v1.5
+     * padding and the private-key operation; the result is the same bytes.
+     */
+    static byte[] sha1WithRsa(Provider provider, PrivateKey privateKey, byte[] data, int off, int len,
+            boolean hostHashing) throws Exception {
+        String algorithm = hostHashing ? "NONEwithRSA" : "SHA1withRSA";
+        Signature signature = provider != null ? Signature.getInstance(algorithm, provider)
+                : Signature.getInstance(algorithm);
+        signature.initSign(privateKey);
+        if (hostHashing) {
+            signature.update(sha1DigestInfo(data, off, len));
+        } else {
+            signature.update(data, off, len);
+        }
+        return signature.sign();
+    }
+
+    /**
+     * DER DigestInfo { sha1, SHA-1(data[off, off+len)) }: what SHA1withRSA
+     * pads and encrypts.
+     */
+    static byte[] sha1DigestInfo(byte[] data, int off, int len) throws Exception {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        sha1.update(data, off, len);
+        byte[] digestInfo = Arrays.copyOf(SHA1_DIGEST_INFO_PREFIX, SHA1_DIGEST_INFO_PREFIX.length + 20);
+        sha1.digest(digestInfo, SHA1_DIGEST_INFO_PREFIX.length, 20);
+        return digestInfo;
+    }
+}
@@ -9,12 +9,18 @@ import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 public class Main extends JFrame {
 
+    private static final long serialVersionUID = 1L;
+
     // Config
     private JTextField urlField;
     private JTextField dllField;
@@ -22,6 +28,7 @@ public class Main extends JFrame {
 
     // Services
     private DscService dscService;
+    private volatile SigningServer signingServer;
     private ApiClient apiClient;
 
     // UI Tab Components
@@ -139,6 +146,7 @@ public class Main extends JFrame {
                 }
                 SigningServer server = new SigningServer(dscService);
                 server.start();
+                signingServer = server;
                 log("🚀 Background Signing Server active on port 5000");
             } catch (Exception e) {
                 log("❌ Failed to start Signing Server: " + e.getMessage());
@@ -195,20 +203,16 @@ public class Main extends JFrame {
                 byte[] rawBytes = Files.readAllBytes(inputFile.toPath());
                 log("Read file: " + rawBytes.length + " bytes");
 
-                byte[] originalBytes = rawBytes; // keep original for writing to file
-
-                // Prepare the exact bytes that will form the payload in the file
-                String dataPart = new String(originalBytes, "ISO-8859-1").stripTrailing();
-                byte[] exactPayloadBytes = (dataPart + "\n").getBytes("ISO-8859-1");
-                byte[] strippedBytes = dataPart.getBytes("ISO-8859-1");
+                // The payload is the file up to its trailing whitespace
+                int payloadLength = SbCanonicalizer.canonicalLength(rawBytes);
 
                 // ✅ Sign using the double-nested hashing scheme on stripped bytes
-                byte[] signature = dscService.signSHA2(strippedBytes);
+                SignedPayload signed = signPayload(dscService, rawBytes, payloadLength);
+                byte[] signature = signed.signature;
 
                 log("Signature created: " + signature.length + " bytes");
 
-                String signatureBase64 = java.util.Base64.getEncoder().encodeToString(signature);
-                String certificateBase64 = dscService.getCertificateBase64();
+                SbEnvelope envelope = signed.envelope;
 
                 // Output file name
                 String baseName = inputFile.getName();
@@ -220,15 +224,8 @@ public class Main extends JFrame {
                 File sbFile = new File(outputDir, baseName + "Signed.sb");
 
                 try (FileOutputStream fos = new FileOutputStream(sbFile)) {
-                    // Write the exact payload bytes
-                    fos.write(exactPayloadBytes);
-
-                    // ✅ STEP 6: Append signature blocks with \n (LF only — V-NCODE format)
-                    fos.write(
-                            ("<START-SIGNATURE>" + signatureBase64 + "</START-SIGNATURE>\n").getBytes("ISO-8859-1"));
-                    fos.write(("<START-CERTIFICATE>" + certificateBase64 + "</START-CERTIFICATE>\n")
-                            .getBytes("ISO-8859-1"));
-                    fos.write("<SIGNER-VERSION>V-NCODE_01.05.2013</SIGNER-VERSION>".getBytes("ISO-8859-1"));
+                    // ✅ Payload, LF, then the signature blocks (LF only — V-NCODE format)
+                    envelope.write(fos, rawBytes, 0, payloadLength, signature);
                 }
 
                 log("✅ Saved signed file: " + sbFile.getAbsolutePath());
@@ -334,7 +331,11 @@ public class Main extends JFrame {
     }
 
     private void signSelectedJobs() {
-        if (dscService == null) {
+        // Jobs are spread over the server's tokens when any of them is logged in
+        SigningServer server = signingServer;
+        TokenPool pool = server != null && server.getTokenPool().hasLoggedInToken() ? server.getTokenPool() : null;
+
+        if (dscService == null && pool == null) {
             JOptionPane.showMessageDialog(this, "Please Initialize DSC first.");
             return;
         }
@@ -363,72 +364,26 @@ public class Main extends JFrame {
         File outputDir = folderChooser.getSelectedFile();
 
         new Thread(() -> {
-            int successCount = 0;
+            AtomicInteger successCount = new AtomicInteger();
 
+            // One signing thread per token; a single token keeps the old serial loop
+            int threads = pool != null ? pool.size() : 1;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
             for (int rowIndex : selectedRows) {
-                try {
-                    String jobNo = (String) tableModel.getValueAt(rowIndex, 1);
-                    String sbNo = (String) tableModel.getValueAt(rowIndex, 3);
-                    String content = (String) tableModel.getValueAt(rowIndex, 4);
-                    String id = (String) tableModel.getValueAt(rowIndex, 5);
-
-                    log("Signing Job: " + jobNo);
-
-                    // ✅ Get raw bytes from content
-                    byte[] rawBytes = content.getBytes("ISO-8859-1");
-                    byte[] originalBytes = rawBytes; // keep original for writing to file
-
-                    // Prepare the exact bytes that will form the payload in the file
-                    String dataPart = new String(originalBytes, "ISO-8859-1").stripTrailing();
-                    byte[] exactPayloadBytes = (dataPart + "\n").getBytes("ISO-8859-1");
-                    byte[] strippedBytes = dataPart.getBytes("ISO-8859-1");
-
-                    // ✅ Sign using the double-nested hashing scheme on stripped bytes
-                    byte[] signature = dscService.signSHA2(strippedBytes);
-
-
-                    String signatureBase64 = java.util.Base64.getEncoder().encodeToString(signature);
-                    String certificateBase64 = dscService.getCertificateBase64();
-
-                    String baseName = jobNo + "_" + (sbNo != null && !sbNo.equals("N/A") ? sbNo : "SB");
-                    baseName = baseName.replaceAll("[^a-zA-Z0-9_-]", "_");
-
-                    File sbFile = new File(outputDir, baseName + ".sb");
-
-                    try (FileOutputStream fos = new FileOutputStream(sbFile)) {
-                        // Write the exact payload bytes
-                        fos.write(exactPayloadBytes);
-
-                        // Append signature blocks with \n (LF only — matches V-NCODE format)
-                        fos.write(("<START-SIGNATURE>" + signatureBase64 + "</START-SIGNATURE>\n")
-                                .getBytes("ISO-8859-1"));
-
-                        fos.write(("<START-CERTIFICATE>" + certificateBase64 + "</START-CERTIFICATE>\n")
-                                .getBytes("ISO-8859-1"));
-
-                        fos.write("<SIGNER-VERSION>V-NCODE_01.05.2013</SIGNER-VERSION>"
-                                .getBytes("ISO-8859-1"));
+                executor.execute(() -> {
+                    if (signJob(rowIndex, outputDir, pool)) {
+                        successCount.incrementAndGet();
                     }
-
-                    log("Saved signed file: " + sbFile.getAbsolutePath());
-
-                    try {
-                        log("Uploading to server...");
-                        apiClient.uploadSignedFile(id, signature);
-                        log("Uploaded: " + jobNo);
-                    } catch (Exception uploadErr) {
-                        log("⚠ Upload failed (file saved locally): " + uploadErr.getMessage());
-                    }
-
-                    successCount++;
-
-                } catch (Exception e) {
-                    log("Error signing row " + rowIndex + ": " + e.getMessage());
-                    e.printStackTrace();
-                }
+                });
+            }
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
 
-            final int finalCount = successCount;
+            final int finalCount = successCount.get();
             SwingUtilities.invokeLater(() -> {
                 JOptionPane.showMessageDialog(this,
                         "Signing Completed!\n\n" +
@@ -442,6 +397,94 @@ public class Main extends JFrame {
         }).start();
     }
 
+    /**
+     * Sign one table row, save it and upload the signature. Uses the least
+     * loaded token of the pool, or the desktop DscService when pool is null.
+     */
+    private boolean signJob(int rowIndex, File outputDir, TokenPool pool) {
+        try {
+            String jobNo = (String) tableModel.getValueAt(rowIndex, 1);
+            String sbNo = (String) tableModel.getValueAt(rowIndex, 3);
+            String content = (String) tableModel.getValueAt(rowIndex, 4);
+            String id = (String) tableModel.getValueAt(rowIndex, 5);
+
+            log("Signing Job: " + jobNo);
+
+            // ✅ Get raw bytes from content
+            byte[] rawBytes = content.getBytes("ISO-8859-1");
+
+            // The payload is the content up to its trailing whitespace
+            int payloadLength = SbCanonicalizer.canonicalLength(rawBytes);
+
+            // ✅ Sign using the double-nested hashing scheme on stripped bytes
+            // Signature and certificate come from the same token task
+            SignedPayload signed;
+            if (pool != null) {
+                TokenPool.Token token = pool.select();
+                signed = token.execute(dsc -> signPayload(dsc, rawBytes, payloadLength));
+                log("Signed " + jobNo + " on token " + token.getName());
+            } else {
+                signed = signPayload(dscService, rawBytes, payloadLength);
+            }
+            byte[] signature = signed.signature;
+            SbEnvelope envelope = signed.envelope;
+
+            String baseName = jobNo + "_" + (sbNo != null && !sbNo.equals("N/A") ? sbNo : "SB");
+            baseName = baseName.replaceAll("[^a-zA-Z0-9_-]", "_");
+
+            File sbFile = new File(outputDir, baseName + ".sb");
+
+            try (FileOutputStream fos = new FileOutputStream(sbFile)) {
+                // Payload, LF, then the signature blocks (LF only — matches V-NCODE format)
+                envelope.write(fos, rawBytes, 0, payloadLength, signature);
+            }
+
+            log("Saved signed file: " + sbFile.getAbsolutePath());
+
+            try {
+                log("Uploading to server...");
+                apiClient.uploadSignedFile(id, signature);
+                log("Uploaded: " + jobNo);
+            } catch (Exception uploadErr) {
+                log("⚠ Upload failed (file saved locally): " + uploadErr.getMessage());
+            }
+
+            return true;
+
+        } catch (Exception e) {
+            log("Error signing row " + rowIndex + ": " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * A flat-file signature and the envelope of the certificate that made it.
+     */
+    private static final class SignedPayload {
+        final byte[] signature;
+        final SbEnvelope envelope;
+
+        SignedPayload(byte[] signature, SbEnvelope envelope) {
+            this.signature = signature;
+            this.envelope = envelope;
+        }
+    }
+
+    /**
+     * Sign payload[0, payloadLength) and take the envelope from the same
+     * DscService, failing if its certificate changed in between (e.g. a
+     * re-login to another token).
+     */
+    private static SignedPayload signPayload(DscService dsc, byte[] payload, int payloadLength) throws Exception {
+        SbEnvelope envelope = dsc.getEnvelope();
+        byte[] signature = dsc.signSHA2(payload, 0, payloadLength);
+        if (!envelope.getFingerprint().equals(dsc.getCertificateFingerprint())) {
+            throw new Exception("Signing certificate changed during the request. Please retry.");
+        }
+        return new SignedPayload(signature, envelope);
+    }
+
     public static void main(String[] args) {
         System.out.println("==========================================");
         System.out.println("      Exim DSC Local Signer");
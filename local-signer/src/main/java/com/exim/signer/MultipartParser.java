@@ -0,0 +1,483 @@
+package com.exim.signer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Streaming multipart/form-data reader.
+ *
+ * The body is consumed once through a fixed-size window and the part
+ * delimiters are located with Boyer-Moore-Horspool, so CPU cost stays linear
+ * and heap use stays bounded: a part larger than the spill threshold is moved
+ * to a temp file, and bodies larger than the configured maximum are rejected.
+ */
+public class MultipartParser {
+
+    public static final long DEFAULT_MAX_BODY_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
+    private static final int WINDOW_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+
+    private final long maxBodyBytes;
+    private final int spillThreshold;
+
+    public MultipartParser() {
+        this(DEFAULT_MAX_BODY_BYTES, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    public MultipartParser(long maxBodyBytes, int spillThreshold) {
+        this.maxBodyBytes = maxBodyBytes;
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * Extract the boundary parameter from a Content-Type header, or null if the
+     * header is not multipart.
+     */
+    public static String extractBoundary(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            String trimmed = param.trim();
+            if (trimmed.regionMatches(true, 0, "boundary=", 0, 9)) {
+                String value = trimmed.substring(9).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value.isEmpty() ? null : value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse every part of the body. The caller owns the returned body and must
+     * close it to release spilled temp files.
+     */
+    public MultipartBody parse(InputStream in, String boundary) throws IOException {
+        if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+            throw new MultipartException("Invalid multipart boundary");
+        }
+
+        // Every delimiter is preceded by CRLF; the first one may start the body,
+        // so the window is primed with a virtual CRLF.
+        byte[] delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        Window window = new Window(in, delimiter.length);
+        window.prime(CRLF);
+
+        Horspool delimiterSearch = new Horspool(delimiter);
+        Horspool headerSearch = new Horspool(HEADER_END);
+
+        MultipartBody body = new MultipartBody();
+        try {
+            if (!window.scanTo(delimiterSearch, null)) {
+                throw new MultipartException("Multipart boundary not found in body");
+            }
+
+            while (true) {
+                if (readDelimiterSuffix(window)) {
+                    return body;
+                }
+
+                ByteArrayOutputStream rawHeaders = new ByteArrayOutputStream();
+                OutputStream headerSink = new LimitedOutputStream(rawHeaders, MAX_HEADER_BYTES);
+                if (!window.skipIf(CRLF) && !window.scanTo(headerSearch, headerSink)) {
+                    throw new MultipartException("Unexpected end of multipart body in part headers");
+                }
+
+                Part part = new Part(parseHeaders(rawHeaders.toString("ISO-8859-1")),
+                        new SpillableBuffer(spillThreshold, "multipart-"));
+                body.parts.add(part);
+
+                boolean found = window.scanTo(delimiterSearch, part.content);
+                part.content.close();
+                if (!found) {
+                    throw new MultipartException("Unexpected end of multipart body: closing boundary missing");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            body.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Consume what follows a delimiter. Returns true for the closing "--"
+     * delimiter, false when another part follows.
+     */
+    private boolean readDelimiterSuffix(Window window) throws IOException {
+        int first = window.read();
+        if (first == '-') {
+            if (window.read() != '-') {
+                throw new MultipartException("Malformed closing boundary");
+            }
+            return true;
+        }
+        // RFC 2046 permits linear whitespace after the boundary
+        while (first == ' ' || first == '\t') {
+            first = window.read();
+        }
+        if (first != '\r' || window.read() != '\n') {
+            throw new MultipartException("Malformed boundary line");
+        }
+        return false;
+    }
+
+    private Map<String, String> parseHeaders(String raw) throws MultipartException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (String line : raw.split("\r\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new MultipartException("Malformed part header: " + line);
+            }
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+        return headers;
+    }
+
+    /**
+     * Boyer-Moore-Horspool matcher for a fixed pattern.
+     */
+    static final class Horspool {
+        private final byte[] pattern;
+        private final int[] shift = new int[256];
+
+        Horspool(byte[] pattern) {
+            this.pattern = pattern;
+            int m = pattern.length;
+            java.util.Arrays.fill(shift, m);
+            for (int i = 0; i < m - 1; i++) {
+                shift[pattern[i] & 0xFF] = m - 1 - i;
+            }
+        }
+
+        int length() {
+            return pattern.length;
+        }
+
+        /**
+         * First index of the pattern in data[from, to), or -1.
+         */
+        int indexOf(byte[] data, int from, int to) {
+            int m = pattern.length;
+            int i = from;
+            while (i <= to - m) {
+                int j = m - 1;
+                while (j >= 0 && data[i + j] == pattern[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+                i += shift[data[i + m - 1] & 0xFF];
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Fixed-size sliding window over the request stream that enforces the body
+     * size limit.
+     */
+    private final class Window {
+        private final InputStream in;
+        private final byte[] buf;
+        private int pos;
+        private int limit;
+        private long consumed;
+        private boolean eof;
+
+        Window(InputStream in, int longestPattern) {
+            this.in = in;
+            this.buf = new byte[Math.max(WINDOW_SIZE, longestPattern * 2)];
+        }
+
+        void prime(byte[] bytes) {
+            System.arraycopy(bytes, 0, buf, 0, bytes.length);
+            limit = bytes.length;
+        }
+
+        int read() throws IOException {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        /**
+         * Consume the given bytes if they come next in the stream.
+         */
+        boolean skipIf(byte[] expected) throws IOException {
+            while (limit - pos < expected.length) {
+                if (!fill()) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < expected.length; i++) {
+                if (buf[pos + i] != expected[i]) {
+                    return false;
+                }
+            }
+            pos += expected.length;
+            return true;
+        }
+
+        /**
+         * Copy bytes to sink (if not null) until the pattern is found. The pattern
+         * itself is consumed but not copied. Returns false at end of stream.
+         */
+        boolean scanTo(Horspool search, OutputStream sink) throws IOException {
+            int m = search.length();
+            while (true) {
+                int idx = search.indexOf(buf, pos, limit);
+                if (idx >= 0) {
+                    if (sink != null) {
+                        sink.write(buf, pos, idx - pos);
+                    }
+                    pos = idx + m;
+                    return true;
+                }
+                // Everything except a possible partial match at the tail is safe
+                int safeEnd = Math.max(pos, limit - (m - 1));
+                if (sink != null) {
+                    sink.write(buf, pos, safeEnd - pos);
+                }
+                pos = safeEnd;
+                if (!fill()) {
+                    if (sink != null) {
+                        sink.write(buf, pos, limit - pos);
+                    }
+                    pos = limit;
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Compact unread bytes to the front and read more. Returns false if no
+         * more data is available.
+         */
+        private boolean fill() throws IOException {
+            if (eof) {
+                return false;
+            }
+            int remaining = limit - pos;
+            System.arraycopy(buf, pos, buf, 0, remaining);
+            pos = 0;
+            limit = remaining;
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n < 0) {
+                eof = true;
+                return false;
+            }
+            consumed += n;
+            if (maxBodyBytes > 0 && consumed > maxBodyBytes) {
+                throw new BodyTooLargeException(maxBodyBytes);
+            }
+            limit += n;
+            return true;
+        }
+    }
+
+    /**
+     * Rejects part headers that exceed a sane size.
+     */
+    private static final class LimitedOutputStream extends OutputStream {
+        private final OutputStream target;
+        private final int max;
+        private int written;
+
+        LimitedOutputStream(OutputStream target, int max) {
+            this.target = target;
+            this.max = max;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            written += len;
+            if (written > max) {
+                throw new MultipartException("Multipart part headers too large");
+            }
+            target.write(b, off, len);
+        }
+    }
+
+    /**
+     * All parts of a parsed request. Closing it deletes spilled temp files.
+     */
+    public static class MultipartBody implements Closeable {
+        private final List<Part> parts = new ArrayList<>();
+
+        public List<Part> getParts() {
+            return Collections.unmodifiableList(parts);
+        }
+
+        /**
+         * First part with the given field name, or null.
+         */
+        public Part getPart(String name) {
+            for (Part part : parts) {
+                if (name.equals(part.getName())) {
+                    return part;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * All parts with the given field name, in request order.
+         */
+        public List<Part> getParts(String name) {
+            List<Part> matches = new ArrayList<>();
+            for (Part part : parts) {
+                if (name.equals(part.getName())) {
+                    matches.add(part);
+                }
+            }
+            return matches;
+        }
+
+        @Override
+        public void close() {
+            for (Part part : parts) {
+                part.close();
+            }
+        }
+    }
+
+    /**
+     * A single multipart section: its headers plus content held in memory or in
+     * a temp file.
+     */
+    public static class Part implements Closeable {
+        private final Map<String, String> headers;
+        private final SpillableBuffer content;
+        private final String name;
+        private final String filename;
+
+        Part(Map<String, String> headers, SpillableBuffer content) {
+            this.headers = Collections.unmodifiableMap(headers);
+            this.content = content;
+            String disposition = headers.get("content-disposition");
+            this.name = dispositionParam(disposition, "name");
+            this.filename = dispositionParam(disposition, "filename");
+        }
+
+        private static String dispositionParam(String disposition, String param) {
+            if (disposition == null) {
+                return null;
+            }
+            for (String token : disposition.split(";")) {
+                String trimmed = token.trim();
+                int eq = trimmed.indexOf('=');
+                if (eq > 0 && trimmed.substring(0, eq).trim().equalsIgnoreCase(param)) {
+                    String value = trimmed.substring(eq + 1).trim();
+                    if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Header value by case-insensitive name, or null.
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * Form field name from Content-Disposition.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public String getContentType() {
+            return headers.get("content-type");
+        }
+
+        public long getSize() {
+            return content.size();
+        }
+
+        public boolean isSpilled() {
+            return content.isSpilled();
+        }
+
+        /**
+         * Temp file holding the content, or null if the part is in memory.
+         */
+        public File getFile() {
+            return content.getFile();
+        }
+
+        public InputStream openStream() throws IOException {
+            return content.openInputStream();
+        }
+
+        public byte[] getBytes() throws IOException {
+            return content.toByteArray();
+        }
+
+        @Override
+        public void close() {
+            content.delete();
+        }
+    }
+
+    /**
+     * Thrown for malformed multipart bodies.
+     */
+    public static class MultipartException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MultipartException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when the request body exceeds the configured maximum size.
+     */
+    public static class BodyTooLargeException extends MultipartException {
+        private static final long serialVersionUID = 1L;
+
+        public BodyTooLargeException(long maxBodyBytes) {
+            super("Request body exceeds maximum size of " + maxBodyBytes + " bytes");
+        }
+    }
+}
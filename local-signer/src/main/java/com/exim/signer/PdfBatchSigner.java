@@ -0,0 +1,182 @@
+package com.exim.signer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Signs many PDFs at once. Loading, adding the signature dictionary, hashing
+ * the ByteRange and the incremental save run in parallel on a fixed pool;
+ * only the CMS private-key step goes through the token's SigningWorker, where
+ * requests from all documents queue for the token.
+ *
+ * Each document picks the least-loaded token when it starts, so a batch also
+ * spreads over several tokens.
+ */
+public class PdfBatchSigner {
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * One document of a batch. Called on a pool thread with the token's PDF
+     * signer and the token step to pass on to it.
+     */
+    public interface Document {
+        void sign(PdfSignerService signer, PdfSignerService.DigestSigner tokenStep) throws Exception;
+    }
+
+    /**
+     * Outcome of a batch: per-document error message (null if signed) and the
+     * wall-clock time of the whole batch.
+     */
+    public static final class Result {
+        private final String[] errors;
+        private final long elapsedNanos;
+
+        Result(String[] errors, long elapsedNanos) {
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public boolean isSigned(int index) {
+            return errors[index] == null;
+        }
+
+        public String getError(int index) {
+            return errors[index];
+        }
+
+        public int getSignedCount() {
+            int signed = 0;
+            for (String error : errors) {
+                if (error == null) {
+                    signed++;
+                }
+            }
+            return signed;
+        }
+
+        public int getFailedCount() {
+            return errors.length - getSignedCount();
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getDocumentsPerSecond() {
+            return elapsedNanos > 0 ? getSignedCount() * 1_000_000_000.0 / elapsedNanos : 0;
+        }
+    }
+
+    private final TokenPool tokenPool;
+    private final int threads;
+    private final ExecutorService executor;
+
+    public PdfBatchSigner(TokenPool tokenPool, int threads) {
+        this.tokenPool = tokenPool;
+        this.threads = Math.max(1, threads);
+        this.executor = Executors.newFixedThreadPool(this.threads, new DaemonThreadFactory("pdf-batch"));
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Sign files into the matching output files. A document that fails leaves
+     * its output file incomplete and is reported in the result; the others
+     * are signed regardless.
+     */
+    public Result signFiles(List<File> inputs, List<File> outputs, String reason, String location)
+            throws InterruptedException {
+        if (inputs.size() != outputs.size()) {
+            throw new IllegalArgumentException("Got " + inputs.size() + " inputs but " + outputs.size() + " outputs");
+        }
+        List<Document> documents = new ArrayList<>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            File input = inputs.get(i);
+            File output = outputs.get(i);
+            documents.add((signer, tokenStep) -> {
+                try (OutputStream os = new FileOutputStream(output)) {
+                    signer.signPdf(input, os, reason, location, null, tokenStep);
+                }
+            });
+        }
+        return signAll(documents);
+    }
+
+    /**
+     * Sign all documents, at most getThreads() at a time, and wait for them.
+     */
+    public Result signAll(List<Document> documents) throws InterruptedException {
+        int count = documents.size();
+        String[] errors = new String[count];
+        long start = System.nanoTime();
+
+        List<Future<?>> futures = new ArrayList<>(count);
+        for (Document document : documents) {
+            futures.add(executor.submit(() -> {
+                sign(document);
+                return null;
+            }));
+        }
+
+        for (int i = 0; i < count; i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                errors[i] = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+                System.err.println("❌ Batch PDF " + (i + 1) + "/" + count + " failed: " + errors[i]);
+            } catch (InterruptedException e) {
+                for (Future<?> future : futures) {
+                    future.cancel(true);
+                }
+                throw e;
+            }
+        }
+        return new Result(errors, System.nanoTime() - start);
+    }
+
+    private void sign(Document document) throws Exception {
+        TokenPool.Token token = tokenPool.select();
+        document.sign(token.getPdfSignerService(), tokenStep(token));
+    }
+
+    /**
+     * The token part of PDF signing: the detached CMS over a ByteRange digest,
+     * queued on the token's worker.
+     */
+    public static PdfSignerService.DigestSigner tokenStep(TokenPool.Token token) {
+        return (digest, fingerprint) -> token.execute(dsc -> dsc.signPKCS7DetachedDigest(digest, fingerprint));
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.exim.signer;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How PDFs are held while they are signed, shared by all tokens.
+ *
+ * Each document's scratch storage (the copied upload and any new streams) is
+ * kept in memory up to a per-document budget and goes to temp files beyond
+ * it ("mixed"), or is always in memory or always on disk. The parsed object
+ * graph still lives on the heap, so in addition at most maxDocuments PDFs are
+ * open at a time; further requests wait for a slot instead of pushing the JVM
+ * into long GC pauses or OutOfMemoryError.
+ */
+public class PdfMemoryPolicy {
+
+    public static final String MODE_MEMORY = "memory";
+    public static final String MODE_MIXED = "mixed";
+    public static final String MODE_TEMPFILE = "tempfile";
+    public static final long DEFAULT_MAX_MAIN_BYTES = 32L * 1024 * 1024;
+    public static final int DEFAULT_MAX_DOCUMENTS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final long DEFAULT_WAIT_MILLIS = 120_000;
+
+    /**
+     * Thrown when no document slot frees up within the wait time.
+     */
+    public static class DocumentLimitException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public DocumentLimitException(int maxDocuments, long waitMillis) {
+            super("All " + maxDocuments + " PDF slots busy for " + waitMillis + " ms. Retry later");
+        }
+    }
+
+    /**
+     * Holds one document slot until closed.
+     */
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final Permit NO_PERMIT = () -> {
+    };
+
+    private final String mode;
+    private final long maxMainBytes;
+    private final File tempDir;
+    private final int maxDocuments;
+    private final long waitMillis;
+    private final Semaphore slots;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * @param mode         "memory", "mixed" or "tempfile"
+     * @param maxMainBytes per-document heap budget in mixed mode
+     * @param tempDir      scratch directory, or null for java.io.tmpdir
+     * @param maxDocuments PDFs open at the same time; 0 for no limit
+     * @param waitMillis   how long a request waits for a slot
+     */
+    public PdfMemoryPolicy(String mode, long maxMainBytes, File tempDir, int maxDocuments, long waitMillis) {
+        String selected = mode == null ? MODE_MIXED : mode.trim().toLowerCase(Locale.ROOT);
+        if (!MODE_MEMORY.equals(selected) && !MODE_MIXED.equals(selected) && !MODE_TEMPFILE.equals(selected)) {
+            System.err.println("⚠ Unknown PDF memory mode '" + mode + "', using " + MODE_MIXED);
+            selected = MODE_MIXED;
+        }
+        this.mode = selected;
+        this.maxMainBytes = Math.max(0, maxMainBytes);
+        this.tempDir = tempDir;
+        this.maxDocuments = Math.max(0, maxDocuments);
+        this.waitMillis = Math.max(0, waitMillis);
+        this.slots = this.maxDocuments > 0 ? new Semaphore(this.maxDocuments, true) : null;
+    }
+
+    /**
+     * Everything in memory and no document limit: PDFBox's defaults.
+     */
+    public static PdfMemoryPolicy unbounded() {
+        return new PdfMemoryPolicy(MODE_MEMORY, -1, null, 0, 0);
+    }
+
+    /**
+     * Wait for a document slot. Close the permit after the document is
+     * closed.
+     */
+    public Permit acquire() throws Exception {
+        if (slots == null) {
+            return NO_PERMIT;
+        }
+        waiting.incrementAndGet();
+        boolean acquired;
+        try {
+            acquired = slots.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+        } finally {
+            waiting.decrementAndGet();
+        }
+        if (!acquired) {
+            throw new DocumentLimitException(maxDocuments, waitMillis);
+        }
+        return slots::release;
+    }
+
+    public PDDocument load(File file) throws IOException {
+        return PDDocument.load(file, newMemoryUsageSetting());
+    }
+
+    public PDDocument load(InputStream input) throws IOException {
+        return PDDocument.load(input, newMemoryUsageSetting());
+    }
+
+    /**
+     * A fresh setting per document; PDFBox creates one scratch file per
+     * setting user.
+     */
+    private MemoryUsageSetting newMemoryUsageSetting() {
+        MemoryUsageSetting setting;
+        if (MODE_TEMPFILE.equals(mode)) {
+            setting = MemoryUsageSetting.setupTempFileOnly();
+        } else if (MODE_MIXED.equals(mode)) {
+            setting = MemoryUsageSetting.setupMixed(maxMainBytes);
+        } else {
+            setting = MemoryUsageSetting.setupMainMemoryOnly();
+        }
+        return tempDir != null ? setting.setTempDir(tempDir) : setting;
+    }
+
+    /**
+     * Size up to which other per-document buffers (e.g. an optimized copy)
+     * may stay on the heap under this policy.
+     */
+    public int getScratchThreshold() {
+        if (MODE_TEMPFILE.equals(mode)) {
+            return 0;
+        }
+        if (MODE_MIXED.equals(mode)) {
+            return (int) Math.min(Integer.MAX_VALUE, maxMainBytes);
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public long getMaxMainBytes() {
+        return maxMainBytes;
+    }
+
+    public int getMaxDocuments() {
+        return maxDocuments;
+    }
+
+    /**
+     * PDFs currently open under this policy (only counted with a limit).
+     */
+    public int getActiveDocuments() {
+        return slots != null ? maxDocuments - slots.availablePermits() : 0;
+    }
+
+    public int getWaitingDocuments() {
+        return waiting.get();
+    }
+}
@@ -0,0 +1,409 @@
+package com.exim.signer;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional stage before signing that shrinks bloated scans for e-Sanchit:
+ * page images larger than the target DPI are downsampled and re-encoded as
+ * JPEG, identical images shared by several pages are stored once, and the
+ * document is rewritten in full, which drops objects nothing refers to.
+ * Images already at or below the target DPI keep their encoding unless
+ * lossless re-encoding is switched on, so line art and text scans stored
+ * with Flate do not pick up JPEG artefacts.
+ *
+ * The pages are walked on the calling thread, which also resolves every
+ * object an image decode reads (PDFBox parses indirect objects lazily from a
+ * source that is not thread-safe). Decoding, scaling, JPEG encoding and
+ * writing the new stream then run in parallel on a pool, one task per
+ * distinct image, each touching only its own stream. The signature is
+ * applied to the optimized bytes afterwards, so it covers exactly what is
+ * uploaded. Documents that are
+ * already signed or encrypted are left alone, since a full rewrite would
+ * break their signatures.
+ */
+public class PdfOptimizer {
+
+    public static final int DEFAULT_TARGET_DPI = 150;
+    public static final float DEFAULT_JPEG_QUALITY = 0.75f;
+
+    /**
+     * What one optimization did.
+     */
+    public static final class Report {
+        private final long originalBytes;
+        private final long optimizedBytes;
+        private final int imagesRecompressed;
+        private final int duplicatesRemoved;
+
+        Report(long originalBytes, long optimizedBytes, int imagesRecompressed, int duplicatesRemoved) {
+            this.originalBytes = originalBytes;
+            this.optimizedBytes = optimizedBytes;
+            this.imagesRecompressed = imagesRecompressed;
+            this.duplicatesRemoved = duplicatesRemoved;
+        }
+
+        public long getOriginalBytes() {
+            return originalBytes;
+        }
+
+        public long getOptimizedBytes() {
+            return optimizedBytes;
+        }
+
+        /**
+         * Bytes saved; negative if the rewrite came out larger.
+         */
+        public long getSavedBytes() {
+            return originalBytes - optimizedBytes;
+        }
+
+        public int getImagesRecompressed() {
+            return imagesRecompressed;
+        }
+
+        public int getDuplicatesRemoved() {
+            return duplicatesRemoved;
+        }
+    }
+
+    private final int targetDpi;
+    private final float jpegQuality;
+    private final boolean reencodeLossless;
+    private final int threads;
+    private final ExecutorService executor;
+
+    /**
+     * Only downsampled images are re-encoded.
+     */
+    public PdfOptimizer(int targetDpi, float jpegQuality, int threads) {
+        this(targetDpi, jpegQuality, false, threads);
+    }
+
+    /**
+     * @param targetDpi        images with more pixels than the page needs at
+     *                         this resolution are downsampled
+     * @param jpegQuality      JPEG quality, 0..1
+     * @param reencodeLossless also turn 8-bit images that are not JPEG yet
+     *                         into JPEG when they need no downsampling
+     * @param threads          parallel image workers
+     */
+    public PdfOptimizer(int targetDpi, float jpegQuality, boolean reencodeLossless, int threads) {
+        this.targetDpi = Math.max(1, targetDpi);
+        this.jpegQuality = Math.max(0.05f, Math.min(1f, jpegQuality));
+        this.reencodeLossless = reencodeLossless;
+        this.threads = Math.max(1, threads);
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread thread = new Thread(r, "pdf-optimize-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * False for documents a full rewrite would damage (existing signatures,
+     * encryption).
+     */
+    public boolean canOptimize(PDDocument document) throws Exception {
+        return !document.isEncrypted() && document.getSignatureDictionaries().isEmpty();
+    }
+
+    /**
+     * Optimize the document in place and write the full rewrite to output.
+     *
+     * @param originalBytes size of the document as received, for the report
+     */
+    public Report optimize(PDDocument document, long originalBytes, SpillableBuffer output) throws Exception {
+        Map<String, ImageUse> images = new LinkedHashMap<>();
+        int duplicates = collectImages(document, images);
+
+        List<ImageUse> candidates = new ArrayList<>();
+        for (ImageUse use : images.values()) {
+            if (use.isCandidate(targetDpi, reencodeLossless)) {
+                use.prepare();
+                candidates.add(use);
+            }
+        }
+
+        // A pool thread holds one decoded image at a time, so at most
+        // `threads` of them are in memory
+        List<Future<Boolean>> replaced = new ArrayList<>(candidates.size());
+        for (ImageUse use : candidates) {
+            replaced.add(executor.submit(() -> use.replaceWith(
+                    encode(use.image.getImage(), use.targetWidth(targetDpi), use.targetHeight(targetDpi)))));
+        }
+        // Wait for every task even after a failure, so none is still writing
+        // when the caller closes the document
+        int recompressed = 0;
+        ExecutionException failure = null;
+        for (Future<Boolean> future : replaced) {
+            try {
+                if (future.get()) {
+                    recompressed++;
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        document.save(output);
+        output.close();
+        return new Report(originalBytes, output.size(), recompressed, duplicates);
+    }
+
+    /**
+     * Walk the page resources, point duplicate images at their first copy and
+     * record for each distinct image the largest page it appears on. Returns
+     * the number of duplicates removed.
+     */
+    private static int collectImages(PDDocument document, Map<String, ImageUse> images) throws Exception {
+        int duplicates = 0;
+        // Pages often share one resource dictionary; hash each stream once
+        Map<COSStream, String> keys = new IdentityHashMap<>();
+        for (PDPage page : document.getPages()) {
+            PDResources resources = page.getResources();
+            if (resources == null) {
+                continue;
+            }
+            PDRectangle box = page.getMediaBox();
+            for (COSName name : resources.getXObjectNames()) {
+                PDXObject xObject = resources.getXObject(name);
+                if (!(xObject instanceof PDImageXObject)) {
+                    continue;
+                }
+                PDImageXObject image = (PDImageXObject) xObject;
+                String key = keys.get(image.getCOSObject());
+                if (key == null) {
+                    key = contentKey(image);
+                    keys.put(image.getCOSObject(), key);
+                }
+                ImageUse use = images.get(key);
+                if (use == null) {
+                    use = new ImageUse(image);
+                    images.put(key, use);
+                } else if (use.image.getCOSObject() != image.getCOSObject()) {
+                    resources.put(name, use.image);
+                    duplicates++;
+                }
+                use.fitPage(box);
+            }
+        }
+        return duplicates;
+    }
+
+    /**
+     * Replace indirect references reachable from the object by the objects
+     * themselves, so that reading them later does not go back to the parser.
+     */
+    private static void resolve(COSBase base, Map<COSBase, Boolean> seen) {
+        COSBase object = base instanceof COSObject ? ((COSObject) base).getObject() : base;
+        if (object == null || seen.put(object, Boolean.TRUE) != null) {
+            return;
+        }
+        if (object instanceof COSDictionary) {
+            for (COSBase value : ((COSDictionary) object).getValues()) {
+                resolve(value, seen);
+            }
+        } else if (object instanceof COSArray) {
+            for (COSBase value : (COSArray) object) {
+                resolve(value, seen);
+            }
+        }
+    }
+
+    /**
+     * SHA-256 over the encoded image bytes and the dictionary entries that
+     * affect decoding.
+     */
+    private static String contentKey(PDImageXObject image) throws Exception {
+        COSStream stream = image.getCOSObject();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update((stream.getDictionaryObject(COSName.FILTER) + "|" + image.getWidth() + "x" + image.getHeight()
+                + "|" + image.getBitsPerComponent() + "|" + stream.getDictionaryObject(COSName.COLORSPACE) + "|"
+                + stream.getDictionaryObject(COSName.DECODE_PARMS) + "|" + stream.getDictionaryObject(COSName.DECODE)
+                + "|" + stream.getDictionaryObject(COSName.SMASK) + "|" + stream.getDictionaryObject(COSName.MASK))
+                .getBytes(StandardCharsets.UTF_8));
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream raw = stream.createRawInputStream()) {
+            int read;
+            while ((read = raw.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Scale and JPEG-encode one image; runs on the pool.
+     */
+    private Encoded encode(BufferedImage source, int width, int height) throws Exception {
+        boolean gray = source.getColorModel().getNumColorComponents() == 1;
+        BufferedImage scaled = new BufferedImage(width, height,
+                gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(jpeg)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(scaled, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return new Encoded(jpeg.toByteArray(), width, height, gray);
+    }
+
+    private static final class Encoded {
+        final byte[] jpeg;
+        final int width;
+        final int height;
+        final boolean gray;
+
+        Encoded(byte[] jpeg, int width, int height, boolean gray) {
+            this.jpeg = jpeg;
+            this.width = width;
+            this.height = height;
+            this.gray = gray;
+        }
+    }
+
+    /**
+     * A distinct image and the largest page (in points) it is drawn on.
+     */
+    private static final class ImageUse {
+        final PDImageXObject image;
+        float pageWidth;
+        float pageHeight;
+
+        ImageUse(PDImageXObject image) {
+            this.image = image;
+        }
+
+        void fitPage(PDRectangle box) {
+            pageWidth = Math.max(pageWidth, box.getWidth());
+            pageHeight = Math.max(pageHeight, box.getHeight());
+        }
+
+        /**
+         * 8-bit images without masks that are above the target resolution,
+         * and with reencodeLossless also those that are not JPEG yet.
+         * Bilevel scans (CCITT / JBIG2) are already compact and would grow
+         * as JPEG.
+         */
+        boolean isCandidate(int dpi, boolean reencodeLossless) {
+            COSStream stream = image.getCOSObject();
+            if (image.isStencil() || image.getBitsPerComponent() != 8
+                    || stream.containsKey(COSName.SMASK) || stream.containsKey(COSName.MASK)) {
+                return false;
+            }
+            boolean downsample = targetWidth(dpi) < image.getWidth() || targetHeight(dpi) < image.getHeight();
+            return downsample
+                    || (reencodeLossless && !COSName.DCT_DECODE.equals(stream.getDictionaryObject(COSName.FILTER)));
+        }
+
+        /**
+         * On the calling thread: load everything the decode reads (filter
+         * parameters, colour space, ICC profile) so the pool task does not
+         * touch the parser or streams shared with other images.
+         */
+        void prepare() throws Exception {
+            resolve(image.getCOSObject(), new IdentityHashMap<>());
+            image.getColorSpace();
+        }
+
+        int targetWidth(int dpi) {
+            return Math.max(1, Math.round(image.getWidth() * scale(dpi)));
+        }
+
+        int targetHeight(int dpi) {
+            return Math.max(1, Math.round(image.getHeight() * scale(dpi)));
+        }
+
+        /**
+         * Factor that brings the image down to dpi on its largest page,
+         * never above 1.
+         */
+        private float scale(int dpi) {
+            float maxWidth = pageWidth / 72f * dpi;
+            float maxHeight = pageHeight / 72f * dpi;
+            return Math.min(1f, Math.min(maxWidth / image.getWidth(), maxHeight / image.getHeight()));
+        }
+
+        /**
+         * Swap the stream contents for the JPEG if it is smaller; every page
+         * and form that refers to the image picks up the change.
+         */
+        boolean replaceWith(Encoded encoded) throws Exception {
+            COSStream stream = image.getCOSObject();
+            if (encoded.jpeg.length >= stream.getLength()) {
+                return false;
+            }
+            try (OutputStream out = stream.createRawOutputStream()) {
+                out.write(encoded.jpeg);
+            }
+            stream.setItem(COSName.FILTER, COSName.DCT_DECODE);
+            stream.setInt(COSName.WIDTH, encoded.width);
+            stream.setInt(COSName.HEIGHT, encoded.height);
+            stream.setInt(COSName.BITS_PER_COMPONENT, 8);
+            stream.setItem(COSName.COLORSPACE, encoded.gray ? COSName.DEVICEGRAY : COSName.DEVICERGB);
+            stream.removeItem(COSName.DECODE_PARMS);
+            stream.removeItem(COSName.DECODE);
+            return true;
+        }
+    }
+}
@@ -1,51 +1,95 @@
 package com.exim.signer;
 
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.ExternalSigningSupport;
 import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
-import org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureInterface;
-import org.bouncycastle.cert.jcajce.JcaCertStore;
-import org.bouncycastle.cms.*;
-import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
-import org.bouncycastle.operator.ContentSigner;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 
 import java.io.*;
-import java.security.*;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
 import java.util.Calendar;
 
 /**
  * Service for signing PDF files with embedded PAdES signatures.
  * Compatible with ICEGATE e-Sanchit portal requirements.
+ *
+ * Uses PDFBox external signing: the ByteRange content is hashed here as it
+ * streams, and only the resulting digest goes to DscService, so memory use
+ * per document does not grow with its size.
+ *
+ * The service holds no per-document state, so several threads may sign with
+ * it at once. Callers that serialize token access themselves (the signing
+ * server) pass a DigestSigner, which then is the only step that touches the
+ * token; loading, hashing and saving stay on the calling thread.
  */
-public class PdfSignerService implements SignatureInterface {
+public class PdfSignerService {
 
-    private DscService dscService;
-    private Certificate[] certificateChain;
-    private Provider pkcs11Provider;
+    /**
+     * The private-key step: detached CMS for a 32-byte SHA-256 of the
+     * ByteRange content. Must refuse to sign if the key's certificate no
+     * longer has the fingerprint of the one named in the signature.
+     */
+    public interface DigestSigner {
+        byte[] sign(byte[] sha256ContentDigest, String certificateFingerprint) throws Exception;
+    }
+
+    /**
+     * What initialize() read from the login, published as one value so
+     * request threads never see a certificate from one login and a
+     * DscService from another.
+     */
+    private static final class Credentials {
+        final DscService dscService;
+        final X509Certificate certificate;
+        final String fingerprint;
+
+        Credentials(DscService dscService, X509Certificate certificate) throws Exception {
+            this.dscService = dscService;
+            this.certificate = certificate;
+            this.fingerprint = SbEnvelope.fingerprint(certificate);
+        }
+    }
+
+    private volatile Credentials credentials;
+    private volatile PdfMemoryPolicy memoryPolicy = PdfMemoryPolicy.unbounded();
+    private volatile PdfOptimizer optimizer;
+    private volatile SignatureAppearance appearance;
 
     /**
      * Initialize the PDF signer with credentials from DscService.
      */
     public void initialize(DscService dscService) throws Exception {
-        this.dscService = dscService;
-        this.certificateChain = dscService.getKeyStore().getCertificateChain(dscService.getAlias());
-        this.pkcs11Provider = dscService.getProvider();
-
-        if (certificateChain == null || certificateChain.length == 0) {
-            Certificate cert = dscService.getCertificate();
-            if (cert != null) {
-                certificateChain = new Certificate[]{cert};
-            } else {
-                throw new Exception("Certificate chain not found for alias: " + dscService.getAlias());
-            }
-        }
+        // Resolved (or taken from the local cache) once at login
+        Certificate[] certificateChain = dscService.getCertificateChain();
+        Credentials initialized = new Credentials(dscService, (X509Certificate) certificateChain[0]);
+        this.credentials = initialized;
 
         System.out.println("PdfSignerService initialized with certificate: " +
-                ((X509Certificate) certificateChain[0]).getSubjectX500Principal().getName());
+                initialized.certificate.getSubjectX500Principal().getName());
+    }
+
+    /**
+     * Where documents are held while signing and how many may be open at
+     * once. Defaults to PDFBox's in-memory loading without a limit.
+     */
+    public void setMemoryPolicy(PdfMemoryPolicy memoryPolicy) {
+        this.memoryPolicy = memoryPolicy != null ? memoryPolicy : PdfMemoryPolicy.unbounded();
+    }
+
+    /**
+     * Optional size optimization applied before signing; null (the default)
+     * signs documents as they arrive.
+     */
+    public void setOptimizer(PdfOptimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    /**
+     * Visible signature block added to each signature; null (the default)
+     * produces invisible signatures.
+     */
+    public void setAppearance(SignatureAppearance appearance) {
+        this.appearance = appearance;
     }
 
     /**
@@ -57,76 +101,141 @@ public class PdfSignerService implements SignatureInterface {
      * @param location   Signing location (e.g., "India")
      */
     public void signPdf(File inputFile, File outputFile, String reason, String location) throws Exception {
-        try (PDDocument document = PDDocument.load(inputFile);
-                FileOutputStream fos = new FileOutputStream(outputFile)) {
-
-            // Create signature dictionary
-            PDSignature signature = new PDSignature();
-            signature.setFilter(PDSignature.FILTER_ADOBE_PPKLITE);
-            signature.setSubFilter(PDSignature.SUBFILTER_ADBE_PKCS7_DETACHED);
-            signature.setName(((X509Certificate) certificateChain[0]).getSubjectX500Principal().getName());
-            signature.setLocation(location);
-            signature.setReason(reason);
-            signature.setSignDate(Calendar.getInstance());
-
-            // Register signature dictionary and sign interface
-            document.addSignature(signature, this);
+        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
+            signPdf(inputFile, fos, reason, location);
+        }
+        System.out.println("PDF signed successfully: " + outputFile.getAbsolutePath());
+    }
 
-            // Save and sign
-            document.saveIncremental(fos);
+    /**
+     * Sign a PDF file and write the signed document to a stream.
+     */
+    public void signPdf(File inputFile, OutputStream output, String reason, String location) throws Exception {
+        signPdf(inputFile, output, reason, location, null, requireCredentials().dscService::signPKCS7DetachedDigest);
+    }
 
-            System.out.println("PDF signed successfully: " + outputFile.getAbsolutePath());
+    /**
+     * Sign a PDF file with the CMS produced by the given token step.
+     *
+     * @param position where to put the visible signature, null for the
+     *                 configured default (ignored without an appearance)
+     * @return what the optimizer saved, or null if the document was not
+     *         optimized
+     */
+    public PdfOptimizer.Report signPdf(File inputFile, OutputStream output, String reason, String location,
+            SignatureAppearance.Position position, DigestSigner digestSigner) throws Exception {
+        SignerMetrics.get().pdfSize.observe(inputFile.length());
+        PdfMemoryPolicy policy = memoryPolicy;
+        PdfMemoryPolicy.Permit permit = policy.acquire();
+        try (PDDocument document = policy.load(inputFile)) {
+            return optimizeAndSign(document, inputFile.length(), policy, output, reason, location, position,
+                    digestSigner);
+        } finally {
+            permit.close();
         }
     }
 
     /**
-     * SignatureInterface implementation - called by PDFBox to create the signature.
+     * Sign a PDF read from a stream (e.g. an HTTP upload) and write the signed
+     * document to a stream, without touching the disk.
      */
-    @Override
-    public byte[] sign(InputStream content) throws IOException {
-        try {
-            // Read all content to be signed
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = content.read(buffer)) != -1) {
-                baos.write(buffer, 0, bytesRead);
-            }
-            byte[] dataToSign = baos.toByteArray();
-
-            // Create CMS Signed Data (PKCS#7)
-            CMSTypedData cmsData = new CMSProcessableByteArray(dataToSign);
+    public void signPdf(InputStream input, OutputStream output, String reason, String location) throws Exception {
+        signPdf(input, output, reason, location, null, requireCredentials().dscService::signPKCS7DetachedDigest);
+    }
 
-            // Build certificate store
-            JcaCertStore certStore = new JcaCertStore(Arrays.asList(certificateChain));
+    /**
+     * Sign a PDF read from a stream with the CMS produced by the given token
+     * step.
+     *
+     * @param position where to put the visible signature, null for the
+     *                 configured default (ignored without an appearance)
+     * @return what the optimizer saved, or null if the document was not
+     *         optimized
+     */
+    public PdfOptimizer.Report signPdf(InputStream input, OutputStream output, String reason, String location,
+            SignatureAppearance.Position position, DigestSigner digestSigner) throws Exception {
+        SignerMetrics.CountingInputStream counted = new SignerMetrics.CountingInputStream(input, null);
+        PdfMemoryPolicy policy = memoryPolicy;
+        PdfMemoryPolicy.Permit permit = policy.acquire();
+        try (PDDocument document = policy.load(counted)) {
+            SignerMetrics.get().pdfSize.observe(counted.getCount());
+            return optimizeAndSign(document, counted.getCount(), policy, output, reason, location, position,
+                    digestSigner);
+        } finally {
+            permit.close();
+        }
+    }
 
-            // Create signer info
-            ContentSigner contentSigner;
-            PrivateKey freshKey = dscService.getFreshPrivateKey();
+    /**
+     * Run the optimizer, if any, and sign the rewritten document; the
+     * signature always covers the optimized bytes.
+     */
+    private PdfOptimizer.Report optimizeAndSign(PDDocument document, long originalBytes, PdfMemoryPolicy policy,
+            OutputStream output, String reason, String location, SignatureAppearance.Position position,
+            DigestSigner digestSigner) throws Exception {
+        PdfOptimizer current = optimizer;
+        if (current == null || !current.canOptimize(document)) {
+            signDocument(document, output, reason, location, position, digestSigner);
+            return null;
+        }
 
-            if (pkcs11Provider != null) {
-                contentSigner = new JcaContentSignerBuilder("SHA256withRSA")
-                        .setProvider(pkcs11Provider)
-                        .build(freshKey);
-            } else {
-                contentSigner = new JcaContentSignerBuilder("SHA256withRSA")
-                        .build(freshKey);
+        SpillableBuffer optimized = new SpillableBuffer(policy.getScratchThreshold(), "optimized-");
+        try {
+            PdfOptimizer.Report report = current.optimize(document, originalBytes, optimized);
+            try (PDDocument rewritten = optimized.isSpilled() ? policy.load(optimized.getFile())
+                    : policy.load(optimized.openInputStream())) {
+                signDocument(rewritten, output, reason, location, position, digestSigner);
             }
+            SignerMetrics.get().pdfOptimizedBytesSaved.add(Math.max(0, report.getSavedBytes()));
+            System.out.println("📉 PDF optimized: " + report.getOriginalBytes() + " -> " + report.getOptimizedBytes()
+                    + " bytes (" + report.getImagesRecompressed() + " images recompressed, "
+                    + report.getDuplicatesRemoved() + " duplicates removed)");
+            return report;
+        } finally {
+            optimized.delete();
+        }
+    }
 
-            CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
-            generator.addSignerInfoGenerator(
-                    new JcaSignerInfoGeneratorBuilder(
-                            new JcaDigestCalculatorProviderBuilder().build())
-                            .build(contentSigner, (X509Certificate) certificateChain[0]));
-            generator.addCertificates(certStore);
-
-            // Generate signed data (detached = false for embedded signature)
-            CMSSignedData signedData = generator.generate(cmsData, false);
+    private void signDocument(PDDocument document, OutputStream output, String reason, String location,
+            SignatureAppearance.Position position, DigestSigner digestSigner) throws Exception {
+        SignerMetrics.get().pdfPages.observe(document.getNumberOfPages());
+        Credentials signer = requireCredentials();
+
+        // Create signature dictionary
+        PDSignature signature = new PDSignature();
+        signature.setFilter(PDSignature.FILTER_ADOBE_PPKLITE);
+        signature.setSubFilter(PDSignature.SUBFILTER_ADBE_PKCS7_DETACHED);
+        X509Certificate certificate = signer.certificate;
+        signature.setName(certificate.getSubjectX500Principal().getName());
+        signature.setLocation(location);
+        signature.setReason(reason);
+        Calendar signDate = Calendar.getInstance();
+        signature.setSignDate(signDate);
+
+        // Register signature dictionary; the signature is supplied externally.
+        // With an appearance it goes into a visible field built from the
+        // certificate's cached template.
+        SignatureAppearance currentAppearance = appearance;
+        if (currentAppearance != null) {
+            currentAppearance.addSignature(document, signature, certificate, position, signDate);
+        } else {
+            document.addSignature(signature);
+        }
 
-            return signedData.getEncoded();
+        // Write the incremental update, hash the ByteRange and fill in /Contents
+        ExternalSigningSupport externalSigning = document.saveIncrementalForExternalSigning(output);
+        byte[] contentDigest;
+        try (InputStream content = externalSigning.getContent()) {
+            contentDigest = CmsSigner.sha256(content);
+        }
+        externalSigning.setSignature(digestSigner.sign(contentDigest, signer.fingerprint));
+    }
 
-        } catch (Exception e) {
-            throw new IOException("Error signing PDF content: " + e.getMessage(), e);
+    private Credentials requireCredentials() throws Exception {
+        Credentials current = credentials;
+        if (current == null) {
+            throw new Exception("PdfSignerService not initialized. Call initialize() first.");
         }
+        return current;
     }
 }
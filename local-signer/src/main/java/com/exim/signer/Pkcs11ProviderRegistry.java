@@ -0,0 +1,169 @@
+package com.exim.signer;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide registry of configured SunPKCS11 providers, one per PKCS#11
+ * library and slot.
+ *
+ * Configuring a provider loads the native library and enumerates the token,
+ * and every instance stays in the JCA provider list. A re-login therefore
+ * reuses the provider for the same library/slot (costing only C_Login), and
+ * providers nobody references any more are removed from the JCA list.
+ *
+ * References are counted per owner (the DscService logging in). PKCS#11 login
+ * state belongs to the library, not to one KeyStore, so a logout on behalf of
+ * one owner would end the session of every other owner of the same provider.
+ */
+public final class Pkcs11ProviderRegistry {
+
+    private static final Pkcs11ProviderRegistry INSTANCE = new Pkcs11ProviderRegistry();
+
+    private final Map<String, Entry> providers = new HashMap<>();
+
+    private Pkcs11ProviderRegistry() {
+    }
+
+    public static Pkcs11ProviderRegistry get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Provider for the library and slot, configured on first use. Each call
+     * must be balanced by {@link #release(Object, Provider)}.
+     *
+     * @param owner who holds the reference
+     * @param name  config name for a newly configured provider; an existing
+     *              provider keeps the name it was created with
+     */
+    public synchronized Provider acquire(Object owner, String name, String libraryPath, int slotListIndex)
+            throws Exception {
+        String key = key(libraryPath, slotListIndex);
+        Entry entry = providers.get(key);
+        if (entry == null) {
+            entry = new Entry(configure(name, libraryPath, slotListIndex));
+            providers.put(key, entry);
+        }
+        entry.references.merge(owner, 1, Integer::sum);
+        return entry.provider;
+    }
+
+    /**
+     * True if a provider for the library and slot is already configured, i.e.
+     * the next acquire reuses it.
+     */
+    public synchronized boolean isConfigured(String libraryPath, int slotListIndex) {
+        return providers.containsKey(key(libraryPath, slotListIndex));
+    }
+
+    /**
+     * True if an owner other than the given one holds the provider, i.e. it
+     * must stay logged in.
+     */
+    public synchronized boolean isHeldByOthers(Provider provider, Object owner) {
+        Map.Entry<String, Entry> found = find(provider);
+        if (found == null) {
+            return false;
+        }
+        Map<Object, Integer> references = found.getValue().references;
+        return references.size() > (references.containsKey(owner) ? 1 : 0);
+    }
+
+    /**
+     * Drop one of the owner's references; the last one overall removes the
+     * provider from the JCA list.
+     */
+    public synchronized void release(Object owner, Provider provider) {
+        Map.Entry<String, Entry> found = find(provider);
+        if (found == null) {
+            return;
+        }
+        Map<Object, Integer> references = found.getValue().references;
+        references.computeIfPresent(owner, (o, count) -> count > 1 ? count - 1 : null);
+        if (references.isEmpty()) {
+            remove(found.getKey(), found.getValue());
+        }
+    }
+
+    /**
+     * Forget a provider that no longer works (e.g. the token was replugged),
+     * whoever else still references it; the next acquire configures a new one.
+     */
+    public synchronized void discard(Provider provider) {
+        Map.Entry<String, Entry> found = find(provider);
+        if (found != null) {
+            remove(found.getKey(), found.getValue());
+        }
+    }
+
+    public synchronized int size() {
+        return providers.size();
+    }
+
+    private Map.Entry<String, Entry> find(Provider provider) {
+        for (Map.Entry<String, Entry> entry : providers.entrySet()) {
+            if (entry.getValue().provider == provider) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void remove(String key, Entry entry) {
+        providers.remove(key);
+        Security.removeProvider(entry.provider.getName());
+        System.out.println("ℹ Removed PKCS#11 provider " + entry.provider.getName());
+    }
+
+    private Provider configure(String name, String libraryPath, int slotListIndex) throws Exception {
+        Provider baseProvider = Security.getProvider("SunPKCS11");
+        if (baseProvider == null) {
+            throw new Exception("SunPKCS11 provider not found. Use Oracle JDK / OpenJDK standard build.");
+        }
+
+        // Provider names must be unique in the JCA list
+        String configName = name;
+        for (int i = 2; Security.getProvider("SunPKCS11-" + configName) != null || nameInUse(configName); i++) {
+            configName = name + "-" + i;
+        }
+
+        // Escape Windows path for PKCS11 config; "--" passes the config inline
+        String config = "--name=" + configName + "\n"
+                + "library=" + libraryPath.replace("\\", "\\\\") + "\n";
+        if (slotListIndex >= 0) {
+            config += "slotListIndex=" + slotListIndex + "\n";
+        }
+
+        Provider provider = baseProvider.configure(config);
+        Security.addProvider(provider);
+        System.out.println("ℹ Configured PKCS#11 provider " + provider.getName() + " for " + libraryPath
+                + (slotListIndex >= 0 ? " slot " + slotListIndex : ""));
+        return provider;
+    }
+
+    private boolean nameInUse(String configName) {
+        for (Entry entry : providers.values()) {
+            if (entry.provider.getName().equals("SunPKCS11-" + configName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String key(String libraryPath, int slotListIndex) {
+        return libraryPath.trim() + "#" + Math.max(-1, slotListIndex);
+    }
+
+    private static final class Entry {
+        final Provider provider;
+        final Map<Object, Integer> references = new IdentityHashMap<>();
+
+        Entry(Provider provider) {
+            this.provider = provider;
+        }
+    }
+}
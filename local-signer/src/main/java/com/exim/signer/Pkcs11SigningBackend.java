@@ -0,0 +1,242 @@
+package com.exim.signer;
+
+import java.security.AuthProvider;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import javax.security.auth.login.LoginException;
+
+/**
+ * DSC token behind a PKCS#11 library (e.g. the token vendor's DLL), through
+ * the SunPKCS11 provider.
+ */
+public class Pkcs11SigningBackend extends KeyStoreSigningBackend {
+
+    private static final byte[] SELF_CHECK_DATA = "ICEGATE host hashing self-check".getBytes();
+
+    private final Object owner;
+    private final String tokenName;
+    private final String dllPath;
+    private final int slotListIndex;
+    private final boolean hostHashingRequested;
+    private final CertificateChainCache certificateCache;
+    private boolean providerHeld;
+
+    /**
+     * @param owner                holder of the provider reference (the
+     *                             DscService); its own earlier logins do not
+     *                             keep the provider from logging out
+     * @param tokenName            name for logs and for the SunPKCS11 provider
+     *                             if this login configures a new one
+     * @param slotListIndex        slot of the library; negative lets SunPKCS11
+     *                             pick the first slot
+     * @param hostHashingRequested try NONEwithRSA with host-side SHA-1 (checked
+     *                             at login)
+     * @param certificateCache     alias and chain cache, or null
+     */
+    public Pkcs11SigningBackend(Object owner, String tokenName, String dllPath, int slotListIndex,
+            long probeIntervalMillis, boolean hostHashingRequested, CertificateChainCache certificateCache) {
+        super(probeIntervalMillis);
+        this.owner = owner;
+        this.tokenName = tokenName;
+        this.dllPath = dllPath;
+        this.slotListIndex = slotListIndex;
+        this.hostHashingRequested = hostHashingRequested;
+        this.certificateCache = certificateCache;
+    }
+
+    @Override
+    public String getType() {
+        return "pkcs11";
+    }
+
+    @Override
+    public void login(char[] pin) throws Exception {
+        if (dllPath == null || dllPath.trim().isEmpty()) {
+            throw new Exception("DLL Path cannot be empty.");
+        }
+
+        // Re-logins to the same library/slot reuse the configured provider
+        Pkcs11ProviderRegistry registry = Pkcs11ProviderRegistry.get();
+        boolean reused = registry.isConfigured(dllPath, slotListIndex);
+        provider = registry.acquire(owner, tokenName, dllPath, slotListIndex);
+        providerHeld = true;
+
+        try {
+            loadKeyStore(pin, reused);
+        } catch (Exception e) {
+            if (!reused || isLoginFailure(e)) {
+                throw e;
+            }
+            // The provider from the last login went stale (e.g. token replugged)
+            System.err.println("⚠ Reconfiguring PKCS#11 provider for " + tokenName + ": " + e.getMessage());
+            registry.discard(provider);
+            provider = registry.acquire(owner, tokenName, dllPath, slotListIndex);
+            loadKeyStore(pin, false);
+        }
+
+        final KeyStore loggedIn = keyStore;
+        resolveSigningChain(pin, () -> loggedIn.load(null, pin));
+
+        hostHashing = hostHashingRequested && checkHostHashing();
+
+        if (reused) {
+            System.out.println("ℹ Reused PKCS#11 provider " + provider.getName());
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (providerHeld) {
+            providerHeld = false;
+            Pkcs11ProviderRegistry.get().release(owner, provider);
+        }
+    }
+
+    /**
+     * C_Login through a fresh KeyStore on the current provider. On a reused
+     * provider the previous login is closed first, so the PIN is checked
+     * again, unless another signer still uses the provider: logging out would
+     * end its session too, and the token simply stays logged in.
+     */
+    private void loadKeyStore(char[] pin, boolean relogin) throws Exception {
+        if (relogin && Pkcs11ProviderRegistry.get().isHeldByOthers(provider, owner)) {
+            System.out.println("ℹ PKCS#11 provider " + provider.getName()
+                    + " is in use by another signer; keeping its login");
+        } else if (relogin && provider instanceof AuthProvider) {
+            try {
+                ((AuthProvider) provider).logout();
+            } catch (Exception e) {
+                // Not logged in any more; the load below logs in again
+            }
+        }
+        keyStore = KeyStore.getInstance("PKCS11", provider);
+        keyStore.load(null, pin);
+    }
+
+    /**
+     * Wrong or locked PIN; retrying would only use up PIN attempts.
+     */
+    private static boolean isLoginFailure(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof LoginException
+                    || (t.getMessage() != null && t.getMessage().contains("CKR_PIN"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens the alias and chain, from the local cache when its leaf
+     * certificate still matches the token (one query) and otherwise by
+     * walking the token's aliases.
+     */
+    private void resolveSigningChain(char[] pin, TokenSession.Login relogin) throws Exception {
+        String serial = getTokenSerial();
+        String tokenKey = serial != null ? "serial." + serial : "slot." + dllPath.trim() + "#" + slotListIndex;
+
+        CertificateChainCache.Entry cached = certificateCache != null ? certificateCache.load(tokenKey) : null;
+        if (cached != null) {
+            X509Certificate[] chain = cached.getChain();
+            Certificate onToken = keyStore.isKeyEntry(cached.getAlias()) ? keyStore.getCertificate(cached.getAlias())
+                    : null;
+            if (onToken != null && Arrays.equals(onToken.getEncoded(), chain[0].getEncoded())) {
+                System.out.println("✔ Using cached signing alias: " + cached.getAlias());
+                open(cached.getAlias(), chain, pin, relogin);
+                return;
+            }
+            System.out.println("ℹ Cached signing alias for " + tokenName + " no longer matches the token");
+            certificateCache.remove(tokenKey);
+        }
+
+        // Select best signing alias
+        String alias = findSigningAlias();
+
+        if (alias == null) {
+            throw new Exception("No valid signing certificate found in token.");
+        }
+
+        X509Certificate[] chain = readCertificateChain(alias);
+        if (certificateCache != null) {
+            certificateCache.store(tokenKey, alias, chain);
+        }
+        open(alias, chain, pin, relogin);
+    }
+
+    /**
+     * Sign a fixed probe both ways; PKCS#1 v1.5 is deterministic, so the two
+     * signatures must be byte-identical.
+     */
+    private boolean checkHostHashing() {
+        try {
+            return requireSession().withKey(privateKey -> {
+                byte[] onToken = sha1WithRsa(provider, privateKey, SELF_CHECK_DATA, 0,
+                        SELF_CHECK_DATA.length, false);
+                byte[] onHost = sha1WithRsa(provider, privateKey, SELF_CHECK_DATA, 0,
+                        SELF_CHECK_DATA.length, true);
+                if (!Arrays.equals(onToken, onHost)) {
+                    System.err.println("⚠ Host hashing disabled: NONEwithRSA signature differs from SHA1withRSA");
+                    return false;
+                }
+                System.out.println("✅ Host hashing enabled (SHA-1 on host, raw RSA on token)");
+                return true;
+            });
+        } catch (Exception e) {
+            System.err.println("⚠ Host hashing disabled: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Maximum number of sessions the token reports (ulMaxSessionCount), 0 if it
+     * reports no limit, or -1 if unknown. SunPKCS11 does not expose the token
+     * info publicly, so this needs
+     * --add-opens jdk.crypto.cryptoki/sun.security.pkcs11=ALL-UNNAMED and
+     * returns -1 without it.
+     */
+    @Override
+    public long getMaxSessionCount() {
+        try {
+            Object tokenInfo = getTokenInfo();
+            long max = tokenInfo.getClass().getField("ulMaxSessionCount").getLong(tokenInfo);
+            // CK_UNAVAILABLE_INFORMATION is ~0
+            return max < 0 ? -1 : max;
+        } catch (Exception | LinkageError e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Serial number from the token's CK_TOKEN_INFO, or null if the provider
+     * does not expose it.
+     */
+    public String getTokenSerial() {
+        try {
+            Object tokenInfo = getTokenInfo();
+            String serial = new String((char[]) tokenInfo.getClass().getField("serialNumber").get(tokenInfo)).trim();
+            return serial.isEmpty() ? null : serial;
+        } catch (Exception | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * CK_TOKEN_INFO of the SunPKCS11 token; not part of the public API, so
+     * callers treat any failure as "unknown".
+     */
+    private Object getTokenInfo() throws Exception {
+        if (provider == null) {
+            throw new Exception("DSC not initialized. Call login() first.");
+        }
+        java.lang.reflect.Method getToken = provider.getClass().getDeclaredMethod("getToken");
+        getToken.setAccessible(true);
+        Object token = getToken.invoke(provider);
+        java.lang.reflect.Field tokenInfoField = token.getClass().getDeclaredField("tokenInfo");
+        tokenInfoField.setAccessible(true);
+        return tokenInfoField.get(token);
+    }
+}
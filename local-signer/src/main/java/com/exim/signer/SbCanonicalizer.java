@@ -0,0 +1,121 @@
+package com.exim.signer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Byte-level canonical form of an ICEGATE flat-file payload.
+ *
+ * The signed payload is the file with trailing whitespace removed, exactly as
+ * new String(bytes, ISO-8859-1).stripTrailing() would produce it. Working on
+ * the raw bytes avoids the String round trip and the extra copies it made: the
+ * cut offset is found with one backwards scan, the digest is computed over
+ * [off, off + cut) in place, and SbEnvelope writes the same range to the file.
+ */
+public final class SbCanonicalizer {
+
+    private SbCanonicalizer() {
+    }
+
+    /**
+     * Canonical length and SHA-256 of a payload read from a stream.
+     */
+    public static final class StreamDigest {
+        private final long length;
+        private final byte[] digest;
+
+        StreamDigest(long length, byte[] digest) {
+            this.length = length;
+            this.digest = digest;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public byte[] getDigest() {
+            return digest;
+        }
+    }
+
+    /**
+     * Length of data[off, off+len) without trailing whitespace.
+     */
+    public static int canonicalLength(byte[] data, int off, int len) {
+        int end = off + len;
+        while (end > off && isWhitespace(data[end - 1])) {
+            end--;
+        }
+        return end - off;
+    }
+
+    public static int canonicalLength(byte[] data) {
+        return canonicalLength(data, 0, data.length);
+    }
+
+    /**
+     * SHA-256 of data[off, off+len); the input the token signs for a .sb file.
+     */
+    public static byte[] digest(byte[] data, int off, int len) throws Exception {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        sha256.update(data, off, len);
+        return sha256.digest();
+    }
+
+    /**
+     * Canonical length and digest of a whole stream in one pass, for payloads
+     * that are not on the heap. A run of whitespace is only hashed once a
+     * non-whitespace byte follows it, so the trailing run never is.
+     */
+    public static StreamDigest digest(InputStream in) throws Exception {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        byte[] buf = new byte[64 * 1024];
+        PendingWhitespace pending = new PendingWhitespace();
+        long length = 0;
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            int cut = canonicalLength(buf, 0, n);
+            if (cut > 0) {
+                pending.flushTo(sha256);
+                sha256.update(buf, 0, cut);
+                length += pending.size + cut;
+                pending.size = 0;
+            }
+            pending.append(buf, cut, n - cut);
+        }
+        return new StreamDigest(length, sha256.digest());
+    }
+
+    /**
+     * Whitespace read but not hashed yet.
+     */
+    private static final class PendingWhitespace {
+        private byte[] data = new byte[256];
+        private int size;
+
+        void append(byte[] b, int off, int len) throws IOException {
+            if (size + len > data.length) {
+                long grown = Math.max((long) data.length * 2, (long) size + len);
+                if (grown > Integer.MAX_VALUE - 8) {
+                    throw new IOException("Flat file has too much trailing whitespace");
+                }
+                data = java.util.Arrays.copyOf(data, (int) grown);
+            }
+            System.arraycopy(b, off, data, size, len);
+            size += len;
+        }
+
+        void flushTo(MessageDigest digest) {
+            digest.update(data, 0, size);
+        }
+    }
+
+    /**
+     * Character.isWhitespace for a Latin-1 byte: HT, LF, VT, FF, CR, the
+     * FS/GS/RS/US separators and space. NBSP (0xA0) is not whitespace.
+     */
+    static boolean isWhitespace(byte b) {
+        return (b >= 0x09 && b <= 0x0D) || (b >= 0x1C && b <= 0x20);
+    }
+}
@@ -0,0 +1,122 @@
+package com.exim.signer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+
+/**
+ * Writer for the ICEGATE V-NCODE signed flat-file (.sb) layout:
+ *
+ * <pre>
+ * payload\n
+ * &lt;START-SIGNATURE&gt;base64&lt;/START-SIGNATURE&gt;\n
+ * &lt;START-CERTIFICATE&gt;base64&lt;/START-CERTIFICATE&gt;\n
+ * &lt;SIGNER-VERSION&gt;V-NCODE_01.05.2013&lt;/SIGNER-VERSION&gt;
+ * </pre>
+ *
+ * Everything after the signature depends only on the certificate, so it is
+ * encoded once per login. An envelope is immutable and bound to one
+ * certificate; DscService builds a new one whenever the certificate changes.
+ */
+public final class SbEnvelope {
+
+    public static final String SIGNER_VERSION = "V-NCODE_01.05.2013";
+
+    private static final byte[] SIGNATURE_OPEN = ascii("<START-SIGNATURE>");
+
+    private final String certificateBase64;
+    private final String fingerprint;
+    private final byte[] trailer;
+
+    public SbEnvelope(X509Certificate certificate) throws Exception {
+        byte[] der = certificate.getEncoded();
+        this.certificateBase64 = Base64.getEncoder().encodeToString(der);
+        this.fingerprint = fingerprint(der);
+        this.trailer = ascii("</START-SIGNATURE>\n"
+                + "<START-CERTIFICATE>" + certificateBase64 + "</START-CERTIFICATE>\n"
+                + "<SIGNER-VERSION>" + SIGNER_VERSION + "</SIGNER-VERSION>");
+    }
+
+    /**
+     * Write payload[off, off+len), a LF, the signature block and the cached
+     * certificate/version trailer.
+     */
+    public void write(OutputStream out, byte[] payload, int off, int len, byte[] signature) throws IOException {
+        out.write(payload, off, len);
+        out.write('\n');
+        out.write(SIGNATURE_OPEN);
+        out.write(Base64.getEncoder().encode(signature));
+        out.write(trailer);
+    }
+
+    /**
+     * Like write(OutputStream, byte[], int, int, byte[]) for a payload that is
+     * not on the heap: copies the first len bytes of payload.
+     */
+    public void write(OutputStream out, InputStream payload, long len, byte[] signature) throws IOException {
+        byte[] buf = new byte[(int) Math.min(64 * 1024, Math.max(1, len))];
+        long remaining = len;
+        while (remaining > 0) {
+            int n = payload.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (n < 0) {
+                throw new EOFException("Payload ended " + remaining + " bytes early");
+            }
+            out.write(buf, 0, n);
+            remaining -= n;
+        }
+        out.write('\n');
+        out.write(SIGNATURE_OPEN);
+        out.write(Base64.getEncoder().encode(signature));
+        out.write(trailer);
+    }
+
+    /**
+     * The complete signed file in an exactly sized array.
+     */
+    public byte[] toByteArray(byte[] payload, int off, int len, byte[] signature) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) signedLength(len, signature.length));
+        write(out, payload, off, len, signature);
+        return out.toByteArray();
+    }
+
+    /**
+     * Size of the signed file for a payload of the given length.
+     */
+    public long signedLength(long payloadLength, int signatureLength) {
+        int base64Length = 4 * ((signatureLength + 2) / 3);
+        return payloadLength + 1 + SIGNATURE_OPEN.length + base64Length + trailer.length;
+    }
+
+    public String getCertificateBase64() {
+        return certificateBase64;
+    }
+
+    /**
+     * Hex SHA-256 fingerprint of a certificate, as used for cache keys and
+     * certificate-change checks.
+     */
+    public static String fingerprint(X509Certificate certificate) throws Exception {
+        return fingerprint(certificate.getEncoded());
+    }
+
+    private static String fingerprint(byte[] der) throws Exception {
+        return SignatureCache.toHex(MessageDigest.getInstance("SHA-256").digest(der));
+    }
+
+    /**
+     * Hex SHA-256 fingerprint of the certificate DER.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
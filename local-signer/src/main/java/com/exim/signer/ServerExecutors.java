@@ -0,0 +1,70 @@
+package com.exim.signer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the request executors for the HTTP and HTTPS servers.
+ *
+ * Modes: "virtual" (one virtual thread per request, JDK 21+), "pool" (fixed
+ * platform thread pool) and "auto" (virtual when the runtime supports it,
+ * otherwise pool). The project still targets Java 11, so virtual threads are
+ * looked up reflectively.
+ */
+public final class ServerExecutors {
+
+    public static final String MODE_AUTO = "auto";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_POOL = "pool";
+    public static final int DEFAULT_POOL_SIZE = 16;
+
+    private ServerExecutors() {
+    }
+
+    public static ExecutorService create(String name, String mode, int poolSize) {
+        String selected = mode == null ? MODE_AUTO : mode.trim().toLowerCase(java.util.Locale.ROOT);
+
+        if (MODE_VIRTUAL.equals(selected) || MODE_AUTO.equals(selected)) {
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) {
+                System.out.println("✅ " + name + " executor: virtual thread per request");
+                return virtual;
+            }
+            if (MODE_VIRTUAL.equals(selected)) {
+                System.err.println("⚠ Virtual threads need JDK 21+ (running " + System.getProperty("java.version")
+                        + "), falling back to a pool of " + poolSize);
+            }
+        } else if (!MODE_POOL.equals(selected)) {
+            System.err.println("⚠ Unknown executor mode '" + mode + "', using a pool of " + poolSize);
+        }
+
+        System.out.println("✅ " + name + " executor: fixed pool of " + poolSize + " threads");
+        return Executors.newFixedThreadPool(Math.max(1, poolSize), new NamedThreadFactory(name));
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, prefix + "-" + counter.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package com.exim.signer;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationWidget;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceDictionary;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceStream;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.pdmodel.interactive.form.PDSignatureField;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+/**
+ * Visible signature block for PAdES signatures: "Digitally signed by" with
+ * the signer's name and the signing date.
+ *
+ * Everything except the date is built once per certificate into a small
+ * template: a form XObject holding the static text and, with a TrueType font,
+ * the embedded font subset, which already includes the date's glyphs. The
+ * template is kept as parsed COS objects with the stream bytes alongside, so
+ * each signature only copies that form into its document (no parsing) and
+ * writes a tiny appearance stream that draws it plus the date at the
+ * requested position.
+ */
+public class SignatureAppearance {
+
+    public static final float DEFAULT_WIDTH = 200;
+    public static final float DEFAULT_HEIGHT = 50;
+
+    private static final String DATE_PATTERN = "yyyy.MM.dd HH:mm:ss XXX";
+    private static final String DATE_GLYPHS = "0123456789.:+-Z ";
+    private static final float MARGIN = 4;
+    private static final float LABEL_SIZE = 7;
+    private static final float NAME_SIZE = 10;
+    private static final float DATE_SIZE = 7;
+
+    /**
+     * Where the block goes: page index (negative counts from the end, -1 is
+     * the last page) and lower-left corner in points.
+     */
+    public static final class Position {
+        private final int page;
+        private final float x;
+        private final float y;
+
+        public Position(int page, float x, float y) {
+            this.page = page;
+            this.x = x;
+            this.y = y;
+        }
+
+        public int getPage() {
+            return page;
+        }
+
+        public float getX() {
+            return x;
+        }
+
+        public float getY() {
+            return y;
+        }
+    }
+
+    /**
+     * The per-certificate part: the form XObject (its dictionaries detached
+     * from any document, each stream stored as a dictionary plus its encoded
+     * bytes), the font resource name in it, where the date goes and the date
+     * characters already encoded for that font. Never modified once built,
+     * so signatures on several threads copy it at the same time.
+     */
+    private static final class Template {
+        final COSDictionary form;
+        final Map<COSDictionary, byte[]> streams;
+        final String fontName;
+        final float dateX;
+        final float dateY;
+        final Map<Character, byte[]> glyphs;
+
+        Template(COSDictionary form, Map<COSDictionary, byte[]> streams, String fontName, float dateX, float dateY,
+                Map<Character, byte[]> glyphs) {
+            this.form = form;
+            this.streams = streams;
+            this.fontName = fontName;
+            this.dateX = dateX;
+            this.dateY = dateY;
+            this.glyphs = glyphs;
+        }
+    }
+
+    private final File fontFile;
+    private final float width;
+    private final float height;
+    private final Position defaultPosition;
+    private final Map<String, Template> templates = new ConcurrentHashMap<>();
+
+    /**
+     * @param fontFile TrueType font to embed (subset), or null for Helvetica
+     */
+    public SignatureAppearance(File fontFile, float width, float height, Position defaultPosition) {
+        this.fontFile = fontFile;
+        this.width = width;
+        this.height = height;
+        this.defaultPosition = defaultPosition;
+    }
+
+    public Position getDefaultPosition() {
+        return defaultPosition;
+    }
+
+    /**
+     * Certificates with a cached template.
+     */
+    public int getTemplateCount() {
+        return templates.size();
+    }
+
+    /**
+     * Register signature with the document (PDDocument.addSignature) in a
+     * new signature field that shows the visible block.
+     *
+     * @param position where to place it, or null for the default position
+     */
+    public void addSignature(PDDocument document, PDSignature signature, X509Certificate certificate, Position position,
+            Calendar signDate) throws Exception {
+        Template template = templateFor(certificate);
+        Position target = position != null ? position : defaultPosition;
+
+        int pageCount = document.getNumberOfPages();
+        int pageIndex = target.getPage() < 0 ? pageCount + target.getPage() : target.getPage();
+        if (pageIndex < 0 || pageIndex >= pageCount) {
+            throw new Exception("Signature page " + target.getPage() + " outside document of " + pageCount + " pages");
+        }
+        PDPage page = document.getPage(pageIndex);
+
+        // Static part: a copy of the cached form XObject
+        PDFormXObject staticForm = new PDFormXObject(
+                (COSStream) copy(template.form, template, document.getDocument(), new IdentityHashMap<>()));
+
+        // Dynamic part: draw the template and the date
+        PDResources resources = new PDResources();
+        COSName staticName = resources.add(staticForm);
+        COSBase fonts = staticForm.getResources().getCOSObject().getDictionaryObject(COSName.FONT);
+        resources.getCOSObject().setItem(COSName.FONT, fonts);
+
+        PDAppearanceStream appearance = new PDAppearanceStream(document);
+        appearance.setBBox(new PDRectangle(width, height));
+        appearance.setResources(resources);
+        try (OutputStream out = appearance.getContentStream().createOutputStream(COSName.FLATE_DECODE)) {
+            StringBuilder content = new StringBuilder(128);
+            content.append("q /").append(staticName.getName()).append(" Do Q\n");
+            content.append("BT /").append(template.fontName).append(' ').append(number(DATE_SIZE)).append(" Tf ")
+                    .append(number(template.dateX)).append(' ').append(number(template.dateY)).append(" Td <")
+                    .append(encodeDate(template, signDate)).append("> Tj ET\n");
+            out.write(content.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+
+        PDAcroForm acroForm = document.getDocumentCatalog().getAcroForm();
+        if (acroForm == null) {
+            acroForm = new PDAcroForm(document);
+            document.getDocumentCatalog().setAcroForm(acroForm);
+        }
+        acroForm.setSignaturesExist(true);
+        acroForm.setAppendOnly(true);
+
+        PDSignatureField field = new PDSignatureField(acroForm);
+        field.setValue(signature);
+        PDAnnotationWidget widget = field.getWidgets().get(0);
+        PDRectangle rectangle = new PDRectangle(target.getX(), target.getY(), width, height);
+        widget.setPage(page);
+        widget.setPrinted(true);
+        page.getAnnotations().add(widget);
+        acroForm.getFields().add(field);
+
+        // addSignature finds the field by its value and, without a visual
+        // template, blanks its widget; the appearance is set afterwards
+        document.addSignature(signature);
+        widget.setRectangle(rectangle);
+        PDAppearanceDictionary appearanceDictionary = new PDAppearanceDictionary();
+        appearanceDictionary.setNormalAppearance(appearance);
+        widget.setAppearance(appearanceDictionary);
+
+        // Incremental save writes only objects marked as changed
+        document.getDocumentCatalog().getCOSObject().setNeedToBeUpdated(true);
+        acroForm.getCOSObject().setNeedToBeUpdated(true);
+        COSBase fieldArray = acroForm.getCOSObject().getDictionaryObject(COSName.FIELDS);
+        if (fieldArray instanceof COSArray) {
+            ((COSArray) fieldArray).setNeedToBeUpdated(true);
+        }
+        page.getCOSObject().setNeedToBeUpdated(true);
+        COSBase annotations = page.getCOSObject().getDictionaryObject(COSName.ANNOTS);
+        if (annotations instanceof COSArray) {
+            ((COSArray) annotations).setNeedToBeUpdated(true);
+        }
+    }
+
+    private Template templateFor(X509Certificate certificate) throws Exception {
+        String key = fingerprint(certificate);
+        Template template = templates.get(key);
+        if (template == null) {
+            // Built outside computeIfAbsent, which must not throw checked
+            // exceptions; a concurrent duplicate build is harmless
+            template = buildTemplate(certificate);
+            Template existing = templates.putIfAbsent(key, template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        return template;
+    }
+
+    private Template buildTemplate(X509Certificate certificate) throws Exception {
+        long start = System.nanoTime();
+        try (PDDocument document = new PDDocument()) {
+            PDPage page = new PDPage(new PDRectangle(width, height));
+            document.addPage(page);
+
+            PDFont font;
+            if (fontFile != null) {
+                PDType0Font embedded = PDType0Font.load(document, fontFile);
+                for (int i = 0; i < DATE_GLYPHS.length(); i++) {
+                    embedded.addToSubset(DATE_GLYPHS.charAt(i));
+                }
+                font = embedded;
+            } else {
+                font = PDType1Font.HELVETICA;
+            }
+
+            String label = "Digitally signed by";
+            String name = printable(font, signerName(certificate));
+            float nameSize = NAME_SIZE;
+            float available = width - 2 * MARGIN;
+            float nameWidth = font.getStringWidth(name) / 1000 * nameSize;
+            if (nameWidth > available) {
+                nameSize = Math.max(4, nameSize * available / nameWidth);
+            }
+            String dateLabel = "Date: ";
+            float dateY = MARGIN;
+            float dateX = MARGIN + font.getStringWidth(dateLabel) / 1000 * DATE_SIZE;
+
+            try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                content.setLineWidth(0.5f);
+                content.addRect(0.25f, 0.25f, width - 0.5f, height - 0.5f);
+                content.stroke();
+
+                content.beginText();
+                content.setFont(font, LABEL_SIZE);
+                content.newLineAtOffset(MARGIN, height - MARGIN - LABEL_SIZE);
+                content.showText(label);
+                content.endText();
+
+                content.beginText();
+                content.setFont(font, nameSize);
+                content.newLineAtOffset(MARGIN, height - MARGIN - LABEL_SIZE - 2 - nameSize);
+                content.showText(name);
+                content.endText();
+
+                content.beginText();
+                content.setFont(font, DATE_SIZE);
+                content.newLineAtOffset(MARGIN, dateY);
+                content.showText(dateLabel);
+                content.endText();
+            }
+
+            Map<Character, byte[]> glyphs = new HashMap<>();
+            for (int i = 0; i < DATE_GLYPHS.length(); i++) {
+                char c = DATE_GLYPHS.charAt(i);
+                glyphs.put(c, font.encode(String.valueOf(c)));
+            }
+            String fontName = page.getResources().getFontNames().iterator().next().getName();
+
+            // Saving subsets and embeds the font; the result is parsed once and
+            // kept as COS objects from here on
+            ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+            document.save(pdf);
+            Map<COSDictionary, byte[]> streams = new IdentityHashMap<>();
+            COSDictionary form;
+            try (PDDocument saved = PDDocument.load(pdf.toByteArray())) {
+                form = detachPageAsForm(saved.getPage(0), streams);
+            }
+
+            System.out.println("✔ Visible signature template built for " + certificate.getSubjectX500Principal()
+                    + " (" + pdf.size() + " bytes, " + (System.nanoTime() - start) / 1_000_000 + " ms)");
+            return new Template(form, streams, fontName, dateX, dateY, glyphs);
+        }
+    }
+
+    /**
+     * The page as a form XObject dictionary (BBox, resources, content) whose
+     * objects no longer depend on the page's document.
+     */
+    private static COSDictionary detachPageAsForm(PDPage page, Map<COSDictionary, byte[]> streams)
+            throws Exception {
+        Map<COSBase, COSBase> detached = new IdentityHashMap<>();
+        COSDictionary form = new COSDictionary();
+        form.setItem(COSName.TYPE, COSName.XOBJECT);
+        form.setItem(COSName.SUBTYPE, COSName.FORM);
+        form.setItem(COSName.BBOX, page.getMediaBox().getCOSArray());
+        form.setItem(COSName.RESOURCES, detach(page.getResources().getCOSObject(), streams, detached));
+
+        COSBase contents = page.getCOSObject().getDictionaryObject(COSName.CONTENTS);
+        if (contents instanceof COSStream) {
+            // Keep the encoded content as it is
+            COSStream content = (COSStream) contents;
+            copyEntry(content, form, COSName.FILTER, streams, detached);
+            copyEntry(content, form, COSName.DECODE_PARMS, streams, detached);
+            streams.put(form, rawBytes(content));
+        } else {
+            try (InputStream content = page.getContents()) {
+                streams.put(form, content.readAllBytes());
+            }
+        }
+        return form;
+    }
+
+    private static void copyEntry(COSDictionary from, COSDictionary to, COSName key,
+            Map<COSDictionary, byte[]> streams, Map<COSBase, COSBase> detached) throws Exception {
+        COSBase value = from.getDictionaryObject(key);
+        if (value != null) {
+            to.setItem(key, detach(value, streams, detached));
+        }
+    }
+
+    /**
+     * Deep copy without indirect references; streams become dictionaries
+     * whose encoded bytes go into streams.
+     */
+    private static COSBase detach(COSBase base, Map<COSDictionary, byte[]> streams,
+            Map<COSBase, COSBase> detached) throws Exception {
+        COSBase object = base instanceof COSObject ? ((COSObject) base).getObject() : base;
+        if (!(object instanceof COSDictionary) && !(object instanceof COSArray)) {
+            return object;
+        }
+        COSBase existing = detached.get(object);
+        if (existing != null) {
+            return existing;
+        }
+        if (object instanceof COSArray) {
+            COSArray copy = new COSArray();
+            detached.put(object, copy);
+            for (COSBase item : (COSArray) object) {
+                copy.add(detach(item, streams, detached));
+            }
+            return copy;
+        }
+        COSDictionary source = (COSDictionary) object;
+        COSDictionary copy = new COSDictionary();
+        detached.put(object, copy);
+        for (Map.Entry<COSName, COSBase> entry : source.entrySet()) {
+            if (!COSName.LENGTH.equals(entry.getKey())) {
+                copy.setItem(entry.getKey(), detach(entry.getValue(), streams, detached));
+            }
+        }
+        if (source instanceof COSStream) {
+            streams.put(copy, rawBytes((COSStream) source));
+        }
+        return copy;
+    }
+
+    private static byte[] rawBytes(COSStream stream) throws Exception {
+        try (InputStream raw = stream.createRawInputStream()) {
+            return raw.readAllBytes();
+        }
+    }
+
+    /**
+     * Copy a detached template object into the target document; template
+     * streams become new streams of the target.
+     */
+    private static COSBase copy(COSBase object, Template template, COSDocument target,
+            Map<COSBase, COSBase> copies) throws Exception {
+        if (object instanceof COSString) {
+            return new COSString(((COSString) object).getBytes());
+        }
+        if (!(object instanceof COSDictionary) && !(object instanceof COSArray)) {
+            return object;
+        }
+        COSBase existing = copies.get(object);
+        if (existing != null) {
+            return existing;
+        }
+        if (object instanceof COSArray) {
+            COSArray copy = new COSArray();
+            copies.put(object, copy);
+            for (COSBase item : (COSArray) object) {
+                copy.add(copy(item, template, target, copies));
+            }
+            return copy;
+        }
+        byte[] data = template.streams.get(object);
+        COSDictionary copy = data != null ? target.createCOSStream() : new COSDictionary();
+        copies.put(object, copy);
+        for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) object).entrySet()) {
+            copy.setItem(entry.getKey(), copy(entry.getValue(), template, target, copies));
+        }
+        if (data != null) {
+            try (OutputStream out = ((COSStream) copy).createRawOutputStream()) {
+                out.write(data);
+            }
+        }
+        return copy;
+    }
+
+    private static String encodeDate(Template template, Calendar signDate) {
+        SimpleDateFormat format = new SimpleDateFormat(DATE_PATTERN, Locale.ROOT);
+        format.setTimeZone(signDate.getTimeZone());
+        String date = format.format(signDate.getTime());
+        StringBuilder hex = new StringBuilder(date.length() * 4);
+        for (int i = 0; i < date.length(); i++) {
+            byte[] code = template.glyphs.get(date.charAt(i));
+            if (code != null) {
+                hex.append(SignatureCache.toHex(code));
+            }
+        }
+        return hex.toString();
+    }
+
+    /**
+     * CN of the subject, or the whole subject if it has none.
+     */
+    private static String signerName(X509Certificate certificate) throws Exception {
+        String subject = certificate.getSubjectX500Principal().getName();
+        for (Rdn rdn : new LdapName(subject).getRdns()) {
+            if ("CN".equalsIgnoreCase(rdn.getType())) {
+                return rdn.getValue().toString();
+            }
+        }
+        return subject;
+    }
+
+    /**
+     * Replace characters the font cannot show (e.g. non-Latin names with
+     * Helvetica) so the template still builds.
+     */
+    private static String printable(PDFont font, String text) {
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            try {
+                font.encode(String.valueOf(c));
+                result.append(c);
+            } catch (Exception e) {
+                result.append('?');
+            }
+        }
+        return result.toString();
+    }
+
+    private static String fingerprint(X509Certificate certificate) throws Exception {
+        return SignatureCache.toHex(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded()));
+    }
+
+    private static String number(float value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+}
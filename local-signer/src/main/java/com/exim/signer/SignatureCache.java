@@ -0,0 +1,208 @@
+package com.exim.signer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content-addressed cache of flat-file signatures.
+ *
+ * Keys are the SHA-256 of the stripped payload plus the fingerprint of the
+ * signing certificate, so a cached signature is only ever returned for the same
+ * bytes signed by the same certificate. Entries are evicted LRU beyond
+ * maxEntries and after the TTL. Concurrent misses for the same key share one
+ * in-flight token operation (single-flight).
+ */
+public class SignatureCache {
+
+    /**
+     * Produces the signature on a cache miss.
+     */
+    public interface Signer {
+        byte[] sign() throws Exception;
+    }
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+    public static final long DEFAULT_TTL_SECONDS = 900;
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    private final Map<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder sharedInFlight = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public SignatureCache(int maxEntries, long ttlSeconds) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(1, ttlSeconds));
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SignatureCache.Entry> eldest) {
+                if (size() > SignatureCache.this.maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Cache key for a payload digest and certificate fingerprint.
+     */
+    public static String key(byte[] sha256Digest, String certificateFingerprint) {
+        return toHex(sha256Digest) + ":" + certificateFingerprint;
+    }
+
+    /**
+     * Return the cached signature, join an identical in-flight request, or run
+     * the signer and cache its result.
+     */
+    public byte[] getOrSign(String key, Signer signer) throws Exception {
+        if (!isEnabled()) {
+            misses.increment();
+            return signer.sign();
+        }
+
+        byte[] cached = getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        CompletableFuture<byte[]> mine = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            sharedInFlight.increment();
+            return await(existing);
+        }
+
+        try {
+            // Another request may have finished between our lookup and putIfAbsent
+            byte[] signature = lookup(key);
+            if (signature != null) {
+                mine.complete(signature);
+                return signature.clone();
+            }
+            signature = signer.sign();
+            put(key, signature);
+            mine.complete(signature);
+            return signature.clone();
+        } catch (Exception e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Cached signature or null. Counts a hit or a miss.
+     */
+    public byte[] getIfPresent(String key) {
+        if (!isEnabled()) {
+            misses.increment();
+            return null;
+        }
+        byte[] signature = lookup(key);
+        if (signature != null) {
+            hits.increment();
+            return signature.clone();
+        }
+        misses.increment();
+        return null;
+    }
+
+    private byte[] lookup(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.createdNanos < ttlNanos) {
+                return entry.signature;
+            }
+            entries.remove(key);
+            evictions.increment();
+            return null;
+        }
+    }
+
+    public void put(String key, byte[] signature) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key, new Entry(signature.clone(), System.nanoTime()));
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getSharedInFlightCount() {
+        return sharedInFlight.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> future) throws Exception {
+        try {
+            return future.get().clone();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new Exception(cause);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    private static final class Entry {
+        final byte[] signature;
+        final long createdNanos;
+
+        Entry(byte[] signature, long createdNanos) {
+            this.signature = signature;
+            this.createdNanos = createdNanos;
+        }
+    }
+}
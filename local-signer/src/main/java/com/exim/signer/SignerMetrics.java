@@ -0,0 +1,364 @@
+package com.exim.signer;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Process-wide metrics for the signer, rendered in the Prometheus text format
+ * by the /metrics endpoint.
+ *
+ * Recording never allocates once a label value has been seen: counters are
+ * LongAdders and histograms use fixed bucket bounds. Known label values are
+ * registered up front.
+ */
+public final class SignerMetrics {
+
+    static final double[] LATENCY_BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30 };
+    static final double[] PAGE_BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500 };
+    static final double[] SIZE_BUCKETS = { 10e3, 100e3, 500e3, 1e6, 2e6, 5e6, 10e6, 20e6, 50e6, 100e6 };
+
+    // Declared after the bucket arrays so they are initialized first
+    private static final SignerMetrics INSTANCE = new SignerMetrics();
+
+    public final LabeledCounter httpRequests = new LabeledCounter("signer_http_requests_total",
+            "HTTP requests by endpoint", "endpoint");
+    public final LabeledHistogram httpRequestDuration = new LabeledHistogram("signer_http_request_duration_seconds",
+            "HTTP request latency by endpoint", "endpoint", LATENCY_BUCKETS);
+    public final LabeledHistogram tokenSignDuration = new LabeledHistogram("signer_token_sign_duration_seconds",
+            "Private-key operation latency by signing scheme", "operation", LATENCY_BUCKETS);
+    public final Histogram tokenWait = new Histogram("signer_token_wait_seconds",
+            "Time a request waited in the signing queue before reaching the token", LATENCY_BUCKETS);
+    public final Counter bytesIn = new Counter("signer_bytes_received_total", "Request body bytes received");
+    public final Counter bytesOut = new Counter("signer_bytes_sent_total", "Response body bytes sent");
+    public final Histogram pdfPages = new Histogram("signer_pdf_pages", "Pages per signed PDF", PAGE_BUCKETS);
+    public final Histogram pdfSize = new Histogram("signer_pdf_size_bytes", "Size of PDFs submitted for signing",
+            SIZE_BUCKETS);
+    public final Counter pdfOptimizedBytesSaved = new Counter("signer_pdf_optimize_saved_bytes_total",
+            "Bytes removed from PDFs by the pre-signing optimizer");
+    public final LabeledCounter errors = new LabeledCounter("signer_errors_total", "Failed requests by cause",
+            "cause");
+
+    private final List<Gauge> gauges = new ArrayList<>();
+
+    private SignerMetrics() {
+        for (String op : new String[] { "raw", "sha2", "pkcs7" }) {
+            tokenSignDuration.labels(op);
+        }
+        for (String cause : new String[] { "bad_request", "method_not_allowed", "body_too_large", "busy",
+                "internal" }) {
+            errors.labels(cause);
+        }
+    }
+
+    public static SignerMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Register a gauge whose value is read when /metrics is scraped.
+     */
+    public synchronized void registerGauge(String name, String help, DoubleSupplier value) {
+        gauges.removeIf(g -> g.name.equals(name));
+        gauges.add(new Gauge(name, help, "gauge", value));
+    }
+
+    /**
+     * Register a counter owned by another component (e.g. a LongAdder it already
+     * keeps), read when /metrics is scraped.
+     */
+    public synchronized void registerCounter(String name, String help, DoubleSupplier value) {
+        gauges.removeIf(g -> g.name.equals(name));
+        gauges.add(new Gauge(name, help, "counter", value));
+    }
+
+    /**
+     * Map an HTTP error status to an error cause label.
+     */
+    public static String causeOf(int status) {
+        switch (status) {
+            case 400:
+                return "bad_request";
+            case 405:
+                return "method_not_allowed";
+            case 413:
+                return "body_too_large";
+            case 429:
+            case 503:
+                return "busy";
+            default:
+                return "internal";
+        }
+    }
+
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        httpRequests.write(out);
+        httpRequestDuration.write(out);
+        tokenSignDuration.write(out);
+        tokenWait.write(out);
+        bytesIn.write(out);
+        bytesOut.write(out);
+        pdfPages.write(out);
+        pdfSize.write(out);
+        pdfOptimizedBytesSaved.write(out);
+        errors.write(out);
+        for (Gauge gauge : gauges) {
+            gauge.write(out);
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.ROOT, "%s", value);
+    }
+
+    public static final class Counter {
+        private final String name;
+        private final String help;
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long value() {
+            return value.sum();
+        }
+
+        void write(StringBuilder out) {
+            header(out, name, help, "counter");
+            out.append(name).append(' ').append(value.sum()).append('\n');
+        }
+    }
+
+    public static final class Histogram {
+        private final String name;
+        private final String help;
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(String name, String help, double[] bounds) {
+            this.name = name;
+            this.help = help;
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            int lo = 0;
+            int hi = bounds.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (value <= bounds[mid]) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            buckets[lo].increment();
+            count.increment();
+            sum.add(value);
+        }
+
+        public void observeNanos(long nanos) {
+            observe(nanos / 1_000_000_000.0);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        void write(StringBuilder out) {
+            header(out, name, help, "histogram");
+            writeSeries(out, "");
+        }
+
+        void writeSeries(StringBuilder out, String labels) {
+            String sep = labels.isEmpty() ? "" : ",";
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket{").append(labels).append(sep).append("le=\"")
+                        .append(number(bounds[i])).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += buckets[bounds.length].sum();
+            out.append(name).append("_bucket{").append(labels).append(sep).append("le=\"+Inf\"} ")
+                    .append(cumulative).append('\n');
+            String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.append(name).append("_sum").append(braces).append(' ')
+                    .append(number(sum.sum())).append('\n');
+            out.append(name).append("_count").append(braces).append(' ').append(count.sum()).append('\n');
+        }
+    }
+
+    public static final class LabeledCounter {
+        private final String name;
+        private final String help;
+        private final String label;
+        private final Map<String, LongAdder> series = new ConcurrentHashMap<>();
+
+        LabeledCounter(String name, String help, String label) {
+            this.name = name;
+            this.help = help;
+            this.label = label;
+        }
+
+        public LongAdder labels(String value) {
+            LongAdder adder = series.get(value);
+            return adder != null ? adder : series.computeIfAbsent(value, v -> new LongAdder());
+        }
+
+        void write(StringBuilder out) {
+            header(out, name, help, "counter");
+            for (Map.Entry<String, LongAdder> entry : series.entrySet()) {
+                out.append(name).append('{').append(label).append("=\"").append(entry.getKey()).append("\"} ")
+                        .append(entry.getValue().sum()).append('\n');
+            }
+        }
+    }
+
+    public static final class LabeledHistogram {
+        private final String name;
+        private final String help;
+        private final String label;
+        private final double[] bounds;
+        private final Map<String, Histogram> series = new ConcurrentHashMap<>();
+
+        LabeledHistogram(String name, String help, String label, double[] bounds) {
+            this.name = name;
+            this.help = help;
+            this.label = label;
+            this.bounds = bounds;
+        }
+
+        public Histogram labels(String value) {
+            Histogram histogram = series.get(value);
+            return histogram != null ? histogram
+                    : series.computeIfAbsent(value, v -> new Histogram(name, help, bounds));
+        }
+
+        void write(StringBuilder out) {
+            header(out, name, help, "histogram");
+            for (Map.Entry<String, Histogram> entry : series.entrySet()) {
+                entry.getValue().writeSeries(out, label + "=\"" + entry.getKey() + "\"");
+            }
+        }
+    }
+
+    private static final class Gauge {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final DoubleSupplier value;
+
+        Gauge(String name, String help, String type, DoubleSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+
+        void write(StringBuilder out) {
+            header(out, name, help, type);
+            out.append(name).append(' ').append(number(value.getAsDouble())).append('\n');
+        }
+    }
+
+    /**
+     * Input stream wrapper that adds every byte read to a counter.
+     */
+    public static final class CountingInputStream extends FilterInputStream {
+        private final Counter counter;
+        private long count;
+
+        public CountingInputStream(InputStream in, Counter counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+                if (counter != null) {
+                    counter.add(1);
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+                if (counter != null) {
+                    counter.add(n);
+                }
+            }
+            return n;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Output stream wrapper that adds every byte written to a counter.
+     */
+    public static final class CountingOutputStream extends FilterOutputStream {
+        private final Counter counter;
+
+        public CountingOutputStream(OutputStream out, Counter counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.add(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.add(len);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.exim.signer;
+
+import java.io.InputStream;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.cert.X509Certificate;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Where the signing key lives. DscService builds the ICEGATE formats on top of
+ * it; the backend only holds the key and certificate chain and performs the
+ * private-key operations.
+ *
+ * Implementations: Pkcs11SigningBackend (DSC token through SunPKCS11) and
+ * SoftwareSigningBackend (PKCS#12 / JKS file, for CI and load tests).
+ */
+public interface SigningBackend {
+
+    /**
+     * Short description for logs and /status, e.g. "pkcs11" or "pkcs12".
+     */
+    String getType();
+
+    /**
+     * Open the key with the PIN (token) or keystore password.
+     */
+    void login(char[] pin) throws Exception;
+
+    boolean isLoggedIn();
+
+    /**
+     * Release the key and any provider resources. The backend cannot be used
+     * afterwards.
+     */
+    void close();
+
+    String getAlias();
+
+    /**
+     * Certificate chain of the signing key, leaf first.
+     */
+    X509Certificate[] getCertificateChain() throws Exception;
+
+    /**
+     * SHA1withRSA over data[off, off+len).
+     */
+    byte[] signRaw(byte[] data, int off, int len) throws Exception;
+
+    /**
+     * SHA1withRSA over an already computed 32-byte SHA-256 digest (the
+     * V-NCODE flat-file scheme).
+     */
+    byte[] signSha256Digest(byte[] sha256Digest) throws Exception;
+
+    /**
+     * {@link #signSha256Digest(byte[])} for several digests with one key
+     * handle. A lost session logs in again once and the digests not yet
+     * signed are retried. Checks stop between digests and, once it reports
+     * true, leaves the remaining entries null.
+     */
+    byte[][] signSha256Digests(byte[][] sha256Digests, BooleanSupplier stop) throws Exception;
+
+    /**
+     * SHA256withRSA CMS SignedData over data, with the certificate chain.
+     */
+    byte[] signCms(byte[] data, boolean detached) throws Exception;
+
+    /**
+     * Detached SHA256withRSA CMS over a stream. The stream is hashed on the
+     * host before the key is touched, so large content is never held in
+     * memory and the token is busy only for the signed attributes.
+     */
+    byte[] signCmsDetached(InputStream content) throws Exception;
+
+    /**
+     * Detached SHA256withRSA CMS for content whose SHA-256 the caller already
+     * computed, e.g. the ByteRange of a PDF from external signing.
+     */
+    byte[] signCmsDetachedDigest(byte[] sha256ContentDigest) throws Exception;
+
+    /**
+     * Cheap liveness check of the key (e.g. one PKCS#11 object lookup),
+     * logging in again if the session went stale.
+     */
+    void probe() throws Exception;
+
+    /**
+     * Throwaway signature over a fixed digest that wakes the key's device and
+     * warms the signing path. Not recorded in the signing metrics.
+     */
+    void warmUp() throws Exception;
+
+    /**
+     * Current private key handle.
+     */
+    PrivateKey getPrivateKey() throws Exception;
+
+    /**
+     * Provider that owns the key, or null for the default providers.
+     */
+    Provider getProvider();
+
+    /**
+     * True if SHA-1 and the DigestInfo are computed on the host and only the
+     * raw RSA operation runs where the key is.
+     */
+    boolean isHostHashing();
+
+    /**
+     * Concurrent sessions the key allows, 0 if unlimited, -1 if unknown.
+     */
+    long getMaxSessionCount();
+}
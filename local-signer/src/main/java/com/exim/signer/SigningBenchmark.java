@@ -0,0 +1,95 @@
+package com.exim.signer;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures flat-file signing throughput on one token with 1..N concurrent
+ * PKCS#11 sessions, to pick dsc.maxSessions for that token model. The worker
+ * runs with the server's default queue, batch window and batch size, so the
+ * numbers match what /sign/flatfile and /sign/digest would see.
+ *
+ * Usage: java -cp local-signer-1.0-SNAPSHOT.jar com.exim.signer.SigningBenchmark
+ * &lt;dllPath&gt; &lt;pin&gt; [maxSessions=4] [signaturesPerStep=200] [slotIndex=-1]
+ *
+ * A .p12/.pfx/.jks file instead of the DLL runs the same measurement on a
+ * software key, which shows the worker's own overhead and scaling.
+ */
+public class SigningBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: SigningBenchmark <dllPath> <pin> [maxSessions] [signaturesPerStep] [slotIndex]");
+            System.exit(1);
+        }
+        String dllPath = args[0];
+        String pin = args[1];
+        int maxSessions = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int signatures = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        int slotIndex = args.length > 4 ? Integer.parseInt(args[4]) : -1;
+
+        DscService dsc = new DscService();
+        String lowerPath = dllPath.toLowerCase(Locale.ROOT);
+        if (lowerPath.endsWith(".p12") || lowerPath.endsWith(".pfx")) {
+            dsc.loginKeyStore(pin, new File(dllPath), "PKCS12", null);
+        } else if (lowerPath.endsWith(".jks")) {
+            dsc.loginKeyStore(pin, new File(dllPath), "JKS", null);
+        } else {
+            dsc.login(pin, dllPath, slotIndex);
+        }
+        long reported = dsc.getMaxSessionCount();
+        System.out.println("Token reports max sessions: "
+                + (reported < 0 ? "unknown" : reported == 0 ? "unlimited" : String.valueOf(reported)));
+
+        // Distinct digests so nothing could be served from a cache
+        byte[][] digests = new byte[signatures][];
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < signatures; i++) {
+            digests[i] = sha256.digest(("bill-" + i).getBytes("ISO-8859-1"));
+        }
+
+        // Warm-up: key handle, provider classes, JIT
+        for (int i = 0; i < Math.min(20, signatures); i++) {
+            dsc.signSha256Digest(digests[i]);
+        }
+
+        System.out.println();
+        System.out.println("sessions  signatures/s  avg ms  speedup  serialFallback");
+        double baseline = 0;
+        for (int sessions = 1; sessions <= maxSessions; sessions++) {
+            SigningWorker worker = new SigningWorker(dsc, SigningWorker.DEFAULT_QUEUE_CAPACITY,
+                    SigningWorker.DEFAULT_MAX_BATCH_SIZE, SigningWorker.DEFAULT_TIMEOUT_MILLIS, sessions);
+            worker.start();
+            // Twice as many callers as sessions keeps every session busy
+            ExecutorService callers = Executors.newFixedThreadPool(sessions * 2);
+            try {
+                long start = System.nanoTime();
+                List<Future<byte[]>> results = new ArrayList<>(signatures);
+                for (byte[] digest : digests) {
+                    results.add(callers.submit(() -> worker.execute(d -> d.signSha256Digest(digest))));
+                }
+                for (Future<byte[]> result : results) {
+                    result.get();
+                }
+                double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+                double perSecond = signatures / seconds;
+                if (sessions == 1) {
+                    baseline = perSecond;
+                }
+                System.out.println(String.format(Locale.ROOT, "%8d  %12.1f  %6.2f  %6.2fx  %s", sessions, perSecond,
+                        worker.getAverageServiceMillis(), perSecond / baseline, worker.isSerialFallback()));
+            } finally {
+                callers.shutdown();
+                callers.awaitTermination(1, TimeUnit.MINUTES);
+                worker.shutdown();
+            }
+        }
+    }
+}
@@ -18,23 +18,132 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.security.cert.X509Certificate;
 import java.util.*;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class SigningServer {
 
     private static final int PORT = 5000;
     private static final int HTTPS_PORT = 13591;
-    private final DscService dscService;
-    private final PdfSignerService pdfSignerService;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final long DEFAULT_PDF_SPILL_THRESHOLD = 16L * 1024 * 1024;
+    private static final String PRIMARY_TOKEN = "primary";
+    private static final int AUTO_MAX_SESSIONS = 8;
+    private static final int DIGEST_LENGTH = 32;
+    private static final long DEFAULT_MAX_DIGEST_BATCH = 1000;
+    private static final long DEFAULT_STATUS_REFRESH_MILLIS = 1000;
+    private static final long DEFAULT_MAX_PDF_BATCH = 100;
+    private static final long DEFAULT_MAX_FLATFILE_BATCH = 500;
+    private static final String DEFAULT_DLL_PATH = "C:\\Windows\\System32\\CryptoIDA_pkcs11.dll";
     private final Properties config;
+    private final MultipartParser multipartParser;
+    private final TokenPool tokenPool;
+    private final SignatureCache signatureCache;
+    private final PdfMemoryPolicy pdfMemoryPolicy;
+    private final PdfOptimizer pdfOptimizer;
+    private final SignatureAppearance signatureAppearance;
+    private final PdfBatchSigner pdfBatchSigner;
     private HttpServer server;
     private HttpsServer httpsServer;
+    private volatile String statusSnapshot;
 
     public SigningServer(DscService dscService) {
-        this.dscService = dscService;
-        this.pdfSignerService = new PdfSignerService();
         this.config = new Properties();
         loadConfig();
+        this.multipartParser = new MultipartParser(
+                getLongProperty("multipart.maxBodyBytes", MultipartParser.DEFAULT_MAX_BODY_BYTES),
+                (int) getLongProperty("multipart.spillThresholdBytes", MultipartParser.DEFAULT_SPILL_THRESHOLD));
+        String pdfTempDir = config.getProperty("pdf.memory.tempDir", "").trim();
+        this.pdfMemoryPolicy = new PdfMemoryPolicy(
+                config.getProperty("pdf.memory.mode", PdfMemoryPolicy.MODE_MIXED),
+                getLongProperty("pdf.memory.maxMainBytes", PdfMemoryPolicy.DEFAULT_MAX_MAIN_BYTES),
+                pdfTempDir.isEmpty() ? null : new File(pdfTempDir),
+                (int) getLongProperty("pdf.memory.maxDocuments", PdfMemoryPolicy.DEFAULT_MAX_DOCUMENTS),
+                getLongProperty("pdf.memory.waitMillis", PdfMemoryPolicy.DEFAULT_WAIT_MILLIS));
+        this.pdfOptimizer = Boolean.parseBoolean(config.getProperty("pdf.optimize", "false").trim())
+                ? new PdfOptimizer((int) getLongProperty("pdf.optimize.targetDpi", PdfOptimizer.DEFAULT_TARGET_DPI),
+                        getLongProperty("pdf.optimize.jpegQuality",
+                                Math.round(PdfOptimizer.DEFAULT_JPEG_QUALITY * 100)) / 100f,
+                        Boolean.parseBoolean(config.getProperty("pdf.optimize.reencodeLossless", "false").trim()),
+                        (int) getLongProperty("pdf.batchThreads", PdfBatchSigner.DEFAULT_THREADS))
+                : null;
+        String signatureFont = config.getProperty("pdf.signature.fontFile", "").trim();
+        this.signatureAppearance = Boolean.parseBoolean(config.getProperty("pdf.signature.visible", "false").trim())
+                ? new SignatureAppearance(signatureFont.isEmpty() ? null : new File(signatureFont),
+                        getLongProperty("pdf.signature.width", (long) SignatureAppearance.DEFAULT_WIDTH),
+                        getLongProperty("pdf.signature.height", (long) SignatureAppearance.DEFAULT_HEIGHT),
+                        defaultSignaturePosition())
+                : null;
+
+        // The DscService passed in is the primary token; dsc.tokens adds more
+        List<TokenPool.Token> tokens = new ArrayList<>();
+        tokens.add(createToken(PRIMARY_TOKEN, dscService));
+        for (String id : getExtraTokenIds()) {
+            tokens.add(createToken(id, new DscService(DscService.DEFAULT_TOKEN_NAME + "-" + id)));
+        }
+        this.tokenPool = new TokenPool(tokens,
+                getLongProperty("dsc.pool.cooldownMillis", TokenPool.DEFAULT_COOLDOWN_MILLIS));
+        this.signatureCache = new SignatureCache(
+                (int) getLongProperty("cache.maxEntries", SignatureCache.DEFAULT_MAX_ENTRIES),
+                getLongProperty("cache.ttlSeconds", SignatureCache.DEFAULT_TTL_SECONDS));
+        this.pdfBatchSigner = new PdfBatchSigner(tokenPool,
+                (int) getLongProperty("pdf.batchThreads", PdfBatchSigner.DEFAULT_THREADS));
+    }
+
+    private TokenPool.Token createToken(String name, DscService dsc) {
+        dsc.setSessionProbeIntervalMillis(
+                getLongProperty("dsc.sessionProbeMillis", TokenSession.DEFAULT_PROBE_INTERVAL_MILLIS));
+        dsc.setHostHashing(Boolean.parseBoolean(config.getProperty("dsc.hostHashing", "false").trim()));
+        String cacheFile = config.getProperty("dsc.certCacheFile", CertificateChainCache.DEFAULT_FILE).trim();
+        dsc.setCertificateCache(cacheFile.isEmpty() ? null : new CertificateChainCache(new File(cacheFile)));
+        SigningWorker worker = new SigningWorker(dsc,
+                (int) getLongProperty("worker.queueCapacity", SigningWorker.DEFAULT_QUEUE_CAPACITY),
+                (int) getLongProperty("worker.maxBatchSize", SigningWorker.DEFAULT_MAX_BATCH_SIZE),
+                getLongProperty("worker.timeoutMillis", SigningWorker.DEFAULT_TIMEOUT_MILLIS),
+                getMaxSessions());
+        dsc.setKeepAlive(getLongProperty("dsc.keepAliveMillis", TokenKeepAlive.DEFAULT_INTERVAL_MILLIS),
+                Boolean.parseBoolean(config.getProperty("dsc.warmup", "false").trim()),
+                getLongProperty("dsc.warmupIdleMillis", TokenKeepAlive.DEFAULT_WARMUP_IDLE_MILLIS));
+        // Keep-alive goes through the worker like any other token access
+        dsc.setTokenAccess(task -> worker.execute(task));
+        PdfSignerService pdfSignerService = new PdfSignerService();
+        pdfSignerService.setMemoryPolicy(pdfMemoryPolicy);
+        pdfSignerService.setOptimizer(pdfOptimizer);
+        pdfSignerService.setAppearance(signatureAppearance);
+        return new TokenPool.Token(name, dsc, worker, pdfSignerService);
+    }
+
+    /**
+     * dsc.maxSessions: a number, or "auto" for up to AUTO_MAX_SESSIONS capped by
+     * what the token reports after login.
+     */
+    private int getMaxSessions() {
+        String value = config.getProperty("dsc.maxSessions", "").trim();
+        if (value.equalsIgnoreCase("auto")) {
+            return AUTO_MAX_SESSIONS;
+        }
+        return (int) Math.max(1, getLongProperty("dsc.maxSessions", SigningWorker.DEFAULT_SESSIONS));
+    }
+
+    /**
+     * Ids listed in dsc.tokens (e.g. "branchA,branchB"). Each one is configured
+     * with dsc.token.&lt;id&gt;.dllPath, .slotIndex and .pin, falling back to
+     * dsc.dllPath and dsc.pin.
+     */
+    private List<String> getExtraTokenIds() {
+        List<String> ids = new ArrayList<>();
+        for (String id : config.getProperty("dsc.tokens", "").split(",")) {
+            id = id.trim();
+            if (!id.isEmpty() && !id.equals(PRIMARY_TOKEN) && !ids.contains(id)) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    public TokenPool getTokenPool() {
+        return tokenPool;
     }
 
     private void loadConfig() {
@@ -46,19 +155,41 @@ public class SigningServer {
         }
     }
 
+    private long getLongProperty(String key, long defaultValue) {
+        String value = config.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("⚠ Invalid value for " + key + " in config, using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
     public void start() throws Exception {
+        tokenPool.start();
+
         // Initialize DSC automatically if PIN is in config
         String pin = config.getProperty("dsc.pin");
-        String dllPath = config.getProperty("dsc.dllPath", "C:\\Windows\\System32\\CryptoIDA_pkcs11.dll");
-
-        if (pin != null && !pin.isEmpty()) {
-            try {
-                System.out.println("🔄 Initializing DSC from config...");
-                dscService.login(pin, dllPath);
-                pdfSignerService.initialize(dscService);
-                System.out.println("✅ DSC Initialized for Server.");
-            } catch (Exception e) {
-                System.err.println("❌ Failed to initialize DSC at startup: " + e.getMessage());
+        String dllPath = config.getProperty("dsc.dllPath", DEFAULT_DLL_PATH);
+
+        for (TokenPool.Token token : tokenPool.getTokens()) {
+            String prefix = configPrefix(token);
+            String tokenPin = config.getProperty(prefix + "pin", pin);
+            String tokenDllPath = config.getProperty(prefix + "dllPath", dllPath);
+            int slotIndex = (int) getLongProperty(prefix + "slotIndex", -1);
+
+            if (tokenPin != null && !tokenPin.isEmpty()) {
+                try {
+                    System.out.println("🔄 Initializing DSC token " + token.getName() + " from config...");
+                    loginToken(token, tokenPin, tokenDllPath, slotIndex);
+                    System.out.println("✅ DSC token " + token.getName() + " initialized for Server.");
+                } catch (Exception e) {
+                    System.err.println("❌ Failed to initialize DSC token " + token.getName() + " at startup: "
+                            + e.getMessage());
+                }
             }
         }
 
@@ -74,43 +205,416 @@ public class SigningServer {
 
         server = HttpServer.create(new InetSocketAddress(portToUse), 0);
 
-        server.createContext("/status", new StatusHandler());
-        server.createContext("/login", new LoginHandler());
-        server.createContext("/sign/pdf", new PdfSignHandler());
-        server.createContext("/sign/flatfile", new FlatFileSignHandler());
-
-        server.setExecutor(Executors.newFixedThreadPool(5));
+        // Cheap endpoints are unlimited; token-bound ones get admission limits
+        // so a burst of heavy uploads cannot occupy every request thread.
+        createContext(server, "/status", new StatusHandler(), 0);
+        createContext(server, "/health/live", new LiveHandler(), 0);
+        createContext(server, "/health/ready", new ReadyHandler(), 0);
+        createContext(server, "/metrics", new MetricsHandler(), 0);
+        createContext(server, "/login", new LoginHandler(), 1);
+        createContext(server, "/sign/pdf", new PdfSignHandler(), 4);
+        createContext(server, "/sign/pdf/batch", new BatchPdfSignHandler(), 2);
+        createContext(server, "/sign/flatfile", new FlatFileSignHandler(), 16);
+        createContext(server, "/sign/flatfile/batch", new BatchFlatFileSignHandler(), 2);
+        createContext(server, "/sign/digest", new DigestSignHandler(), 32);
+        createContext(server, "/sign/digest/batch", new BatchDigestSignHandler(), 4);
+
+        registerGauges();
+        startStatusRefresher();
+        server.setExecutor(createExecutor("http"));
         server.start();
 
         System.out.println("🚀 Signing Server started on port " + portToUse);
-        System.out.println("📍 Endpoints: /status, /sign/pdf, /sign/flatfile");
+        System.out.println("📍 Endpoints: /status, /health/live, /health/ready, /metrics, /sign/pdf, /sign/pdf/batch, /sign/flatfile, /sign/flatfile/batch,"
+                + " /sign/digest, /sign/digest/batch");
 
         // Start secure HTTPS server on port 13591 to drop-in replace nCode Solutions
         startHttpsServer();
     }
 
+    /**
+     * Log a token in on its own worker and prepare its PDF signer.
+     */
+    private void loginToken(TokenPool.Token token, String pin, String dllPath, int slotIndex) throws Exception {
+        String backend = config.getProperty("dsc.backend", "pkcs11").trim().toLowerCase(Locale.ROOT);
+        String prefix = configPrefix(token);
+        try {
+            token.executeExclusive(dsc -> {
+                switch (backend) {
+                    case "pkcs11":
+                        dsc.login(pin, dllPath, slotIndex);
+                        break;
+                    case "pkcs12":
+                    case "jks":
+                        String keyStore = config.getProperty(prefix + "keystore",
+                                config.getProperty("dsc.keystore", ""));
+                        String alias = config.getProperty(prefix + "keystoreAlias",
+                                config.getProperty("dsc.keystoreAlias", "")).trim();
+                        dsc.loginKeyStore(pin, new File(keyStore.trim()), backend.toUpperCase(Locale.ROOT),
+                                alias.isEmpty() ? null : alias);
+                        break;
+                    default:
+                        throw new Exception("Unknown dsc.backend: " + backend + " (use pkcs11, pkcs12 or jks)");
+                }
+                token.getPdfSignerService().initialize(dsc);
+                return null;
+            });
+        } finally {
+            // /status reflects the new login state right away
+            refreshStatus();
+        }
+
+        // Never open more parallel sessions than the token allows; SunPKCS11
+        // keeps one of them for itself
+        long maxSessions = token.getDscService().getMaxSessionCount();
+        if (maxSessions > 0) {
+            token.getWorker().limitSessions((int) Math.min(Integer.MAX_VALUE, maxSessions - 1));
+        } else if (maxSessions < 0 && config.getProperty("dsc.maxSessions", "").trim().equalsIgnoreCase("auto")) {
+            token.getWorker().limitSessions(1);
+        }
+    }
+
+    /**
+     * Rebuilds the /status snapshot every status.refreshMillis on a daemon
+     * thread.
+     */
+    private void startStatusRefresher() {
+        long refreshMillis = Math.max(100, getLongProperty("status.refreshMillis", DEFAULT_STATUS_REFRESH_MILLIS));
+        java.util.concurrent.ScheduledExecutorService refresher = java.util.concurrent.Executors
+                .newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "status-refresher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                refreshStatus();
+            } catch (RuntimeException e) {
+                System.err.println("⚠ Status refresh failed: " + e.getMessage());
+            }
+        }, 0, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Config key prefix of a token: "dsc." for the primary one, otherwise
+     * "dsc.token.&lt;id&gt;.".
+     */
+    private String configPrefix(TokenPool.Token token) {
+        return token == tokenPool.primary() ? "dsc." : "dsc.token." + token.getName() + ".";
+    }
+
+    private ExecutorService createExecutor(String name) {
+        return ServerExecutors.create(name,
+                config.getProperty("server.executor", ServerExecutors.MODE_AUTO),
+                (int) getLongProperty("server.poolSize", ServerExecutors.DEFAULT_POOL_SIZE));
+    }
+
+    /**
+     * Register a handler, wrapped in an admission limit unless the configured
+     * limit (admission.&lt;path&gt;, e.g. admission./sign/pdf) is 0.
+     */
+    private void createContext(HttpServer target, String path, HttpHandler handler, int defaultLimit) {
+        int limit = (int) getLongProperty("admission." + path, defaultLimit);
+        HttpHandler limited = limit > 0 ? new AdmissionLimitedHandler(path, handler, limit) : handler;
+        target.createContext(path, new InstrumentedHandler(path, limited));
+    }
+
+    /**
+     * Records request count, latency and body bytes for one endpoint.
+     */
+    private static class InstrumentedHandler implements HttpHandler {
+        private final HttpHandler delegate;
+        private final java.util.concurrent.atomic.LongAdder requests;
+        private final SignerMetrics.Histogram duration;
+
+        InstrumentedHandler(String path, HttpHandler delegate) {
+            this.delegate = delegate;
+            this.requests = SignerMetrics.get().httpRequests.labels(path);
+            this.duration = SignerMetrics.get().httpRequestDuration.labels(path);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            SignerMetrics metrics = SignerMetrics.get();
+            long start = System.nanoTime();
+            requests.increment();
+            exchange.setStreams(
+                    new SignerMetrics.CountingInputStream(exchange.getRequestBody(), metrics.bytesIn),
+                    new SignerMetrics.CountingOutputStream(exchange.getResponseBody(), metrics.bytesOut));
+            try {
+                delegate.handle(exchange);
+            } finally {
+                duration.observeNanos(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void registerGauges() {
+        SignerMetrics metrics = SignerMetrics.get();
+        metrics.registerGauge("signer_queue_depth", "Signing requests waiting for a token",
+                tokenPool::getQueueDepth);
+        metrics.registerGauge("signer_queue_capacity", "Signing queue capacity", tokenPool::getQueueCapacity);
+        metrics.registerCounter("signer_queue_rejected_total", "Signing requests rejected because the queue was full",
+                tokenPool::getRejectedCount);
+        metrics.registerGauge("signer_tokens", "Configured signing tokens", tokenPool::size);
+        metrics.registerGauge("signer_tokens_available", "Tokens that are logged in and healthy", () -> {
+            int available = 0;
+            for (TokenPool.Token token : tokenPool.getTokens()) {
+                if (token.isLoggedIn() && tokenPool.isHealthy(token)) {
+                    available++;
+                }
+            }
+            return available;
+        });
+        metrics.registerCounter("signer_signature_cache_hits_total", "Flat-file signatures served from the cache",
+                signatureCache::getHitCount);
+        metrics.registerCounter("signer_signature_cache_misses_total", "Flat-file signatures that needed the token",
+                signatureCache::getMissCount);
+        metrics.registerCounter("signer_signature_cache_shared_inflight_total",
+                "Requests that joined an identical in-flight token operation",
+                signatureCache::getSharedInFlightCount);
+        metrics.registerGauge("signer_signature_cache_entries", "Signatures currently cached", signatureCache::size);
+        metrics.registerGauge("signer_pdf_documents_open", "PDFs currently loaded for signing",
+                pdfMemoryPolicy::getActiveDocuments);
+        metrics.registerGauge("signer_pdf_documents_waiting", "PDF requests waiting for a document slot",
+                pdfMemoryPolicy::getWaitingDocuments);
+    }
+
+    /**
+     * Caps concurrent requests on one endpoint. Requests over the limit wait
+     * briefly (admission.waitMillis) and are then rejected with HTTP 429.
+     */
+    private class AdmissionLimitedHandler implements HttpHandler {
+        private final String path;
+        private final HttpHandler delegate;
+        private final Semaphore permits;
+        private final long waitMillis;
+
+        AdmissionLimitedHandler(String path, HttpHandler delegate, int limit) {
+            this.path = path;
+            this.delegate = delegate;
+            this.permits = new Semaphore(limit, true);
+            this.waitMillis = getLongProperty("admission.waitMillis", 250);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            boolean acquired = false;
+            try {
+                // CORS preflights never touch the token
+                if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+                    delegate.handle(exchange);
+                    return;
+                }
+                acquired = permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+                if (!acquired) {
+                    setCorsHeaders(exchange);
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    sendError(exchange, 429, "Too many concurrent requests to " + path);
+                    return;
+                }
+                delegate.handle(exchange);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendError(exchange, 503, "Server shutting down");
+            } finally {
+                if (acquired) {
+                    permits.release();
+                }
+                exchange.close();
+            }
+        }
+    }
+
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            sendResponse(exchange, 200, SignerMetrics.get().scrape(), "text/plain; version=0.0.4; charset=utf-8");
+        }
+    }
+
+    /**
+     * Serves the snapshot kept by the status refresher, so polling never
+     * touches the tokens or their locks.
+     */
     private class StatusHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             log(exchange, "GET /status");
-            JsonObject response = new JsonObject();
-            boolean connected = false;
-            try {
-                connected = dscService.getCertificate() != null;
-                response.addProperty("status", "ok");
-                response.addProperty("dongle", connected ? "connected" : "not found");
-                response.addProperty("subject",
-                        connected ? dscService.getCertificate().getSubjectDN().getName() : "N/A");
-            } catch (Exception e) {
-                response.addProperty("status", "error");
-                response.addProperty("dongle", "not found");
-                response.addProperty("error", e.getMessage());
+            String snapshot = statusSnapshot;
+            if (snapshot == null) {
+                snapshot = refreshStatus();
             }
+            sendResponse(exchange, 200, snapshot, "application/json");
+        }
+    }
 
+    /**
+     * Liveness: the process and its HTTP threads respond.
+     */
+    private class LiveHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            JsonObject response = new JsonObject();
+            response.addProperty("status", "live");
             sendResponse(exchange, 200, response.toString(), "application/json");
         }
     }
 
+    /**
+     * Readiness: some token is logged in and not in cool-down. Uses only
+     * in-memory state, never a token call.
+     */
+    private class ReadyHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int available = 0;
+            for (TokenPool.Token token : tokenPool.getTokens()) {
+                if (token.isLoggedIn() && tokenPool.isHealthy(token)) {
+                    available++;
+                }
+            }
+            JsonObject response = new JsonObject();
+            response.addProperty("status", available > 0 ? "ready" : "not ready");
+            response.addProperty("tokensAvailable", available);
+            if (available == 0) {
+                response.addProperty("reason", tokenPool.hasLoggedInToken() ? "all tokens unhealthy"
+                        : "no token logged in");
+            }
+            sendResponse(exchange, available > 0 ? 200 : 503, response.toString(), "application/json");
+        }
+    }
+
+    /**
+     * Rebuild the /status snapshot from in-memory state: login flags, the
+     * certificate resolved at login, worker and pool counters.
+     */
+    private String refreshStatus() {
+        JsonObject response = new JsonObject();
+        response.addProperty("generatedAt", System.currentTimeMillis());
+        // Report the token requests would go to right now
+        TokenPool.Token selected = tokenPool.select();
+        boolean connected = selected.isLoggedIn();
+        response.addProperty("status", connected ? "ok" : "error");
+        response.addProperty("dongle", connected ? "connected" : "not found");
+        addCertificateStatus(response, selected);
+        if (!connected) {
+            response.addProperty("error", "DSC not initialized. Call login() first.");
+        }
+        response.addProperty("queueDepth", tokenPool.getQueueDepth());
+        response.addProperty("lastSignLatencyMs", selected.getLastLatencyMillis());
+
+        response.add("queue", queueStatus(tokenPool.primary().getWorker()));
+
+        com.google.gson.JsonArray tokens = new com.google.gson.JsonArray();
+        for (TokenPool.Token token : tokenPool.getTokens()) {
+            JsonObject entry = new JsonObject();
+            entry.addProperty("name", token.getName());
+            entry.addProperty("loggedIn", token.isLoggedIn());
+            entry.addProperty("healthy", tokenPool.isHealthy(token));
+            SigningBackend backend = token.getDscService().getBackend();
+            if (backend != null) {
+                entry.addProperty("backend", backend.getType());
+            }
+            entry.addProperty("hostHashing", token.getDscService().isHostHashing());
+            addCertificateStatus(entry, token);
+            entry.addProperty("inFlight", token.getLoad());
+            entry.addProperty("completed", token.getCompletedCount());
+            entry.addProperty("failures", token.getFailureCount());
+            entry.addProperty("avgLatencyMs", token.getAverageLatencyMillis());
+            entry.addProperty("lastLatencyMs", token.getLastLatencyMillis());
+            if (token.getLastError() != null) {
+                entry.addProperty("lastError", token.getLastError());
+            }
+            entry.add("queue", queueStatus(token.getWorker()));
+            TokenKeepAlive keepAlive = token.getDscService().getKeepAlive();
+            if (keepAlive != null) {
+                entry.add("keepAlive", keepAliveStatus(keepAlive));
+            }
+            tokens.add(entry);
+        }
+        response.add("tokens", tokens);
+
+        JsonObject cache = new JsonObject();
+        cache.addProperty("entries", signatureCache.size());
+        cache.addProperty("hits", signatureCache.getHitCount());
+        cache.addProperty("misses", signatureCache.getMissCount());
+        cache.addProperty("sharedInFlight", signatureCache.getSharedInFlightCount());
+        cache.addProperty("evictions", signatureCache.getEvictionCount());
+        response.add("signatureCache", cache);
+
+        JsonObject pdf = new JsonObject();
+        pdf.addProperty("memoryMode", pdfMemoryPolicy.getMode());
+        pdf.addProperty("maxMainBytes", pdfMemoryPolicy.getMaxMainBytes());
+        pdf.addProperty("maxDocuments", pdfMemoryPolicy.getMaxDocuments());
+        pdf.addProperty("openDocuments", pdfMemoryPolicy.getActiveDocuments());
+        pdf.addProperty("waitingDocuments", pdfMemoryPolicy.getWaitingDocuments());
+        pdf.addProperty("optimize", pdfOptimizer != null);
+        pdf.addProperty("visibleSignature", signatureAppearance != null);
+        if (signatureAppearance != null) {
+            pdf.addProperty("appearanceTemplates", signatureAppearance.getTemplateCount());
+        }
+        response.add("pdf", pdf);
+
+        String snapshot = response.toString();
+        statusSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Subject and expiry of the token's certificate, or "N/A" if it is not
+     * logged in.
+     */
+    private static void addCertificateStatus(JsonObject target, TokenPool.Token token) {
+        try {
+            if (token.isLoggedIn()) {
+                X509Certificate certificate = token.getDscService().getCertificate();
+                target.addProperty("subject", certificate.getSubjectX500Principal().getName());
+                target.addProperty("notAfter",
+                        java.time.format.DateTimeFormatter.ISO_INSTANT.format(certificate.getNotAfter().toInstant()));
+                target.addProperty("daysToExpiry", TimeUnit.MILLISECONDS.toDays(
+                        certificate.getNotAfter().getTime() - System.currentTimeMillis()));
+                return;
+            }
+        } catch (Exception e) {
+            // Logged out in the meantime
+        }
+        target.addProperty("subject", "N/A");
+    }
+
+    private static JsonObject queueStatus(SigningWorker worker) {
+        JsonObject queue = new JsonObject();
+        queue.addProperty("depth", worker.getQueueDepth());
+        queue.addProperty("capacity", worker.getQueueCapacity());
+        queue.addProperty("completed", worker.getCompletedCount());
+        queue.addProperty("rejected", worker.getRejectedCount());
+        queue.addProperty("avgWaitMs", worker.getAverageWaitMillis());
+        queue.addProperty("maxWaitMs", worker.getMaxWaitMillis());
+        queue.addProperty("lastWaitMs", worker.getLastWaitMillis());
+        queue.addProperty("avgServiceMs", worker.getAverageServiceMillis());
+        queue.addProperty("sessions", worker.getSessions());
+        queue.addProperty("serialFallback", worker.isSerialFallback());
+        return queue;
+    }
+
+    private static JsonObject keepAliveStatus(TokenKeepAlive keepAlive) {
+        JsonObject status = new JsonObject();
+        status.addProperty("intervalMs", keepAlive.getIntervalMillis());
+        status.addProperty("warmup", keepAlive.isWarmup());
+        status.addProperty("idleMs", keepAlive.getIdleMillis());
+        status.addProperty("probes", keepAlive.getProbeCount());
+        status.addProperty("lastProbeMs", keepAlive.getLastProbeLatencyMillis());
+        status.addProperty("lastProbeAt", keepAlive.getLastProbeAtMillis());
+        status.addProperty("warmups", keepAlive.getWarmupCount());
+        status.addProperty("lastWarmupMs", keepAlive.getLastWarmupLatencyMillis());
+        status.addProperty("lastWarmupAt", keepAlive.getLastWarmupAtMillis());
+        status.addProperty("failures", keepAlive.getFailureCount());
+        if (keepAlive.getLastError() != null) {
+            status.addProperty("lastError", keepAlive.getLastError());
+        }
+        return status;
+    }
+
     private class LoginHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -129,23 +633,24 @@ public class SigningServer {
 
                 String pin = json.has("pin") ? json.get("pin").getAsString() : null;
                 String dllPath = json.has("dllPath") ? json.get("dllPath").getAsString()
-                        : config.getProperty("dsc.dllPath", "C:\\Windows\\System32\\CryptoIDA_pkcs11.dll");
+                        : config.getProperty("dsc.dllPath", DEFAULT_DLL_PATH);
+                int slotIndex = json.has("slotIndex") ? json.get("slotIndex").getAsInt()
+                        : (int) getLongProperty("dsc.slotIndex", -1);
 
                 if (pin == null || pin.isEmpty()) {
                     sendError(exchange, 400, "PIN is required");
                     return;
                 }
 
-                synchronized (dscService) {
-                    dscService.login(pin, dllPath);
-                    pdfSignerService.initialize(dscService);
-                }
+                loginToken(tokenPool.primary(), pin, dllPath, slotIndex);
 
                 JsonObject response = new JsonObject();
                 response.addProperty("status", "ok");
                 response.addProperty("message", "DSC initialized successfully");
                 sendResponse(exchange, 200, response.toString(), "application/json");
 
+            } catch (SigningWorker.QueueFullException e) {
+                sendBusy(exchange, e);
             } catch (Exception e) {
                 e.printStackTrace();
                 sendError(exchange, 500, "Initialization Failed: " + e.getMessage());
@@ -163,31 +668,169 @@ public class SigningServer {
 
             log(exchange, "POST /sign/pdf");
 
-            try {
-                byte[] fileBytes = parseMultipart(exchange);
-                if (fileBytes == null) {
+            try (MultipartParser.MultipartBody multipart = parseMultipart(exchange)) {
+                MultipartParser.Part filePart = getFilePart(multipart);
+                if (filePart == null) {
                     sendError(exchange, 400, "Missing 'file' field in multipart data");
                     return;
                 }
 
-                File tempInput = File.createTempFile("input-", ".pdf");
-                File tempOutput = File.createTempFile("signed-", ".pdf");
-                Files.write(tempInput.toPath(), fileBytes);
+                // Signed output stays in memory unless the document is large
+                SpillableBuffer signedPdf = new SpillableBuffer(
+                        (int) getLongProperty("pdf.spillThresholdBytes", DEFAULT_PDF_SPILL_THRESHOLD), "signed-");
+                try {
+                    // Parsing, hashing and saving run on this request thread;
+                    // only the CMS signature queues for the token
+                    TokenPool.Token token = tokenPool.select();
+                    PdfOptimizer.Report report = signPdfPart(filePart, signedPdf, token.getPdfSignerService(),
+                            signaturePosition(multipart), PdfBatchSigner.tokenStep(token));
+                    signedPdf.close();
+
+                    exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"signed.pdf\"");
+                    if (report != null) {
+                        exchange.getResponseHeaders().set("X-Original-Bytes", String.valueOf(report.getOriginalBytes()));
+                        exchange.getResponseHeaders().set("X-Optimized-Bytes", String.valueOf(report.getOptimizedBytes()));
+                        exchange.getResponseHeaders().set("X-Bytes-Saved", String.valueOf(report.getSavedBytes()));
+                    }
+                    sendResponse(exchange, 200, signedPdf, "application/octet-stream");
+                    System.out.println("✅ PDF Signed successfully (" + signedPdf.size() + " bytes)");
+                } finally {
+                    signedPdf.delete();
+                }
+
+            } catch (MultipartParser.BodyTooLargeException e) {
+                sendError(exchange, 413, e.getMessage());
+            } catch (MultipartParser.MultipartException e) {
+                sendError(exchange, 400, "Invalid multipart data: " + e.getMessage());
+            } catch (SigningWorker.QueueFullException e) {
+                sendBusy(exchange, e);
+            } catch (PdfMemoryPolicy.DocumentLimitException e) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendError(exchange, 429, e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendError(exchange, 500, "Signing Failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Signs every file part of the request. Documents are loaded, hashed and
+     * saved in parallel on the PDF batch pool; only their CMS signatures go
+     * through the token queue. Response: multipart/mixed with one part per
+     * input, in order, like /sign/flatfile/batch.
+     */
+    private class BatchPdfSignHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                sendError(exchange, 405, "Method Not Allowed");
+                return;
+            }
+
+            log(exchange, "POST /sign/pdf/batch");
 
-                synchronized (dscService) {
-                    pdfSignerService.signPdf(tempInput, tempOutput, "Document Signing", "India");
+            try (MultipartParser.MultipartBody multipart = parseMultipart(exchange)) {
+                if (multipart == null || multipart.getParts().isEmpty()) {
+                    sendError(exchange, 400, "No files in multipart data");
+                    return;
                 }
 
-                byte[] signedBytes = Files.readAllBytes(tempOutput.toPath());
+                // Every part except the position fields is a document
+                List<MultipartParser.Part> parts = new ArrayList<>();
+                for (MultipartParser.Part part : multipart.getParts()) {
+                    if (!isSignaturePositionField(part)) {
+                        parts.add(part);
+                    }
+                }
+                if (parts.isEmpty()) {
+                    sendError(exchange, 400, "No files in multipart data");
+                    return;
+                }
+                SignatureAppearance.Position position = signaturePosition(multipart);
+                int count = parts.size();
+                int maxDocuments = (int) getLongProperty("pdf.maxBatch", DEFAULT_MAX_PDF_BATCH);
+                if (count > maxDocuments) {
+                    sendError(exchange, 413, "Batch of " + count + " PDFs exceeds the limit of " + maxDocuments);
+                    return;
+                }
 
-                // Cleanup
-                tempInput.delete();
-                tempOutput.delete();
+                int spillThreshold = (int) getLongProperty("pdf.spillThresholdBytes", DEFAULT_PDF_SPILL_THRESHOLD);
+                List<SpillableBuffer> signedPdfs = new ArrayList<>(count);
+                PdfOptimizer.Report[] reports = new PdfOptimizer.Report[count];
+                try {
+                    List<PdfBatchSigner.Document> documents = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        MultipartParser.Part part = parts.get(i);
+                        SpillableBuffer signedPdf = new SpillableBuffer(spillThreshold, "signed-");
+                        signedPdfs.add(signedPdf);
+                        int index = i;
+                        documents.add((signer, tokenStep) -> {
+                            reports[index] = signPdfPart(part, signedPdf, signer, position, tokenStep);
+                            signedPdf.close();
+                        });
+                    }
 
-                exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"signed.pdf\"");
-                sendResponse(exchange, 200, signedBytes, "application/octet-stream");
-                System.out.println("✅ PDF Signed successfully (" + signedBytes.length + " bytes)");
+                    PdfBatchSigner.Result result = pdfBatchSigner.signAll(documents);
+                    int signedCount = result.getSignedCount();
+                    String documentsPerSecond = String.format(Locale.ROOT, "%.1f", result.getDocumentsPerSecond());
+
+                    String responseBoundary = "signed-batch-" + UUID.randomUUID();
+                    exchange.getResponseHeaders().set("Content-Type", "multipart/mixed; boundary=" + responseBoundary);
+                    exchange.getResponseHeaders().set("X-Signed-Count", String.valueOf(signedCount));
+                    exchange.getResponseHeaders().set("X-Failed-Count", String.valueOf(result.getFailedCount()));
+                    exchange.getResponseHeaders().set("X-Documents-Per-Second", documentsPerSecond);
+                    exchange.sendResponseHeaders(200, 0);
+
+                    try (OutputStream os = new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024)) {
+                        for (int i = 0; i < count; i++) {
+                            MultipartParser.Part part = parts.get(i);
+                            String filename = part.getFilename() != null ? part.getFilename() : "file" + (i + 1) + ".pdf";
+
+                            StringBuilder header = new StringBuilder();
+                            header.append("--").append(responseBoundary).append("\r\n");
+                            header.append("X-Batch-Index: ").append(i).append("\r\n");
+                            if (result.isSigned(i)) {
+                                SpillableBuffer signedPdf = signedPdfs.get(i);
+                                header.append("X-Sign-Status: ok\r\n");
+                                header.append("Content-Type: application/pdf\r\n");
+                                header.append("Content-Disposition: attachment; filename=\"")
+                                        .append(signedFileName(filename)).append("\"\r\n");
+                                if (reports[i] != null) {
+                                    header.append("X-Original-Bytes: ").append(reports[i].getOriginalBytes()).append("\r\n");
+                                    header.append("X-Bytes-Saved: ").append(reports[i].getSavedBytes()).append("\r\n");
+                                }
+                                header.append("Content-Length: ").append(signedPdf.size()).append("\r\n\r\n");
+                                os.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+                                signedPdf.writeTo(os);
+                            } else {
+                                JsonObject error = new JsonObject();
+                                error.addProperty("file", filename);
+                                error.addProperty("error", result.getError(i));
+                                byte[] content = error.toString().getBytes(StandardCharsets.UTF_8);
+                                header.append("X-Sign-Status: error\r\n");
+                                header.append("Content-Type: application/json\r\n");
+                                header.append("Content-Length: ").append(content.length).append("\r\n\r\n");
+                                os.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+                                os.write(content);
+                            }
+                            os.write(CRLF);
+                        }
+                        os.write(("--" + responseBoundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                    }
 
+                    System.out.println("✅ Batch signed " + signedCount + "/" + count + " PDFs in "
+                            + (result.getElapsedNanos() / 1_000_000) + " ms (" + documentsPerSecond + " docs/s)");
+                } finally {
+                    for (SpillableBuffer signedPdf : signedPdfs) {
+                        signedPdf.delete();
+                    }
+                }
+
+            } catch (MultipartParser.BodyTooLargeException e) {
+                sendError(exchange, 413, e.getMessage());
+            } catch (MultipartParser.MultipartException e) {
+                sendError(exchange, 400, "Invalid multipart data: " + e.getMessage());
             } catch (Exception e) {
                 e.printStackTrace();
                 sendError(exchange, 500, "Signing Failed: " + e.getMessage());
@@ -205,50 +848,280 @@ public class SigningServer {
 
             log(exchange, "POST /sign/flatfile");
 
-            try {
-                byte[] rawBytes = parseMultipart(exchange);
-                if (rawBytes == null) {
+            try (MultipartParser.MultipartBody multipart = parseMultipart(exchange)) {
+                MultipartParser.Part filePart = getFilePart(multipart);
+                if (filePart == null) {
                     sendError(exchange, 400, "Missing 'file' field in multipart data");
                     return;
                 }
-
-                byte[] originalBytes = rawBytes; // keep original for writing to file
+                byte[] rawBytes = filePart.getBytes();
 
                 // Prepare the exact bytes that will form the payload in the file
-                String dataPart = new String(originalBytes, "ISO-8859-1").stripTrailing();
-                byte[] exactPayloadBytes = (dataPart + "\n").getBytes("ISO-8859-1");
-                byte[] strippedBytes = dataPart.getBytes("ISO-8859-1");
+                int payloadLength = SbCanonicalizer.canonicalLength(rawBytes);
+
+                // Sign using the ICEGATE double-nested hashing scheme on stripped bytes
+                TokenPool.Token token = tokenPool.select();
+                SbEnvelope envelope = token.getDscService().getEnvelope();
+                byte[] signature = signCached(token, envelope, rawBytes, payloadLength);
+
+                byte[] outputBytes = envelope.toByteArray(rawBytes, 0, payloadLength, signature);
+
+                exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"signed.sb\"");
+                sendResponse(exchange, 200, outputBytes, "application/octet-stream");
+                System.out.println("✅ Flat file signed successfully (" + outputBytes.length + " bytes)");
+
+            } catch (MultipartParser.BodyTooLargeException e) {
+                sendError(exchange, 413, e.getMessage());
+            } catch (MultipartParser.MultipartException e) {
+                sendError(exchange, 400, "Invalid multipart data: " + e.getMessage());
+            } catch (SigningWorker.QueueFullException e) {
+                sendBusy(exchange, e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendError(exchange, 500, "Signing Failed: " + e.getMessage());
+            }
+        }
+    }
 
-                byte[] signature;
-                String certificateBase64;
+    /**
+     * Signs every file part of one multipart request on one token, in tasks
+     * of worker.maxBatchSize files with one key handle each, and streams back
+     * a multipart/mixed response with one part per input file, in request
+     * order. Each response part carries X-Sign-Status "ok" (the signed .sb)
+     * or "error" (a JSON error object).
+     */
+    private class BatchFlatFileSignHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                sendError(exchange, 405, "Method Not Allowed");
+                return;
+            }
+
+            log(exchange, "POST /sign/flatfile/batch");
 
-                synchronized (dscService) {
-                    // Sign using the ICEGATE double-nested hashing scheme on stripped bytes
-                    signature = dscService.signSHA2(strippedBytes);
-                    certificateBase64 = dscService.getCertificateBase64();
+            try (MultipartParser.MultipartBody multipart = parseMultipart(exchange)) {
+                if (multipart == null || multipart.getParts().isEmpty()) {
+                    sendError(exchange, 400, "No files in multipart data");
+                    return;
                 }
 
+                List<MultipartParser.Part> parts = multipart.getParts();
+                int count = parts.size();
+                int maxFiles = (int) getLongProperty("flatfile.maxBatch", DEFAULT_MAX_FLATFILE_BATCH);
+                if (count > maxFiles) {
+                    sendError(exchange, 413, "Batch of " + count + " flat files exceeds the limit of " + maxFiles);
+                    return;
+                }
 
-                String signatureBase64 = Base64.getEncoder().encodeToString(signature);
+                // Parts stay where the parser put them (heap or temp file) and
+                // are read twice: once to hash, once to write the signed file
+                long[] payloadLengths = new long[count];
+                byte[][] digests = new byte[count][];
+                byte[][] signatures = new byte[count][];
+                String[] errors = new String[count];
+
+                for (int i = 0; i < count; i++) {
+                    SbCanonicalizer.StreamDigest canonical;
+                    try (InputStream in = parts.get(i).openStream()) {
+                        canonical = SbCanonicalizer.digest(in);
+                    }
+                    if (canonical.getLength() == 0) {
+                        errors[i] = "Empty flat file";
+                    } else {
+                        payloadLengths[i] = canonical.getLength();
+                        digests[i] = canonical.getDigest();
+                    }
+                }
 
-                // Construct ICEGATE .sb format
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                // The whole batch goes to one token so every file carries the
+                // certificate of the envelope chosen here
+                TokenPool.Token token = tokenPool.select();
+                SbEnvelope envelope = token.getDscService().getEnvelope();
+
+                long startNanos = System.nanoTime();
+                signDigestsCached(token, envelope.getFingerprint(), digests, signatures, errors);
+                long elapsedNanos = System.nanoTime() - startNanos;
+
+                int signedCount = 0;
+                for (byte[] signature : signatures) {
+                    if (signature != null) {
+                        signedCount++;
+                    }
+                }
+                double billsPerSecond = elapsedNanos > 0 ? signedCount * 1_000_000_000.0 / elapsedNanos : 0;
+
+                String responseBoundary = "signed-batch-" + UUID.randomUUID();
+                exchange.getResponseHeaders().set("Content-Type", "multipart/mixed; boundary=" + responseBoundary);
+                exchange.getResponseHeaders().set("X-Signed-Count", String.valueOf(signedCount));
+                exchange.getResponseHeaders().set("X-Failed-Count", String.valueOf(count - signedCount));
+                exchange.getResponseHeaders().set("X-Bills-Per-Second", String.format(Locale.ROOT, "%.1f", billsPerSecond));
+                exchange.sendResponseHeaders(200, 0);
+
+                try (OutputStream os = new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024)) {
+                    for (int i = 0; i < count; i++) {
+                        MultipartParser.Part part = parts.get(i);
+                        String filename = part.getFilename() != null ? part.getFilename() : "file" + (i + 1) + ".sb";
+
+                        StringBuilder header = new StringBuilder();
+                        header.append("--").append(responseBoundary).append("\r\n");
+                        header.append("X-Batch-Index: ").append(i).append("\r\n");
+                        if (signatures[i] != null) {
+                            header.append("X-Sign-Status: ok\r\n");
+                            header.append("Content-Type: application/octet-stream\r\n");
+                            header.append("Content-Disposition: attachment; filename=\"")
+                                    .append(signedFileName(filename)).append("\"\r\n");
+                            header.append("Content-Length: ")
+                                    .append(envelope.signedLength(payloadLengths[i], signatures[i].length))
+                                    .append("\r\n\r\n");
+                            os.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+                            try (InputStream payload = part.openStream()) {
+                                envelope.write(os, payload, payloadLengths[i], signatures[i]);
+                            }
+                        } else {
+                            JsonObject error = new JsonObject();
+                            error.addProperty("file", filename);
+                            error.addProperty("error", errors[i] != null ? errors[i] : "Signing Failed");
+                            byte[] content = error.toString().getBytes(StandardCharsets.UTF_8);
+                            header.append("X-Sign-Status: error\r\n");
+                            header.append("Content-Type: application/json\r\n");
+                            header.append("Content-Length: ").append(content.length).append("\r\n\r\n");
+                            os.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+                            os.write(content);
+                        }
+                        os.write(CRLF);
+                    }
+                    os.write(("--" + responseBoundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                }
 
-                // Write the exact payload bytes
-                baos.write(exactPayloadBytes);
+                System.out.println("✅ Batch signed " + signedCount + "/" + count + " flat files in "
+                        + (elapsedNanos / 1_000_000) + " ms ("
+                        + String.format(Locale.ROOT, "%.1f", billsPerSecond) + " bills/s)");
 
-                // Append signature blocks with \n (LF only — matches V-NCODE format)
-                baos.write(("<START-SIGNATURE>" + signatureBase64 + "</START-SIGNATURE>\n").getBytes("ISO-8859-1"));
-                baos.write(("<START-CERTIFICATE>" + certificateBase64 + "</START-CERTIFICATE>\n")
-                        .getBytes("ISO-8859-1"));
-                baos.write("<SIGNER-VERSION>V-NCODE_01.05.2013</SIGNER-VERSION>".getBytes("ISO-8859-1"));
+            } catch (MultipartParser.BodyTooLargeException e) {
+                sendError(exchange, 413, e.getMessage());
+            } catch (MultipartParser.MultipartException e) {
+                sendError(exchange, 400, "Invalid multipart data: " + e.getMessage());
+            } catch (SigningWorker.QueueFullException e) {
+                sendBusy(exchange, e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendError(exchange, 500, "Signing Failed: " + e.getMessage());
+            }
+        }
+    }
 
-                byte[] outputBytes = baos.toByteArray();
+    /**
+     * Signs one SHA-256 digest of a stripped flat-file payload, for callers
+     * that hash the bill themselves. Accepts 32 raw bytes
+     * (application/octet-stream), a hex string (text/plain) or
+     * {"digest": "&lt;hex&gt;"} (application/json); returns the signature and the
+     * certificate needed to assemble the .sb file.
+     */
+    private class DigestSignHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                sendError(exchange, 405, "Method Not Allowed");
+                return;
+            }
 
-                exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"signed.sb\"");
-                sendResponse(exchange, 200, outputBytes, "application/octet-stream");
-                System.out.println("✅ Flat file signed successfully (" + outputBytes.length + " bytes)");
+            log(exchange, "POST /sign/digest");
+
+            try {
+                List<byte[]> digests = readDigests(exchange, 1);
+                if (digests.size() != 1) {
+                    sendError(exchange, 400, "Expected exactly one digest");
+                    return;
+                }
+                byte[] digest = digests.get(0);
+
+                TokenPool.Token token = tokenPool.select();
+                SbEnvelope envelope = token.getDscService().getEnvelope();
+                byte[] signature = signDigestCached(token, envelope.getFingerprint(), digest);
+
+                JsonObject response = digestResponse(envelope);
+                response.addProperty("digest", SignatureCache.toHex(digest));
+                response.addProperty("signature", Base64.getEncoder().encodeToString(signature));
+                sendResponse(exchange, 200, response.toString(), "application/json");
+
+            } catch (MultipartParser.BodyTooLargeException e) {
+                sendError(exchange, 413, e.getMessage());
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+            } catch (SigningWorker.QueueFullException e) {
+                sendBusy(exchange, e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendError(exchange, 500, "Signing Failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Signs many digests in one token session. Accepts N*32 raw bytes,
+     * whitespace-separated hex digests or {"digests": ["&lt;hex&gt;", ...]}; the
+     * results array keeps request order and holds a signature or an error per
+     * digest.
+     */
+    private class BatchDigestSignHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                sendError(exchange, 405, "Method Not Allowed");
+                return;
+            }
+
+            log(exchange, "POST /sign/digest/batch");
+
+            try {
+                int maxDigests = (int) getLongProperty("digest.maxBatch", DEFAULT_MAX_DIGEST_BATCH);
+                List<byte[]> digestList = readDigests(exchange, maxDigests);
+                if (digestList.isEmpty()) {
+                    sendError(exchange, 400, "No digests in request");
+                    return;
+                }
+
+                int count = digestList.size();
+                byte[][] digests = digestList.toArray(new byte[count][]);
+                byte[][] signatures = new byte[count][];
+                String[] errors = new String[count];
+
+                TokenPool.Token token = tokenPool.select();
+                SbEnvelope envelope = token.getDscService().getEnvelope();
+                long startNanos = System.nanoTime();
+                signDigestsCached(token, envelope.getFingerprint(), digests, signatures, errors);
+                long elapsedNanos = System.nanoTime() - startNanos;
+
+                int signedCount = 0;
+                com.google.gson.JsonArray results = new com.google.gson.JsonArray();
+                for (int i = 0; i < count; i++) {
+                    JsonObject result = new JsonObject();
+                    result.addProperty("digest", SignatureCache.toHex(digests[i]));
+                    if (signatures[i] != null) {
+                        result.addProperty("signature", Base64.getEncoder().encodeToString(signatures[i]));
+                        signedCount++;
+                    } else {
+                        result.addProperty("error", errors[i] != null ? errors[i] : "Signing Failed");
+                    }
+                    results.add(result);
+                }
 
+                JsonObject response = digestResponse(envelope);
+                response.addProperty("signedCount", signedCount);
+                response.addProperty("failedCount", count - signedCount);
+                response.add("results", results);
+                sendResponse(exchange, 200, response.toString(), "application/json");
+
+                System.out.println("✅ Batch signed " + signedCount + "/" + count + " digests in "
+                        + (elapsedNanos / 1_000_000) + " ms");
+
+            } catch (MultipartParser.BodyTooLargeException e) {
+                sendError(exchange, 413, e.getMessage());
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+            } catch (SigningWorker.QueueFullException e) {
+                sendBusy(exchange, e);
             } catch (Exception e) {
                 e.printStackTrace();
                 sendError(exchange, 500, "Signing Failed: " + e.getMessage());
@@ -257,43 +1130,188 @@ public class SigningServer {
     }
 
     /**
-     * Minimal Multipart Parser (Handles only the first file field named "file")
+     * Certificate fields shared by the digest responses.
      */
-    private byte[] parseMultipart(HttpExchange exchange) throws IOException {
+    private static JsonObject digestResponse(SbEnvelope envelope) {
+        JsonObject response = new JsonObject();
+        response.addProperty("algorithm", "SHA1withRSA");
+        response.addProperty("certificate", envelope.getCertificateBase64());
+        response.addProperty("fingerprint", envelope.getFingerprint());
+        response.addProperty("signerVersion", SbEnvelope.SIGNER_VERSION);
+        return response;
+    }
+
+    /**
+     * Parse up to maxDigests SHA-256 digests from the request body: raw bytes
+     * in 32-byte steps, JSON {"digest": ...} / {"digests": [...]}, or hex
+     * separated by whitespace or commas.
+     */
+    private List<byte[]> readDigests(HttpExchange exchange, int maxDigests) throws IOException {
         String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
-        if (contentType == null || !contentType.contains("boundary=")) {
-            return null;
+        contentType = contentType == null ? "" : contentType.toLowerCase(Locale.ROOT);
+        boolean binary = contentType.startsWith("application/octet-stream");
+
+        // 64 hex chars plus quotes and separators per digest, with room for JSON keys
+        long maxBytes = binary ? (long) maxDigests * DIGEST_LENGTH : (long) maxDigests * 80 + 1024;
+        byte[] body = readBody(exchange.getRequestBody(), maxBytes);
+
+        List<byte[]> digests = new ArrayList<>();
+        if (binary) {
+            if (body.length % DIGEST_LENGTH != 0) {
+                throw new IllegalArgumentException("Binary body must be a multiple of 32 bytes, got " + body.length);
+            }
+            for (int off = 0; off < body.length; off += DIGEST_LENGTH) {
+                digests.add(Arrays.copyOfRange(body, off, off + DIGEST_LENGTH));
+            }
+        } else if (contentType.startsWith("application/json")) {
+            try {
+                JsonObject json = new com.google.gson.Gson().fromJson(new String(body, StandardCharsets.UTF_8),
+                        JsonObject.class);
+                if (json != null && json.has("digest")) {
+                    digests.add(parseHexDigest(json.get("digest").getAsString()));
+                }
+                if (json != null && json.has("digests")) {
+                    for (com.google.gson.JsonElement element : json.getAsJsonArray("digests")) {
+                        digests.add(parseHexDigest(element.getAsString()));
+                    }
+                }
+            } catch (com.google.gson.JsonParseException | IllegalStateException | UnsupportedOperationException
+                    | ClassCastException e) {
+                throw new IllegalArgumentException("Invalid JSON: " + e.getMessage());
+            }
+        } else {
+            for (String token : new String(body, StandardCharsets.ISO_8859_1).split("[\\s,]+")) {
+                if (!token.isEmpty()) {
+                    digests.add(parseHexDigest(token));
+                }
+            }
         }
 
-        String boundary = "--" + contentType.split("boundary=")[1];
-        byte[] body = exchange.getRequestBody().readAllBytes();
+        if (digests.size() > maxDigests) {
+            throw new IllegalArgumentException("Too many digests: " + digests.size() + " (limit " + maxDigests + ")");
+        }
+        return digests;
+    }
 
-        // Find boundary
-        int start = indexOf(body, boundary.getBytes(), 0) + boundary.length();
-        // Skip headers (until double CRLF)
-        int headerEnd = indexOf(body, "\r\n\r\n".getBytes(), start) + 4;
-        // Find next boundary
-        int end = indexOf(body, boundary.getBytes(), headerEnd) - 2; // -2 for CRLF before boundary
+    private static byte[] parseHexDigest(String hex) {
+        String value = hex.trim();
+        if (value.length() != DIGEST_LENGTH * 2) {
+            throw new IllegalArgumentException("Digest must be 64 hex characters: " + value);
+        }
+        byte[] digest = new byte[DIGEST_LENGTH];
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            int high = Character.digit(value.charAt(2 * i), 16);
+            int low = Character.digit(value.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Digest is not valid hex: " + value);
+            }
+            digest[i] = (byte) ((high << 4) | low);
+        }
+        return digest;
+    }
 
-        if (start < 0 || headerEnd < 0 || end < 0)
+    /**
+     * Read a small request body, refusing anything over maxBytes.
+     */
+    private static byte[] readBody(InputStream in, long maxBytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            total += n;
+            if (total > maxBytes) {
+                throw new MultipartParser.BodyTooLargeException(maxBytes);
+            }
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Sign one uploaded PDF: from its temp file if it was spilled, otherwise
+     * from memory.
+     */
+    private static PdfOptimizer.Report signPdfPart(MultipartParser.Part part, OutputStream output,
+            PdfSignerService signer, SignatureAppearance.Position position, PdfSignerService.DigestSigner tokenStep)
+            throws Exception {
+        if (part.isSpilled()) {
+            return signer.signPdf(part.getFile(), output, "Document Signing", "India", position, tokenStep);
+        }
+        try (InputStream fileStream = part.openStream()) {
+            return signer.signPdf(fileStream, output, "Document Signing", "India", position, tokenStep);
+        }
+    }
+
+    /**
+     * Visible-signature position from the optional form fields
+     * signaturePage, signatureX and signatureY; null if none is given. Missing
+     * ones fall back to the configured default.
+     */
+    private SignatureAppearance.Position signaturePosition(MultipartParser.MultipartBody multipart)
+            throws Exception {
+        MultipartParser.Part page = multipart.getPart("signaturePage");
+        MultipartParser.Part x = multipart.getPart("signatureX");
+        MultipartParser.Part y = multipart.getPart("signatureY");
+        if (page == null && x == null && y == null) {
             return null;
+        }
+        SignatureAppearance.Position defaults = signatureAppearance != null ? signatureAppearance.getDefaultPosition()
+                : defaultSignaturePosition();
+        try {
+            return new SignatureAppearance.Position(
+                    page != null ? Integer.parseInt(fieldValue(page)) : defaults.getPage(),
+                    x != null ? Float.parseFloat(fieldValue(x)) : defaults.getX(),
+                    y != null ? Float.parseFloat(fieldValue(y)) : defaults.getY());
+        } catch (NumberFormatException e) {
+            throw new MultipartParser.MultipartException("Invalid signature position: " + e.getMessage());
+        }
+    }
 
-        return Arrays.copyOfRange(body, headerEnd, end);
+    private SignatureAppearance.Position defaultSignaturePosition() {
+        return new SignatureAppearance.Position((int) getLongProperty("pdf.signature.page", -1),
+                getLongProperty("pdf.signature.x", 36), getLongProperty("pdf.signature.y", 36));
     }
 
-    private int indexOf(byte[] array, byte[] target, int start) {
-        for (int i = start; i <= array.length - target.length; i++) {
-            boolean found = true;
-            for (int j = 0; j < target.length; j++) {
-                if (array[i + j] != target[j]) {
-                    found = false;
-                    break;
-                }
-            }
-            if (found)
-                return i;
+    private static boolean isSignaturePositionField(MultipartParser.Part part) {
+        String name = part.getName();
+        return "signaturePage".equals(name) || "signatureX".equals(name) || "signatureY".equals(name);
+    }
+
+    private static String fieldValue(MultipartParser.Part part) throws IOException {
+        return new String(part.getBytes(), StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * "bill.sb" becomes "billSigned.sb", matching the nCode naming.
+     */
+    private String signedFileName(String filename) {
+        String safe = filename.replaceAll("[\\\\/\"\\r\\n]", "_");
+        int lastDot = safe.lastIndexOf('.');
+        return lastDot > 0 ? safe.substring(0, lastDot) + "Signed" + safe.substring(lastDot) : safe + "Signed";
+    }
+
+    /**
+     * Parse the multipart request body. Returns null if the request is not
+     * multipart; the caller must close the returned body.
+     */
+    private MultipartParser.MultipartBody parseMultipart(HttpExchange exchange) throws IOException {
+        String boundary = MultipartParser.extractBoundary(exchange.getRequestHeaders().getFirst("Content-Type"));
+        if (boundary == null) {
+            return null;
+        }
+        return multipartParser.parse(exchange.getRequestBody(), boundary);
+    }
+
+    /**
+     * The uploaded file: the field named "file", else the first part.
+     */
+    private MultipartParser.Part getFilePart(MultipartParser.MultipartBody multipart) {
+        if (multipart == null || multipart.getParts().isEmpty()) {
+            return null;
         }
-        return -1;
+        MultipartParser.Part part = multipart.getPart("file");
+        return part != null ? part : multipart.getParts().get(0);
     }
 
     private void sendResponse(HttpExchange exchange, int code, String body, String type) throws IOException {
@@ -308,13 +1326,119 @@ public class SigningServer {
         }
     }
 
+    private void sendResponse(HttpExchange exchange, int code, SpillableBuffer body, String type) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(code, body.size());
+        try (OutputStream os = exchange.getResponseBody()) {
+            body.writeTo(os);
+        }
+    }
+
     private void sendError(HttpExchange exchange, int code, String message) throws IOException {
         JsonObject error = new JsonObject();
         error.addProperty("error", message);
+        SignerMetrics.get().errors.labels(SignerMetrics.causeOf(code)).increment();
         sendResponse(exchange, code, error.toString(), "application/json");
         System.err.println("❌ Error [" + code + "]: " + message);
     }
 
+    private void sendBusy(HttpExchange exchange, SigningWorker.QueueFullException e) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+        sendError(exchange, 429, e.getMessage());
+    }
+
+    /**
+     * ICEGATE SHA-256 -> SHA1withRSA signature of payload[0, payloadLength), served
+     * from the signature cache when the same bytes were recently signed with the
+     * same certificate. Identical concurrent requests share one token operation.
+     */
+    private byte[] signCached(TokenPool.Token token, SbEnvelope envelope, byte[] payload, int payloadLength)
+            throws Exception {
+        if (payloadLength == 0) {
+            throw new Exception("No data provided for signing.");
+        }
+        return signDigestCached(token, envelope.getFingerprint(),
+                SbCanonicalizer.digest(payload, 0, payloadLength));
+    }
+
+    /**
+     * SHA1withRSA signature of a 32-byte SHA-256 digest, through the signature
+     * cache.
+     */
+    private byte[] signDigestCached(TokenPool.Token token, String fingerprint, byte[] digest) throws Exception {
+        return signatureCache.getOrSign(SignatureCache.key(digest, fingerprint),
+                () -> token.execute(dsc -> {
+                    checkCertificateUnchanged(dsc, fingerprint);
+                    return dsc.signSha256Digest(digest);
+                }));
+    }
+
+    /**
+     * Sign many digests on one token. Repeats of recently signed bills are
+     * answered from the cache; the rest are signed in worker tasks of at most
+     * worker.maxBatchSize digests, each with one key handle, so every task
+     * stays inside the worker timeout. Null digests are skipped. If the first
+     * task fails the exception reaches the caller; a later failure is stored
+     * in errors for every digest not yet signed.
+     */
+    private void signDigestsCached(TokenPool.Token token, String fingerprint, byte[][] digests,
+            byte[][] signatures, String[] errors) throws Exception {
+        int count = digests.length;
+        String[] cacheKeys = new String[count];
+        int[] misses = new int[count];
+        int missCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (digests[i] == null) {
+                continue;
+            }
+            cacheKeys[i] = SignatureCache.key(digests[i], fingerprint);
+            signatures[i] = signatureCache.getIfPresent(cacheKeys[i]);
+            if (signatures[i] == null) {
+                misses[missCount++] = i;
+            }
+        }
+
+        int chunkSize = token.getWorker().getMaxBatchSize();
+        for (int from = 0; from < missCount; from += chunkSize) {
+            int size = Math.min(chunkSize, missCount - from);
+            byte[][] chunk = new byte[size][];
+            for (int k = 0; k < size; k++) {
+                chunk[k] = digests[misses[from + k]];
+            }
+
+            byte[][] signed;
+            try {
+                signed = token.execute(dsc -> {
+                    checkCertificateUnchanged(dsc, fingerprint);
+                    return dsc.signSha256Digests(chunk, SigningWorker::isCurrentTaskCancelled);
+                });
+            } catch (Exception e) {
+                if (from == 0) {
+                    throw e;
+                }
+                for (int k = from; k < missCount; k++) {
+                    errors[misses[k]] = e.getMessage();
+                }
+                return;
+            }
+            for (int k = 0; k < size; k++) {
+                int i = misses[from + k];
+                signatures[i] = signed[k];
+                signatureCache.put(cacheKeys[i], signed[k]);
+            }
+        }
+    }
+
+    /**
+     * Guards the cache key against a re-login to a different certificate
+     * between hashing and signing.
+     */
+    private static void checkCertificateUnchanged(DscService dsc, String fingerprint) throws Exception {
+        if (!fingerprint.equals(dsc.getCertificateFingerprint())) {
+            throw new Exception("Signing certificate changed during the request. Please retry.");
+        }
+    }
+
     private void log(HttpExchange exchange, String endpoint) {
         String timestamp = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
         System.out.println("[" + timestamp + "] Request: " + endpoint + " from " + exchange.getRemoteAddress());
@@ -368,8 +1492,9 @@ public class SigningServer {
                 }
             });
 
-            httpsServer.createContext("/signservice/signdata", new NcodeSignDataHandler());
-            httpsServer.setExecutor(Executors.newFixedThreadPool(5));
+            // One file chooser at a time; a second request must not queue behind a dialog
+            createContext(httpsServer, "/signservice/signdata", new NcodeSignDataHandler(), 1);
+            httpsServer.setExecutor(createExecutor("https"));
             httpsServer.start();
             System.out.println("🚀 Secure nCode replacement server successfully active on port " + HTTPS_PORT);
 
@@ -428,32 +1553,17 @@ public class SigningServer {
                 byte[] originalBytes = Files.readAllBytes(selectedFile[0].toPath());
 
                 // 4. Sign exactly the same way we do in our perfected flat-file signer
-                String dataPart = new String(originalBytes, "ISO-8859-1").stripTrailing();
-                byte[] exactPayloadBytes = (dataPart + "\n").getBytes("ISO-8859-1");
-                byte[] strippedBytes = dataPart.getBytes("ISO-8859-1");
-
-                byte[] signature;
-                String certificateBase64;
+                int payloadLength = SbCanonicalizer.canonicalLength(originalBytes);
 
-                synchronized (dscService) {
-                    if (dscService.getCertificate() == null) {
-                        throw new IllegalStateException("DSC Token not initialized! Please login first in the Exim DSC Local Signer app.");
-                    }
-                    signature = dscService.signSHA2(strippedBytes);
-                    certificateBase64 = dscService.getCertificateBase64();
+                TokenPool.Token token = tokenPool.select();
+                if (token.getDscService().getCertificate() == null) {
+                    throw new IllegalStateException("DSC Token not initialized! Please login first in the Exim DSC Local Signer app.");
                 }
-
-
-                String signatureBase64 = Base64.getEncoder().encodeToString(signature);
+                SbEnvelope envelope = token.getDscService().getEnvelope();
+                byte[] signature = signCached(token, envelope, originalBytes, payloadLength);
 
                 // Construct ICEGATE .sb format
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                baos.write(exactPayloadBytes);
-                baos.write(("<START-SIGNATURE>" + signatureBase64 + "</START-SIGNATURE>\n").getBytes("ISO-8859-1"));
-                baos.write(("<START-CERTIFICATE>" + certificateBase64 + "</START-CERTIFICATE>\n").getBytes("ISO-8859-1"));
-                baos.write("<SIGNER-VERSION>V-NCODE_01.05.2013</SIGNER-VERSION>".getBytes("ISO-8859-1"));
-
-                byte[] outputBytes = baos.toByteArray();
+                byte[] outputBytes = envelope.toByteArray(originalBytes, 0, payloadLength, signature);
 
                 // 5. Generate signed file path (appending "Signed")
                 String absolutePath = selectedFile[0].getAbsolutePath();
@@ -477,6 +1587,9 @@ public class SigningServer {
                 setCorsHeaders(exchange);
                 sendResponse(exchange, 200, response.toString(), "application/json");
 
+            } catch (SigningWorker.QueueFullException e) {
+                setCorsHeaders(exchange);
+                sendBusy(exchange, e);
             } catch (Exception e) {
                 e.printStackTrace();
                 setCorsHeaders(exchange);
@@ -0,0 +1,338 @@
+package com.exim.signer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Worker thread(s) that own the DscService. HTTP handlers hand their token work
+ * to this worker instead of contending on a monitor: requests wait in a
+ * bounded FIFO queue, each runs as soon as a worker thread is free, and a
+ * full queue is rejected immediately so the caller can answer HTTP 429.
+ *
+ * Queued requests are independent tasks, so the worker does not group them;
+ * batch endpoints get real batching by signing up to
+ * {@link #getMaxBatchSize()} items with one key handle inside one task.
+ *
+ * A caller that times out gets an exception at once, but a task that has
+ * already started is not interrupted (a PKCS#11 call cannot be). Long tasks
+ * check {@link #isCurrentTaskCancelled()} between items and stop early.
+ *
+ * With more than one session the worker runs that many threads against the
+ * token; SunPKCS11 gives each concurrent Signature its own PKCS#11 session.
+ * Exclusive tasks (login) still run alone. If a token error occurs while
+ * tasks run concurrently, the worker falls back to serial mode for good and
+ * retries the failed task once on its own.
+ */
+public class SigningWorker {
+
+    /**
+     * Unit of work executed on the worker thread with exclusive token access.
+     */
+    public interface SigningTask<T> {
+        T run(DscService dscService) throws Exception;
+    }
+
+    /**
+     * Thrown when the queue is full; carries a Retry-After estimate.
+     */
+    public static class QueueFullException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int retryAfterSeconds;
+
+        public QueueFullException(int queueDepth, int retryAfterSeconds) {
+            super("Signing queue full (" + queueDepth + " waiting). Retry after " + retryAfterSeconds + "s");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 16;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 120_000;
+    public static final int DEFAULT_SESSIONS = 1;
+
+    private static final ThreadLocal<QueuedTask<?>> CURRENT = new ThreadLocal<>();
+
+    private final DscService dscService;
+    private final BlockingQueue<QueuedTask<?>> queue;
+    private final int maxBatchSize;
+    private final long timeoutMillis;
+    private final Thread[] threads;
+    private final ReentrantReadWriteLock tokenLock = new ReentrantReadWriteLock(true);
+    private final Object idle = new Object();
+    private volatile int activeThreads;
+    private volatile boolean serial;
+    private volatile boolean running = true;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAdder totalServiceNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private volatile long lastWaitNanos;
+
+    public SigningWorker(DscService dscService) {
+        this(dscService, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public SigningWorker(DscService dscService, int queueCapacity, int maxBatchSize, long timeoutMillis) {
+        this(dscService, queueCapacity, maxBatchSize, timeoutMillis, DEFAULT_SESSIONS);
+    }
+
+    /**
+     * @param maxBatchSize most items a batch endpoint signs in one task
+     * @param sessions number of tasks allowed on the token at the same time
+     */
+    public SigningWorker(DscService dscService, int queueCapacity, int maxBatchSize, long timeoutMillis,
+            int sessions) {
+        this.dscService = dscService;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.timeoutMillis = timeoutMillis;
+        this.threads = new Thread[Math.max(1, sessions)];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            String name = "signing-worker-" + dscService.getTokenName() + (threads.length > 1 ? "-" + i : "");
+            threads[i] = new Thread(() -> runLoop(index), name);
+            threads[i].setDaemon(true);
+        }
+        this.activeThreads = threads.length;
+    }
+
+    public void start() {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        System.out.println("✅ Signing worker for " + dscService.getTokenName() + " started (queue="
+                + queue.remainingCapacity() + ", maxBatchSize=" + maxBatchSize + ", sessions=" + threads.length
+                + ")");
+    }
+
+    public void shutdown() {
+        running = false;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Lower the number of concurrent sessions, e.g. to the maximum the token
+     * reports after login. Surplus threads stay idle.
+     */
+    public void limitSessions(int sessions) {
+        int limit = Math.max(1, Math.min(threads.length, sessions));
+        if (limit != activeThreads) {
+            System.out.println("ℹ Signing worker for " + dscService.getTokenName() + " limited to " + limit
+                    + " concurrent session(s)");
+        }
+        activeThreads = limit;
+        synchronized (idle) {
+            idle.notifyAll();
+        }
+    }
+
+    public int getSessions() {
+        return serial ? 1 : activeThreads;
+    }
+
+    public boolean isSerialFallback() {
+        return serial;
+    }
+
+    /**
+     * Most items a batch endpoint should sign in one task, so that one task
+     * stays well inside the caller's timeout.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * True if the task running on this thread belongs to a caller that has
+     * timed out. Always false outside a worker task.
+     */
+    public static boolean isCurrentTaskCancelled() {
+        QueuedTask<?> current = CURRENT.get();
+        return current != null && current.isCancelled();
+    }
+
+    /**
+     * Queue a task and block until it finishes. Exceptions thrown by the task
+     * are rethrown unchanged. On timeout the task is cancelled: it is dropped
+     * if still queued, and sees {@link #isCurrentTaskCancelled()} if running.
+     */
+    public <T> T execute(SigningTask<T> task) throws Exception {
+        return execute(task, false);
+    }
+
+    /**
+     * Like {@link #execute(SigningTask)}, but no other task touches the token
+     * while this one runs. Used for login and other session-wide changes.
+     */
+    public <T> T executeExclusive(SigningTask<T> task) throws Exception {
+        return execute(task, true);
+    }
+
+    private <T> T execute(SigningTask<T> task, boolean exclusive) throws Exception {
+        QueuedTask<T> queued = new QueuedTask<>(task, exclusive);
+        if (!queue.offer(queued)) {
+            rejected.increment();
+            int depth = queue.size();
+            throw new QueueFullException(depth, estimateRetryAfterSeconds(depth));
+        }
+
+        try {
+            return queued.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            queued.cancel(false);
+            throw new Exception("Timed out after " + timeoutMillis + " ms waiting for the signing token");
+        } catch (CancellationException e) {
+            throw new Exception("Signing request cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new Exception(cause);
+        }
+    }
+
+    private void runLoop(int index) {
+        while (running) {
+            try {
+                if (index >= activeThreads) {
+                    synchronized (idle) {
+                        idle.wait(1000);
+                    }
+                    continue;
+                }
+                // One task per thread at a time: with concurrent sessions a
+                // burst spreads over all of them instead of queuing behind one
+                QueuedTask<?> next = queue.take();
+                if (!next.isCancelled()) {
+                    next.runOnWorker();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        System.out.println("⚠ Signing worker stopped");
+    }
+
+    /**
+     * Run a task on the worker thread: shared access to the token normally,
+     * exclusive access for exclusive tasks and in serial mode.
+     */
+    private <T> T runTask(SigningTask<T> task, boolean exclusive) throws Exception {
+        boolean alone = exclusive || serial;
+        Lock lock = alone ? tokenLock.writeLock() : tokenLock.readLock();
+        Exception failure;
+        lock.lock();
+        try {
+            return task.run(dscService);
+        } catch (Exception e) {
+            if (alone || !TokenPool.isTokenFailure(e)) {
+                throw e;
+            }
+            failure = e;
+        } finally {
+            lock.unlock();
+        }
+
+        // The token may not cope with parallel sessions; stay serial from now on
+        if (!serial) {
+            serial = true;
+            System.err.println("⚠ Token " + dscService.getTokenName() + " failed under concurrent sessions ("
+                    + failure.getMessage() + "), falling back to serial signing");
+        }
+        tokenLock.writeLock().lock();
+        try {
+            return task.run(dscService);
+        } finally {
+            tokenLock.writeLock().unlock();
+        }
+    }
+
+    private int estimateRetryAfterSeconds(int depth) {
+        long avgServiceNanos = averageOf(totalServiceNanos.sum(), completed.sum());
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(avgServiceNanos * Math.max(1, depth));
+        return (int) Math.max(1, Math.min(60, seconds + 1));
+    }
+
+    private static long averageOf(long total, long count) {
+        return count == 0 ? 0 : total / count;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public double getAverageWaitMillis() {
+        return averageOf(totalWaitNanos.sum(), completed.sum()) / 1_000_000.0;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    public double getLastWaitMillis() {
+        return lastWaitNanos / 1_000_000.0;
+    }
+
+    public double getAverageServiceMillis() {
+        return averageOf(totalServiceNanos.sum(), completed.sum()) / 1_000_000.0;
+    }
+
+    private final class QueuedTask<T> extends FutureTask<T> {
+        private final long enqueuedNanos = System.nanoTime();
+
+        QueuedTask(SigningTask<T> task, boolean exclusive) {
+            super(() -> runTask(task, exclusive));
+        }
+
+        void runOnWorker() {
+            long start = System.nanoTime();
+            long wait = start - enqueuedNanos;
+            lastWaitNanos = wait;
+            totalWaitNanos.add(wait);
+            maxWaitNanos.accumulateAndGet(wait, Math::max);
+            SignerMetrics.get().tokenWait.observeNanos(wait);
+
+            CURRENT.set(this);
+            try {
+                run();
+            } finally {
+                CURRENT.remove();
+            }
+
+            totalServiceNanos.add(System.nanoTime() - start);
+            completed.increment();
+        }
+    }
+}
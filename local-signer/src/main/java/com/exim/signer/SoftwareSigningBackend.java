@@ -0,0 +1,60 @@
+package com.exim.signer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.Locale;
+
+/**
+ * Signing key in a PKCS#12 or JKS file instead of a token. Produces the same
+ * formats as the token, so SigningServer can run and be load-tested on a
+ * plain Linux machine; not meant for filing real documents.
+ */
+public class SoftwareSigningBackend extends KeyStoreSigningBackend {
+
+    private final File keyStoreFile;
+    private final String keyStoreType;
+    private final String requestedAlias;
+
+    /**
+     * @param keyStoreType "PKCS12" or "JKS"
+     * @param alias        key entry to use, or null for the first signing key
+     */
+    public SoftwareSigningBackend(File keyStoreFile, String keyStoreType, String alias, long probeIntervalMillis) {
+        super(probeIntervalMillis);
+        this.keyStoreFile = keyStoreFile;
+        this.keyStoreType = keyStoreType;
+        this.requestedAlias = alias;
+    }
+
+    @Override
+    public String getType() {
+        return keyStoreType.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public void login(char[] pin) throws Exception {
+        if (!keyStoreFile.isFile()) {
+            throw new Exception("Keystore not found: " + keyStoreFile.getAbsolutePath());
+        }
+        keyStore = KeyStore.getInstance(keyStoreType);
+        try (InputStream input = new FileInputStream(keyStoreFile)) {
+            keyStore.load(input, pin);
+        }
+
+        String alias = requestedAlias != null ? requestedAlias : findSigningAlias();
+        if (alias == null || !keyStore.isKeyEntry(alias)) {
+            throw new Exception("No valid signing key found in keystore " + keyStoreFile.getName() + ".");
+        }
+
+        // The key never goes away, so there is nothing to log in again
+        open(alias, readCertificateChain(alias), pin, () -> { });
+        System.out.println("⚠ Using software keystore " + keyStoreFile.getAbsolutePath() + " instead of a DSC token");
+    }
+
+    @Override
+    public long getMaxSessionCount() {
+        return 0;
+    }
+}
@@ -0,0 +1,159 @@
+package com.exim.signer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * Output buffer that keeps data on the heap until a size threshold is crossed,
+ * then transparently spills everything to a temp file.
+ *
+ * Call {@link #close()} when done writing and {@link #delete()} when the
+ * content is no longer needed (removes the temp file, if any). Nothing else
+ * removes the file, so owners call {@link #delete()} from a finally block.
+ */
+public class SpillableBuffer extends OutputStream {
+
+    private final int threshold;
+    private final String tempPrefix;
+
+    private ExposedByteArrayOutputStream memory = new ExposedByteArrayOutputStream();
+    private File file;
+    private OutputStream fileOut;
+    private long size;
+    private boolean closed;
+
+    public SpillableBuffer(int threshold, String tempPrefix) {
+        this.threshold = Math.max(0, threshold);
+        this.tempPrefix = tempPrefix;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureCapacity(1);
+        if (fileOut != null) {
+            fileOut.write(b);
+        } else {
+            memory.write(b);
+        }
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        ensureCapacity(len);
+        if (fileOut != null) {
+            fileOut.write(b, off, len);
+        } else {
+            memory.write(b, off, len);
+        }
+        size += len;
+    }
+
+    private void ensureCapacity(int incoming) throws IOException {
+        if (closed) {
+            throw new IOException("Buffer already closed");
+        }
+        if (fileOut == null && size + incoming > threshold) {
+            file = File.createTempFile(tempPrefix, ".tmp");
+            fileOut = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOut != null) {
+            fileOut.flush();
+        }
+    }
+
+    /**
+     * Finish writing. The content stays readable until {@link #delete()}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (fileOut != null) {
+            fileOut.close();
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Temp file holding the content, or null while the data is still in memory.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public InputStream openInputStream() throws IOException {
+        close();
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        return memory.asInputStream();
+    }
+
+    public byte[] toByteArray() throws IOException {
+        close();
+        if (file != null) {
+            return Files.readAllBytes(file.toPath());
+        }
+        return memory.toByteArray();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        close();
+        if (file != null) {
+            Files.copy(file.toPath(), out);
+        } else {
+            memory.writeTo(out);
+        }
+    }
+
+    /**
+     * Release heap memory and remove the temp file.
+     */
+    public void delete() {
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+        memory = null;
+        if (file != null && !file.delete()) {
+            System.err.println("⚠ Could not delete temp file: " + file.getAbsolutePath());
+        }
+        file = null;
+    }
+
+    /**
+     * Lets readers stream the in-memory content without another copy.
+     */
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        InputStream asInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.exim.signer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps an idle token responsive. While nothing is signed, a cheap probe (one
+ * key lookup, logging in again if the session went stale) runs every
+ * interval. Right after login, and again whenever the token has been idle for
+ * the warm-up period, a throwaway signature over a fixed digest wakes the
+ * token and warms the signing code path, so the first real signature after a
+ * pause is not the slow one.
+ *
+ * Both are opt-in (dsc.keepAliveMillis, dsc.warmup): a token that is never
+ * left alone also never drops its session or powers down.
+ *
+ * All token access goes through the TokenAccess hook, which the server points
+ * at the token's SigningWorker so keep-alive never bypasses its serial access.
+ */
+public class TokenKeepAlive {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 0;
+    public static final long DEFAULT_WARMUP_IDLE_MILLIS = 600_000;
+
+    /**
+     * Runs a task against the token, e.g. on its signing worker.
+     */
+    public interface TokenAccess {
+        void run(SigningWorker.SigningTask<?> task) throws Exception;
+    }
+
+    private final DscService dscService;
+    private final long intervalMillis;
+    private final boolean warmup;
+    private final long warmupIdleNanos;
+    private final TokenAccess access;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile long lastActivityNanos = System.nanoTime();
+    private final LongAdder probes = new LongAdder();
+    private final LongAdder probeFailures = new LongAdder();
+    private volatile long lastProbeNanos;
+    private volatile long lastProbeAtMillis;
+    private final LongAdder warmups = new LongAdder();
+    private volatile long lastWarmupNanos;
+    private volatile long lastWarmupAtMillis;
+    private volatile String lastError;
+
+    /**
+     * @param intervalMillis   probe interval; 0 disables probes
+     * @param warmup           run throwaway signatures after login and idle
+     * @param warmupIdleMillis idle time after which the next tick warms up
+     *                         instead of probing
+     */
+    public TokenKeepAlive(DscService dscService, long intervalMillis, boolean warmup, long warmupIdleMillis,
+            TokenAccess access) {
+        this.dscService = dscService;
+        this.intervalMillis = Math.max(0, intervalMillis);
+        this.warmup = warmup;
+        this.warmupIdleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, warmupIdleMillis));
+        this.access = access;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "token-keepalive-" + dscService.getTokenName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Warm up once (asynchronously, so it can be started from inside a login
+     * task on the worker) and begin the periodic ticks.
+     */
+    public void start() {
+        if (warmup) {
+            scheduler.execute(this::warmUp);
+        }
+        if (intervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Record a real signature; keep-alive only acts when the token is idle.
+     */
+    public void touch() {
+        lastActivityNanos = System.nanoTime();
+    }
+
+    private void tick() {
+        long idle = System.nanoTime() - lastActivityNanos;
+        if (warmup && idle >= warmupIdleNanos) {
+            warmUp();
+        } else if (idle >= TimeUnit.MILLISECONDS.toNanos(intervalMillis)) {
+            probe();
+        }
+    }
+
+    private void probe() {
+        long start = System.nanoTime();
+        try {
+            access.run(dsc -> {
+                requireBackend(dsc).probe();
+                return null;
+            });
+            lastProbeNanos = System.nanoTime() - start;
+            lastProbeAtMillis = System.currentTimeMillis();
+            probes.increment();
+        } catch (Exception e) {
+            probeFailures.increment();
+            lastError = e.getMessage();
+            System.err.println("⚠ Keep-alive probe failed on " + dscService.getTokenName() + ": " + e.getMessage());
+        }
+    }
+
+    private void warmUp() {
+        long start = System.nanoTime();
+        try {
+            access.run(dsc -> {
+                requireBackend(dsc).warmUp();
+                return null;
+            });
+            lastWarmupNanos = System.nanoTime() - start;
+            lastWarmupAtMillis = System.currentTimeMillis();
+            warmups.increment();
+            // A warm-up counts as activity, so the next one follows only after
+            // another full idle period
+            touch();
+        } catch (Exception e) {
+            probeFailures.increment();
+            lastError = e.getMessage();
+            System.err.println("⚠ Warm-up failed on " + dscService.getTokenName() + ": " + e.getMessage());
+        }
+    }
+
+    private static SigningBackend requireBackend(DscService dsc) throws Exception {
+        SigningBackend backend = dsc.getBackend();
+        if (backend == null) {
+            throw new Exception("DSC not initialized. Call login() first.");
+        }
+        return backend;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public boolean isWarmup() {
+        return warmup;
+    }
+
+    public long getIdleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivityNanos);
+    }
+
+    public long getProbeCount() {
+        return probes.sum();
+    }
+
+    public long getFailureCount() {
+        return probeFailures.sum();
+    }
+
+    public double getLastProbeLatencyMillis() {
+        return lastProbeNanos / 1_000_000.0;
+    }
+
+    /**
+     * Wall-clock time of the last successful probe, 0 if none yet.
+     */
+    public long getLastProbeAtMillis() {
+        return lastProbeAtMillis;
+    }
+
+    public long getWarmupCount() {
+        return warmups.sum();
+    }
+
+    public double getLastWarmupLatencyMillis() {
+        return lastWarmupNanos / 1_000_000.0;
+    }
+
+    public long getLastWarmupAtMillis() {
+        return lastWarmupAtMillis;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+}
@@ -0,0 +1,277 @@
+package com.exim.signer;
+
+import java.security.ProviderException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Several DSC tokens for the same entity used side by side. Each token has its
+ * own SunPKCS11 provider (DscService), its own single-writer SigningWorker and
+ * its own PdfSignerService, so tokens sign in parallel while each one still
+ * sees strictly serial access.
+ *
+ * Requests go to the least-loaded healthy token that is logged in. A token
+ * that fails with token errors (lost session, PKCS#11 provider errors)
+ * FAILURE_THRESHOLD times in a row is skipped for a cool-down period and then
+ * tried again.
+ */
+public class TokenPool {
+
+    public static final int FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_COOLDOWN_MILLIS = 30_000;
+
+    private final List<Token> tokens;
+    private final long cooldownNanos;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    public TokenPool(List<Token> tokens, long cooldownMillis) {
+        if (tokens.isEmpty()) {
+            throw new IllegalArgumentException("Token pool needs at least one token");
+        }
+        this.tokens = Collections.unmodifiableList(new ArrayList<>(tokens));
+        this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, cooldownMillis));
+    }
+
+    public void start() {
+        for (Token token : tokens) {
+            token.worker.start();
+        }
+    }
+
+    public void shutdown() {
+        for (Token token : tokens) {
+            token.worker.shutdown();
+        }
+    }
+
+    public List<Token> getTokens() {
+        return tokens;
+    }
+
+    /**
+     * The first token; the one /login and the desktop UI log into.
+     */
+    public Token primary() {
+        return tokens.get(0);
+    }
+
+    public int size() {
+        return tokens.size();
+    }
+
+    /**
+     * Least-loaded logged-in healthy token. Falls back to a logged-in token in
+     * cool-down, and finally to the primary token (whose calls then fail with
+     * the usual "DSC not initialized" error).
+     */
+    public Token select() {
+        int start = Math.floorMod(rotation.getAndIncrement(), tokens.size());
+        Token best = null;
+        Token fallback = null;
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get((start + i) % tokens.size());
+            if (!token.isLoggedIn()) {
+                continue;
+            }
+            if (!isHealthy(token)) {
+                if (fallback == null) {
+                    fallback = token;
+                }
+                continue;
+            }
+            if (best == null || token.getLoad() < best.getLoad()) {
+                best = token;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        return fallback != null ? fallback : primary();
+    }
+
+    /**
+     * Run a task on the token chosen by {@link #select()}.
+     */
+    public <T> T execute(SigningWorker.SigningTask<T> task) throws Exception {
+        return select().execute(task);
+    }
+
+    /**
+     * Healthy unless the token hit FAILURE_THRESHOLD token failures in a row
+     * and the cool-down has not yet passed.
+     */
+    public boolean isHealthy(Token token) {
+        return token.consecutiveFailures.get() < FAILURE_THRESHOLD
+                || System.nanoTime() - token.unhealthySinceNanos >= cooldownNanos;
+    }
+
+    public boolean hasLoggedInToken() {
+        for (Token token : tokens) {
+            if (token.isLoggedIn()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Token token : tokens) {
+            depth += token.worker.getQueueDepth();
+        }
+        return depth;
+    }
+
+    public int getQueueCapacity() {
+        int capacity = 0;
+        for (Token token : tokens) {
+            capacity += token.worker.getQueueCapacity();
+        }
+        return capacity;
+    }
+
+    public long getRejectedCount() {
+        long rejected = 0;
+        for (Token token : tokens) {
+            rejected += token.worker.getRejectedCount();
+        }
+        return rejected;
+    }
+
+    /**
+     * True for errors that say something about the token rather than the
+     * request: lost sessions and PKCS#11 provider failures.
+     */
+    static boolean isTokenFailure(Throwable error) {
+        if (TokenSession.isSessionLost(error)) {
+            return true;
+        }
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof ProviderException || t.getClass().getName().contains("PKCS11")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * One token with its worker, PDF signer and health/latency statistics.
+     */
+    public static final class Token {
+        private final String name;
+        private final DscService dscService;
+        private final SigningWorker worker;
+        private final PdfSignerService pdfSignerService;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private volatile long lastNanos;
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long unhealthySinceNanos;
+        private volatile String lastError;
+
+        public Token(String name, DscService dscService, SigningWorker worker, PdfSignerService pdfSignerService) {
+            this.name = name;
+            this.dscService = dscService;
+            this.worker = worker;
+            this.pdfSignerService = pdfSignerService;
+        }
+
+        /**
+         * Queue a task on this token's worker and record its latency and
+         * outcome.
+         */
+        public <T> T execute(SigningWorker.SigningTask<T> task) throws Exception {
+            inFlight.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                T result = worker.execute(task);
+                long elapsed = System.nanoTime() - start;
+                lastNanos = elapsed;
+                totalNanos.add(elapsed);
+                completed.increment();
+                consecutiveFailures.set(0);
+                return result;
+            } catch (SigningWorker.QueueFullException e) {
+                throw e;
+            } catch (Exception e) {
+                failures.increment();
+                lastError = e.getMessage();
+                if (isTokenFailure(e)) {
+                    int failed = consecutiveFailures.incrementAndGet();
+                    if (failed >= FAILURE_THRESHOLD) {
+                        // Also restarts the cool-down when a retry after it fails
+                        unhealthySinceNanos = System.nanoTime();
+                    }
+                    if (failed == FAILURE_THRESHOLD) {
+                        System.err.println("⚠ Token " + name + " marked unhealthy: " + e.getMessage());
+                    }
+                }
+                throw e;
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        /**
+         * Queue a task that must have the token to itself, such as login.
+         */
+        public <T> T executeExclusive(SigningWorker.SigningTask<T> task) throws Exception {
+            return worker.executeExclusive(task);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public DscService getDscService() {
+            return dscService;
+        }
+
+        public SigningWorker getWorker() {
+            return worker;
+        }
+
+        public PdfSignerService getPdfSignerService() {
+            return pdfSignerService;
+        }
+
+        public boolean isLoggedIn() {
+            return dscService.isLoggedIn();
+        }
+
+        /**
+         * Requests queued on or running against this token.
+         */
+        public int getLoad() {
+            return inFlight.get();
+        }
+
+        public long getCompletedCount() {
+            return completed.sum();
+        }
+
+        public long getFailureCount() {
+            return failures.sum();
+        }
+
+        public double getAverageLatencyMillis() {
+            long count = completed.sum();
+            return count == 0 ? 0 : totalNanos.sum() / (double) count / 1_000_000.0;
+        }
+
+        public double getLastLatencyMillis() {
+            return lastNanos / 1_000_000.0;
+        }
+
+        public String getLastError() {
+            return lastError;
+        }
+    }
+}
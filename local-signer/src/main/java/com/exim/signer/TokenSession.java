@@ -0,0 +1,163 @@
+package com.exim.signer;
+
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the private key handle of a logged-in token between signatures.
+ *
+ * DscService used to call keyStore.load() (a full PKCS#11 login plus object
+ * enumeration) before every signature. This class instead caches the key and
+ * only re-logs in lazily: when the handle is missing, when a periodic liveness
+ * probe cannot find the key any more, or when a token operation fails with a
+ * lost-session error such as CKR_USER_NOT_LOGGED_IN.
+ *
+ * The login step is supplied by the caller, so the same logic works for a
+ * PKCS#11 token and for a software keystore stand-in.
+ */
+public class TokenSession {
+
+    /**
+     * Re-establishes the token login (for PKCS#11: keyStore.load(null, pin)).
+     */
+    public interface Login {
+        void login() throws Exception;
+    }
+
+    /**
+     * Operation performed with the session's private key.
+     */
+    public interface KeyOperation<T> {
+        T run(PrivateKey privateKey) throws Exception;
+    }
+
+    public static final long DEFAULT_PROBE_INTERVAL_MILLIS = 30_000;
+
+    private static final String[] SESSION_LOST_MARKERS = {
+            "CKR_USER_NOT_LOGGED_IN", "CKR_SESSION_HANDLE_INVALID", "CKR_SESSION_CLOSED",
+            "CKR_KEY_HANDLE_INVALID", "CKR_OBJECT_HANDLE_INVALID", "CKR_TOKEN_NOT_PRESENT",
+            "CKR_DEVICE_REMOVED", "Key must not be null"
+    };
+
+    private final KeyStore keyStore;
+    private final String alias;
+    private final char[] pin;
+    private final Login login;
+    private final long probeIntervalNanos;
+
+    private PrivateKey privateKey;
+    private long lastVerifiedNanos;
+    private long relogins;
+
+    public TokenSession(KeyStore keyStore, String alias, char[] pin, Login login, long probeIntervalMillis) {
+        this.keyStore = keyStore;
+        this.alias = alias;
+        this.pin = pin;
+        this.login = login;
+        this.probeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, probeIntervalMillis));
+    }
+
+    /**
+     * Cached private key, verified by a liveness probe at most once per probe
+     * interval. Logs in again only if the probe fails.
+     */
+    public synchronized PrivateKey getPrivateKey() throws Exception {
+        if (privateKey != null && System.nanoTime() - lastVerifiedNanos < probeIntervalNanos) {
+            return privateKey;
+        }
+
+        // Probe: looking the key object up is one token round trip, and a private
+        // object is invisible once the session is no longer logged in.
+        PrivateKey probed = lookupKey();
+        if (probed == null) {
+            relogin();
+            probed = lookupKey();
+        }
+        if (probed == null) {
+            throw new Exception("Failed to retrieve Private Key from token. Ensure correct DSC is used.");
+        }
+
+        privateKey = probed;
+        lastVerifiedNanos = System.nanoTime();
+        return privateKey;
+    }
+
+    /**
+     * Probe the token now instead of waiting for the probe interval, logging
+     * in again if the key is no longer visible.
+     */
+    public synchronized void verify() throws Exception {
+        lastVerifiedNanos = 0;
+        getPrivateKey();
+    }
+
+    /**
+     * Run an operation with the private key, retrying once after a re-login if
+     * the token reports a lost session.
+     */
+    public <T> T withKey(KeyOperation<T> operation) throws Exception {
+        PrivateKey key = getPrivateKey();
+        try {
+            return operation.run(key);
+        } catch (Exception e) {
+            if (!isSessionLost(e)) {
+                throw e;
+            }
+            System.err.println("⚠ Token session lost (" + e.getMessage() + "), logging in again");
+            synchronized (this) {
+                // Another thread may already have recovered the session
+                if (privateKey == key) {
+                    invalidate();
+                    relogin();
+                }
+            }
+            return operation.run(getPrivateKey());
+        }
+    }
+
+    /**
+     * Forget the cached handle; the next use probes and, if needed, logs in.
+     */
+    public synchronized void invalidate() {
+        privateKey = null;
+        lastVerifiedNanos = 0;
+    }
+
+    public synchronized long getReloginCount() {
+        return relogins;
+    }
+
+    private PrivateKey lookupKey() {
+        try {
+            return (PrivateKey) keyStore.getKey(alias, pin);
+        } catch (Exception e) {
+            System.err.println("⚠ Key lookup failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void relogin() throws Exception {
+        relogins++;
+        login.login();
+    }
+
+    /**
+     * True if the exception (or any cause) looks like a logged-out or vanished
+     * PKCS#11 session rather than a genuine signing failure.
+     */
+    public static boolean isSessionLost(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            String message = t.getMessage();
+            if (message == null) {
+                continue;
+            }
+            for (String marker : SESSION_LOST_MARKERS) {
+                if (message.contains(marker)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,122 @@
+package com.exim.signer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Re-login behaviour and batch digest signing of DscService with software
+ * keystores.
+ */
+class DscServiceTest {
+
+    @TempDir
+    File dir;
+
+    private final DscService dsc = new DscService("relogin");
+
+    @AfterEach
+    void stop() {
+        TokenKeepAlive keepAlive = dsc.getKeepAlive();
+        if (keepAlive != null) {
+            keepAlive.stop();
+        }
+    }
+
+    @Test
+    void wrongPinKeepsTheWorkingLogin() throws Exception {
+        dsc.setKeepAlive(60_000, false, 0);
+        dsc.loginKeyStore(TestKeys.PASSWORD, TestKeys.pkcs12(dir, "first"), "PKCS12", null);
+        SigningBackend working = dsc.getBackend();
+        String fingerprint = dsc.getCertificateFingerprint();
+
+        assertThrows(Exception.class,
+                () -> dsc.loginKeyStore("wrong-pin", TestKeys.pkcs12(dir, "second"), "PKCS12", null));
+
+        assertSame(working, dsc.getBackend());
+        assertTrue(dsc.isLoggedIn());
+        assertEquals(fingerprint, dsc.getCertificateFingerprint());
+        assertNotNull(dsc.signSha256Digest(new byte[32]));
+        assertNotNull(dsc.getKeepAlive(), "keep-alive restarted after the failed login");
+    }
+
+    @Test
+    void successfulLoginReplacesThePreviousBackend() throws Exception {
+        dsc.loginKeyStore(TestKeys.PASSWORD, TestKeys.pkcs12(dir, "first"), "PKCS12", null);
+        SigningBackend first = dsc.getBackend();
+
+        dsc.loginKeyStore(TestKeys.PASSWORD, TestKeys.pkcs12(dir, "second"), "PKCS12", null);
+
+        assertNotSame(first, dsc.getBackend());
+        assertTrue(dsc.getCertificate().getSubjectX500Principal().getName().contains("CN=second"));
+        assertThrows(Exception.class, () -> first.signSha256Digest(new byte[32]), "previous backend closed");
+    }
+
+    @Test
+    void pdfSignatureRefusedAfterReloginToAnotherCertificate() throws Exception {
+        dsc.loginKeyStore(TestKeys.PASSWORD, TestKeys.pkcs12(dir, "first"), "PKCS12", null);
+        String named = dsc.getCertificateFingerprint();
+        assertNotNull(dsc.signPKCS7DetachedDigest(new byte[32], named));
+
+        dsc.loginKeyStore(TestKeys.PASSWORD, TestKeys.pkcs12(dir, "second"), "PKCS12", null);
+
+        Exception e = assertThrows(Exception.class, () -> dsc.signPKCS7DetachedDigest(new byte[32], named));
+        assertTrue(e.getMessage().contains("certificate changed"), e.getMessage());
+    }
+
+    @Test
+    void digestChunkSignsEachDigestAndStopsWhenAsked() throws Exception {
+        dsc.loginKeyStore(TestKeys.PASSWORD, TestKeys.pkcs12(dir, "first"), "PKCS12", null);
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        byte[][] digests = new byte[5][];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = sha256.digest(("bill-" + i).getBytes(StandardCharsets.US_ASCII));
+        }
+
+        byte[][] signatures = dsc.signSha256Digests(digests, () -> false);
+        for (int i = 0; i < digests.length; i++) {
+            assertArrayEquals(dsc.signSha256Digest(digests[i]), signatures[i], "digest " + i);
+        }
+
+        AtomicInteger checks = new AtomicInteger();
+        byte[][] stopped = dsc.signSha256Digests(digests, () -> checks.incrementAndGet() > 2);
+        assertNotNull(stopped[1]);
+        assertNull(stopped[2], "no digest signed after stop");
+        assertNull(stopped[4]);
+    }
+
+    @Test
+    void noKeepAliveUnlessConfigured() throws Exception {
+        dsc.loginKeyStore(TestKeys.PASSWORD, TestKeys.pkcs12(dir, "first"), "PKCS12", null);
+
+        assertNull(dsc.getKeepAlive());
+    }
+
+    @Test
+    void warmUpAfterLogin() throws Exception {
+        dsc.setKeepAlive(0, true, 600_000);
+        dsc.loginKeyStore(TestKeys.PASSWORD, TestKeys.pkcs12(dir, "first"), "PKCS12", null);
+        TokenKeepAlive keepAlive = dsc.getKeepAlive();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (keepAlive.getWarmupCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, keepAlive.getWarmupCount());
+        assertEquals(0, keepAlive.getFailureCount());
+    }
+}
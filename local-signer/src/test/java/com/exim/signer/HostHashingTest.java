@@ -0,0 +1,140 @@
+package com.exim.signer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Host-side hashing (NONEwithRSA over a SHA-1 DigestInfo) must produce the
+ * same bytes as the token hashing itself (SHA1withRSA), and both must pass
+ * the SHA1withRSA check in server/tools/VerifySig.java.
+ */
+class HostHashingTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void hostHashMatchesTokenHashForRandomPayloads() throws Exception {
+        SoftwareSigningBackend backend = backend();
+        X509Certificate certificate = backend.getCertificateChain()[0];
+        Random random = new Random(14);
+        for (int i = 0; i < 50; i++) {
+            byte[] data = new byte[random.nextInt(4096)];
+            random.nextBytes(data);
+            int off = data.length == 0 ? 0 : random.nextInt(data.length);
+            int len = data.length - off == 0 ? 0 : random.nextInt(data.length - off);
+
+            byte[] tokenHashed = sign(backend, false, data, off, len);
+            byte[] hostHashed = sign(backend, true, data, off, len);
+
+            assertArrayEquals(tokenHashed, hostHashed, "payload " + i);
+            byte[] signed = Arrays.copyOfRange(data, off, off + len);
+            assertTrue(verifySha1WithRsa(certificate, signed, tokenHashed), "token-hashed payload " + i);
+            assertTrue(verifySha1WithRsa(certificate, signed, hostHashed), "host-hashed payload " + i);
+        }
+    }
+
+    @Test
+    void hostHashMatchesTokenHashForSha256Digest() throws Exception {
+        SoftwareSigningBackend backend = backend();
+        X509Certificate certificate = backend.getCertificateChain()[0];
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(flatFile());
+
+        backend.hostHashing = false;
+        byte[] tokenHashed = backend.signSha256Digest(digest);
+        backend.hostHashing = true;
+        byte[] hostHashed = backend.signSha256Digest(digest);
+
+        assertArrayEquals(tokenHashed, hostHashed);
+        assertTrue(verifySha1WithRsa(certificate, digest, tokenHashed));
+        assertTrue(verifySha1WithRsa(certificate, digest, hostHashed));
+    }
+
+    @Test
+    void signedFileVerifiesLikeVerifySig() throws Exception {
+        SoftwareSigningBackend backend = backend();
+        SbEnvelope envelope = new SbEnvelope(backend.getCertificateChain()[0]);
+        byte[] payload = flatFile();
+
+        // VerifySig's "Exact" payload is everything before <START-SIGNATURE>,
+        // i.e. the payload plus the LF the envelope adds
+        byte[] exact = Arrays.copyOf(payload, payload.length + 1);
+        exact[payload.length] = '\n';
+
+        byte[] tokenFile = envelope.toByteArray(payload, 0, payload.length,
+                sign(backend, false, exact, 0, exact.length));
+        byte[] hostFile = envelope.toByteArray(payload, 0, payload.length,
+                sign(backend, true, exact, 0, exact.length));
+
+        assertArrayEquals(tokenFile, hostFile);
+        assertTrue(verifySigExact(tokenFile));
+        assertTrue(verifySigExact(hostFile));
+    }
+
+    private SoftwareSigningBackend backend() throws Exception {
+        SoftwareSigningBackend backend = new SoftwareSigningBackend(TestKeys.pkcs12(dir, "host-hashing"), "PKCS12",
+                null, 0);
+        backend.login(TestKeys.PASSWORD.toCharArray());
+        return backend;
+    }
+
+    private static byte[] sign(SoftwareSigningBackend backend, boolean hostHashing, byte[] data, int off, int len)
+            throws Exception {
+        backend.hostHashing = hostHashing;
+        return backend.signRaw(data, off, len);
+    }
+
+    /**
+     * The verification VerifySig performs for SHA1withRSA.
+     */
+    private static boolean verifySha1WithRsa(X509Certificate certificate, byte[] data, byte[] signature)
+            throws Exception {
+        Signature verifier = Signature.getInstance("SHA1withRSA");
+        verifier.initVerify(certificate);
+        verifier.update(data);
+        return verifier.verify(signature);
+    }
+
+    /**
+     * VerifySig's extraction of signature, certificate and "Exact" payload
+     * from a signed file, followed by its SHA1withRSA check. (VerifySig's
+     * main tries SHA256withRSA first, which throws on these signatures
+     * instead of returning false, so it cannot be run as is.)
+     */
+    private static boolean verifySigExact(byte[] fileBytes) throws Exception {
+        String content = new String(fileBytes, StandardCharsets.ISO_8859_1);
+        int sigStart = content.indexOf("<START-SIGNATURE>");
+        int sigEnd = content.indexOf("</START-SIGNATURE>");
+        int certStart = content.indexOf("<START-CERTIFICATE>");
+        int certEnd = content.indexOf("</START-CERTIFICATE>");
+
+        byte[] sigBytes = Base64.getDecoder().decode(content.substring(sigStart + 17, sigEnd).trim());
+        byte[] certBytes = Base64.getDecoder().decode(content.substring(certStart + 19, certEnd).trim());
+        X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(certBytes));
+
+        return verifySha1WithRsa(cert, Arrays.copyOfRange(fileBytes, 0, sigStart), sigBytes);
+    }
+
+    private static byte[] flatFile() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            sb.append("HREC\u001dZZ\u001dAAACE1234F\u001dINMAA1\u001d").append(i).append("   \u001d\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
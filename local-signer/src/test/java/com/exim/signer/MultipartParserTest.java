@@ -0,0 +1,322 @@
+package com.exim.signer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MultipartParserTest {
+
+    private static final String BOUNDARY = "----EximBoundary7MA4YWxkTrZu0gW";
+
+    @Test
+    void parsesEveryPartWithHeaders() throws Exception {
+        byte[] body = new BodyBuilder()
+                .field("reason", "Export filing")
+                .file("file", "bill.sb", "application/octet-stream", bytes("HREC\nTREC\n"))
+                .close();
+
+        try (MultipartParser.MultipartBody parsed = new MultipartParser().parse(new ByteArrayInputStream(body),
+                BOUNDARY)) {
+            assertEquals(2, parsed.getParts().size());
+            assertEquals("Export filing", text(parsed.getPart("reason")));
+
+            MultipartParser.Part file = parsed.getPart("file");
+            assertEquals("bill.sb", file.getFilename());
+            assertEquals("application/octet-stream", file.getContentType());
+            assertArrayEquals(bytes("HREC\nTREC\n"), file.getBytes());
+            assertFalse(file.isSpilled());
+            assertNull(parsed.getPart("missing"));
+        }
+    }
+
+    @Test
+    void ignoresPreambleAndEpilogue() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(bytes("This is the preamble.\r\n"));
+        body.write(new BodyBuilder().field("a", "1").close());
+        body.write(bytes("\r\nepilogue that must be ignored"));
+
+        try (MultipartParser.MultipartBody parsed = new MultipartParser()
+                .parse(new ByteArrayInputStream(body.toByteArray()), BOUNDARY)) {
+            assertEquals(1, parsed.getParts().size());
+            assertEquals("1", text(parsed.getPart("a")));
+        }
+    }
+
+    @Test
+    void keepsRepeatedFieldsInOrder() throws Exception {
+        byte[] body = new BodyBuilder()
+                .file("files", "1.sb", null, bytes("one"))
+                .file("files", "2.sb", null, bytes("two"))
+                .file("files", "3.sb", null, bytes("three"))
+                .close();
+
+        try (MultipartParser.MultipartBody parsed = new MultipartParser().parse(new ByteArrayInputStream(body),
+                BOUNDARY)) {
+            assertEquals(3, parsed.getParts("files").size());
+            assertEquals("three", text(parsed.getParts("files").get(2)));
+        }
+    }
+
+    @Test
+    void spillsLargePartsToDiskAndDeletesThemOnClose() throws Exception {
+        byte[] pdf = random(5 * 1024 * 1024 + 17, 1);
+        byte[] body = new BodyBuilder()
+                .field("reason", "small")
+                .file("file", "scan.pdf", "application/pdf", pdf)
+                .close();
+
+        File spilled;
+        MultipartParser parser = new MultipartParser(0, 64 * 1024);
+        try (MultipartParser.MultipartBody parsed = parser.parse(new ByteArrayInputStream(body), BOUNDARY)) {
+            assertFalse(parsed.getPart("reason").isSpilled());
+
+            MultipartParser.Part file = parsed.getPart("file");
+            assertTrue(file.isSpilled());
+            spilled = file.getFile();
+            assertTrue(spilled.isFile());
+            assertEquals(pdf.length, file.getSize());
+            assertEquals(pdf.length, spilled.length());
+            try (InputStream in = file.openStream()) {
+                assertArrayEquals(pdf, readAll(in));
+            }
+        }
+        assertFalse(spilled.exists());
+    }
+
+    @Test
+    void findsDelimitersSplitAcrossReads() throws Exception {
+        byte[] first = random(3000, 2);
+        byte[] second = random(70_000, 3);
+        byte[] body = new BodyBuilder()
+                .file("first", "a.bin", null, first)
+                .file("second", "b.bin", null, second)
+                .field("last", "end")
+                .close();
+
+        // Every chunk size makes some delimiter or header terminator straddle
+        // two reads at a different offset
+        for (int chunk = 1; chunk <= BOUNDARY.length() + 8; chunk++) {
+            try (MultipartParser.MultipartBody parsed = new MultipartParser(0, 16 * 1024)
+                    .parse(new ChunkedInputStream(body, chunk), BOUNDARY)) {
+                assertArrayEquals(first, parsed.getPart("first").getBytes(), "chunk size " + chunk);
+                assertArrayEquals(second, parsed.getPart("second").getBytes(), "chunk size " + chunk);
+                assertEquals("end", text(parsed.getPart("last")), "chunk size " + chunk);
+            }
+        }
+    }
+
+    @Test
+    void findsDelimiterStraddlingTheWindow() throws Exception {
+        // Parts sized so the delimiter crosses the 64 KB window edge at every
+        // offset of the delimiter
+        int delimiterLength = BOUNDARY.length() + 4;
+        for (int shift = 0; shift <= delimiterLength; shift++) {
+            byte[] content = random(64 * 1024 - 200 + shift, shift);
+            byte[] body = new BodyBuilder().file("file", "x.bin", null, content).field("tail", "ok").close();
+            try (MultipartParser.MultipartBody parsed = new MultipartParser()
+                    .parse(new ChunkedInputStream(body, 64 * 1024), BOUNDARY)) {
+                assertArrayEquals(content, parsed.getPart("file").getBytes(), "shift " + shift);
+                assertEquals("ok", text(parsed.getPart("tail")), "shift " + shift);
+            }
+        }
+    }
+
+    @Test
+    void keepsContentThatLooksLikeADelimiterPrefix() throws Exception {
+        byte[] tricky = bytes("line\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "X\r\n--\r\n-");
+        byte[] body = new BodyBuilder().file("file", "t.sb", null, tricky).close();
+
+        try (MultipartParser.MultipartBody parsed = new MultipartParser()
+                .parse(new ChunkedInputStream(body, 3), BOUNDARY)) {
+            assertArrayEquals(tricky, parsed.getPart("file").getBytes());
+        }
+    }
+
+    @Test
+    void rejectsBodyWithoutBoundary() {
+        byte[] body = bytes("no multipart delimiters in here at all\r\n");
+        MultipartParser.MultipartException e = assertThrows(MultipartParser.MultipartException.class,
+                () -> new MultipartParser().parse(new ByteArrayInputStream(body), BOUNDARY));
+        assertTrue(e.getMessage().contains("boundary not found"), e.getMessage());
+    }
+
+    @Test
+    void rejectsBodyWithDifferentBoundary() {
+        byte[] body = new BodyBuilder().field("a", "1").close();
+        assertThrows(MultipartParser.MultipartException.class,
+                () -> new MultipartParser().parse(new ByteArrayInputStream(body), "SomeOtherBoundary"));
+    }
+
+    @Test
+    void rejectsMissingClosingBoundary() {
+        byte[] complete = new BodyBuilder().file("file", "a.sb", null, bytes("payload")).close();
+        String text = new String(complete, StandardCharsets.ISO_8859_1);
+        byte[] truncated = bytes(text.substring(0, text.lastIndexOf("\r\n--" + BOUNDARY + "--")));
+
+        MultipartParser.MultipartException e = assertThrows(MultipartParser.MultipartException.class,
+                () -> new MultipartParser().parse(new ByteArrayInputStream(truncated), BOUNDARY));
+        assertTrue(e.getMessage().contains("closing boundary missing"), e.getMessage());
+    }
+
+    @Test
+    void rejectsMalformedBoundaryLines() {
+        byte[] garbageAfterDelimiter = bytes("--" + BOUNDARY + "garbage\r\n"
+                + "Content-Disposition: form-data; name=\"a\"\r\n\r\n1\r\n--" + BOUNDARY + "--\r\n");
+        assertThrows(MultipartParser.MultipartException.class,
+                () -> new MultipartParser().parse(new ByteArrayInputStream(garbageAfterDelimiter), BOUNDARY));
+
+        byte[] singleDashClose = bytes("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"a\"\r\n\r\n1\r\n--" + BOUNDARY + "-x");
+        assertThrows(MultipartParser.MultipartException.class,
+                () -> new MultipartParser().parse(new ByteArrayInputStream(singleDashClose), BOUNDARY));
+    }
+
+    @Test
+    void rejectsMalformedOrUnterminatedHeaders() {
+        byte[] noColon = bytes("--" + BOUNDARY + "\r\nnot a header\r\n\r\n1\r\n--" + BOUNDARY + "--\r\n");
+        assertThrows(MultipartParser.MultipartException.class,
+                () -> new MultipartParser().parse(new ByteArrayInputStream(noColon), BOUNDARY));
+
+        byte[] unterminated = bytes("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"a\"\r\n");
+        assertThrows(MultipartParser.MultipartException.class,
+                () -> new MultipartParser().parse(new ByteArrayInputStream(unterminated), BOUNDARY));
+    }
+
+    @Test
+    void rejectsInvalidBoundaryParameter() {
+        byte[] body = new BodyBuilder().field("a", "1").close();
+        char[] tooLong = new char[71];
+        java.util.Arrays.fill(tooLong, 'b');
+        for (String boundary : new String[] { null, "", new String(tooLong) }) {
+            assertThrows(MultipartParser.MultipartException.class,
+                    () -> new MultipartParser().parse(new ByteArrayInputStream(body), boundary));
+        }
+    }
+
+    @Test
+    void rejectsBodiesOverTheLimit() {
+        byte[] body = new BodyBuilder().file("file", "big.pdf", null, random(300_000, 4)).close();
+        assertThrows(MultipartParser.BodyTooLargeException.class,
+                () -> new MultipartParser(100_000, 16 * 1024).parse(new ByteArrayInputStream(body), BOUNDARY));
+    }
+
+    @Test
+    void extractsBoundaryFromContentType() {
+        assertEquals("abc", MultipartParser.extractBoundary("multipart/form-data; boundary=abc"));
+        assertEquals("a b", MultipartParser.extractBoundary("multipart/form-data; BOUNDARY=\"a b\"; charset=x"));
+        assertNull(MultipartParser.extractBoundary("application/json"));
+        assertNull(MultipartParser.extractBoundary("multipart/form-data; boundary="));
+        assertNull(MultipartParser.extractBoundary(null));
+    }
+
+    @Test
+    void horspoolFindsFirstMatch() {
+        MultipartParser.Horspool search = new MultipartParser.Horspool(bytes("abcab"));
+        byte[] data = bytes("xxabcaxabcababcab");
+        assertEquals(7, search.indexOf(data, 0, data.length));
+        assertEquals(12, search.indexOf(data, 8, data.length));
+        assertEquals(-1, search.indexOf(data, 0, 10));
+    }
+
+    private static String text(MultipartParser.Part part) throws IOException {
+        return new String(part.getBytes(), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Builds a multipart/form-data body with BOUNDARY.
+     */
+    private static final class BodyBuilder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        BodyBuilder field(String name, String value) {
+            return part("form-data; name=\"" + name + "\"", null, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        BodyBuilder file(String name, String filename, String contentType, byte[] content) {
+            return part("form-data; name=\"" + name + "\"; filename=\"" + filename + "\"", contentType, content);
+        }
+
+        private BodyBuilder part(String disposition, String contentType, byte[] content) {
+            StringBuilder headers = new StringBuilder();
+            headers.append("--").append(BOUNDARY).append("\r\n");
+            headers.append("Content-Disposition: ").append(disposition).append("\r\n");
+            if (contentType != null) {
+                headers.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            headers.append("\r\n");
+            out.writeBytes(bytes(headers.toString()));
+            out.writeBytes(content);
+            out.writeBytes(bytes("\r\n"));
+            return this;
+        }
+
+        byte[] close() {
+            out.writeBytes(bytes("--" + BOUNDARY + "--\r\n"));
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Returns at most chunk bytes per read, like a slow socket.
+     */
+    private static final class ChunkedInputStream extends InputStream {
+        private final byte[] data;
+        private final int chunk;
+        private int pos;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return pos < data.length ? data[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= data.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, chunk), data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
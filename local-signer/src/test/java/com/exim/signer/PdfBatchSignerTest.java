@@ -0,0 +1,168 @@
+package com.exim.signer;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * PdfBatchSigner over two software-keystore tokens: results stay in input
+ * order whatever order the documents finish in, and a broken document only
+ * fails its own slot.
+ */
+class PdfBatchSignerTest {
+
+    private static final int DOCUMENTS = 12;
+    private static final Set<Integer> BROKEN = new HashSet<>(Arrays.asList(3, 8));
+
+    @TempDir
+    File dir;
+
+    private TokenPool pool;
+    private PdfBatchSigner batchSigner;
+
+    @AfterEach
+    void stop() {
+        if (batchSigner != null) {
+            batchSigner.shutdown();
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private void start(int threads) throws Exception {
+        List<TokenPool.Token> tokens = new ArrayList<>();
+        for (String name : new String[] { "batch-a", "batch-b" }) {
+            DscService dsc = new DscService(name);
+            dsc.loginKeyStore(TestKeys.PASSWORD, TestKeys.pkcs12(dir, name), "PKCS12", null);
+            PdfSignerService signer = new PdfSignerService();
+            signer.initialize(dsc);
+            tokens.add(new TokenPool.Token(name, dsc, new SigningWorker(dsc), signer));
+        }
+        pool = new TokenPool(tokens, TokenPool.DEFAULT_COOLDOWN_MILLIS);
+        pool.start();
+        batchSigner = new PdfBatchSigner(pool, threads);
+    }
+
+    @Test
+    void resultsFollowInputOrderWithPerDocumentErrors() throws Exception {
+        start(4);
+        List<PdfBatchSigner.Document> documents = new ArrayList<>();
+        ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[DOCUMENTS];
+        for (int i = 0; i < DOCUMENTS; i++) {
+            byte[] input = BROKEN.contains(i) ? "not a pdf".getBytes() : pdf(i);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            outputs[i] = output;
+            // Earlier documents finish later, so completion order is reversed
+            long delayMillis = (DOCUMENTS - i) * 15L;
+            documents.add((signer, tokenStep) -> {
+                Thread.sleep(delayMillis);
+                signer.signPdf(new ByteArrayInputStream(input), output, "Batch", "India", null, tokenStep);
+            });
+        }
+
+        PdfBatchSigner.Result result = batchSigner.signAll(documents);
+
+        assertEquals(DOCUMENTS - BROKEN.size(), result.getSignedCount());
+        assertEquals(BROKEN.size(), result.getFailedCount());
+        for (int i = 0; i < DOCUMENTS; i++) {
+            if (BROKEN.contains(i)) {
+                assertFalse(result.isSigned(i), "document " + i);
+                assertNotNull(result.getError(i), "document " + i);
+            } else {
+                assertTrue(result.isSigned(i), "document " + i + ": " + result.getError(i));
+                assertNull(result.getError(i));
+                assertSignedCopyOf(i, outputs[i].toByteArray());
+            }
+        }
+    }
+
+    @Test
+    void signFilesWritesEachOutputFromItsInput() throws Exception {
+        start(3);
+        List<File> inputs = new ArrayList<>();
+        List<File> outputs = new ArrayList<>();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            File input = new File(dir, "in-" + i + ".pdf");
+            Files.write(input.toPath(), BROKEN.contains(i) ? new byte[] { '%', 'P', 'D', 'F' } : pdf(i));
+            inputs.add(input);
+            outputs.add(new File(dir, "out-" + i + ".pdf"));
+        }
+
+        PdfBatchSigner.Result result = batchSigner.signFiles(inputs, outputs, "Batch", "India");
+
+        for (int i = 0; i < DOCUMENTS; i++) {
+            assertEquals(!BROKEN.contains(i), result.isSigned(i), "document " + i);
+            if (result.isSigned(i)) {
+                assertSignedCopyOf(i, Files.readAllBytes(outputs.get(i).toPath()));
+            }
+        }
+    }
+
+    @Test
+    void signFilesRejectsMismatchedLists() throws Exception {
+        start(1);
+        List<File> one = List.of(new File(dir, "a.pdf"));
+        assertThrows(IllegalArgumentException.class, () -> batchSigner.signFiles(one, List.of(), "r", "l"));
+    }
+
+    /**
+     * A one-page PDF whose title names its position in the batch.
+     */
+    private static byte[] pdf(int index) throws Exception {
+        try (PDDocument document = new PDDocument()) {
+            document.addPage(new PDPage());
+            document.getDocumentInformation().setTitle("document-" + index);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * The signed bytes are document index's PDF and its CMS verifies over the
+     * ByteRange.
+     */
+    private static void assertSignedCopyOf(int index, byte[] signedPdf) throws Exception {
+        try (PDDocument document = PDDocument.load(signedPdf)) {
+            assertEquals("document-" + index, document.getDocumentInformation().getTitle());
+            List<PDSignature> signatures = document.getSignatureDictionaries();
+            assertEquals(1, signatures.size(), "document " + index);
+
+            PDSignature signature = signatures.get(0);
+            CMSSignedData cms = new CMSSignedData(new CMSProcessableByteArray(signature.getSignedContent(signedPdf)),
+                    signature.getContents(signedPdf));
+            SignerInformation signer = cms.getSignerInfos().getSigners().iterator().next();
+            @SuppressWarnings("unchecked")
+            X509CertificateHolder certificate = (X509CertificateHolder) cms.getCertificates()
+                    .getMatches(signer.getSID()).iterator().next();
+            assertTrue(signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate)),
+                    "document " + index);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.exim.signer;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * PdfOptimizer on generated documents: oversized page images are
+ * downsampled to JPEG in parallel, images already at the target resolution
+ * keep their lossless encoding unless asked otherwise.
+ */
+class PdfOptimizerTest {
+
+    private static final int SCANS = 6;
+    // 100 pt at 150 dpi
+    private static final int TARGET_PIXELS = 208;
+
+    private final List<PdfOptimizer> optimizers = new ArrayList<>();
+
+    @AfterEach
+    void stop() {
+        optimizers.forEach(PdfOptimizer::shutdown);
+    }
+
+    private PdfOptimizer optimizer(boolean reencodeLossless, int threads) {
+        PdfOptimizer optimizer = new PdfOptimizer(150, 0.75f, reencodeLossless, threads);
+        optimizers.add(optimizer);
+        return optimizer;
+    }
+
+    @Test
+    void downsamplesOversizedImagesAndKeepsLosslessOnes() throws Exception {
+        byte[] optimized = optimize(optimizer(false, 4));
+
+        try (PDDocument document = PDDocument.load(optimized)) {
+            for (int i = 0; i < SCANS; i++) {
+                COSStream scan = imageOf(document, i);
+                assertEquals(COSName.DCT_DECODE, scan.getDictionaryObject(COSName.FILTER), "page " + i);
+                assertEquals(TARGET_PIXELS, scan.getInt(COSName.WIDTH), "page " + i);
+            }
+            COSStream smallImage = imageOf(document, SCANS);
+            assertEquals(COSName.FLATE_DECODE, smallImage.getDictionaryObject(COSName.FILTER));
+            assertEquals(100, smallImage.getInt(COSName.WIDTH));
+        }
+    }
+
+    @Test
+    void reencodesLosslessImagesOnlyWhenAsked() throws Exception {
+        byte[] optimized = optimize(optimizer(true, 4));
+
+        try (PDDocument document = PDDocument.load(optimized)) {
+            COSStream smallImage = imageOf(document, SCANS);
+            assertEquals(COSName.DCT_DECODE, smallImage.getDictionaryObject(COSName.FILTER));
+            assertEquals(100, smallImage.getInt(COSName.WIDTH));
+        }
+    }
+
+    @Test
+    void parallelResultMatchesSingleThread() throws Exception {
+        byte[] serial = optimize(optimizer(false, 1));
+        byte[] parallel = optimize(optimizer(false, 4));
+
+        try (PDDocument one = PDDocument.load(serial); PDDocument many = PDDocument.load(parallel)) {
+            for (int i = 0; i <= SCANS; i++) {
+                assertArrayEquals(rawBytes(imageOf(one, i)), rawBytes(imageOf(many, i)), "page " + i);
+            }
+        }
+    }
+
+    @Test
+    void reportsRecompressedImagesAndDuplicates() throws Exception {
+        byte[] source;
+        try (PDDocument generated = generated()) {
+            // The last scan again on an extra page, as a separate stream
+            addImagePage(generated, scan(SCANS - 1), new PDRectangle(100, 100));
+            source = save(generated);
+        }
+        try (PDDocument document = PDDocument.load(source)) {
+            SpillableBuffer output = new SpillableBuffer(Integer.MAX_VALUE, "optimizer-test-");
+            try {
+                PdfOptimizer.Report report = optimizer(false, 4).optimize(document, 0, output);
+                assertEquals(SCANS, report.getImagesRecompressed());
+                assertEquals(1, report.getDuplicatesRemoved());
+            } finally {
+                output.delete();
+            }
+        }
+    }
+
+    private static byte[] optimize(PdfOptimizer optimizer) throws Exception {
+        byte[] source;
+        try (PDDocument generated = generated()) {
+            source = save(generated);
+        }
+        // Parsed from bytes like an upload, so objects resolve lazily
+        try (PDDocument document = PDDocument.load(source)) {
+            SpillableBuffer output = new SpillableBuffer(Integer.MAX_VALUE, "optimizer-test-");
+            try {
+                optimizer.optimize(document, 0, output);
+                try (InputStream in = output.openInputStream()) {
+                    return in.readAllBytes();
+                }
+            } finally {
+                output.delete();
+            }
+        }
+    }
+
+    /**
+     * SCANS pages with an 800 px noisy image on a 100 pt page, then a full
+     * page with a 100 px image that needs no downsampling.
+     */
+    private static PDDocument generated() throws Exception {
+        PDDocument document = new PDDocument();
+        for (int i = 0; i < SCANS; i++) {
+            addImagePage(document, scan(i), new PDRectangle(100, 100));
+        }
+        addImagePage(document, noise(100, 100, 99), PDRectangle.LETTER);
+        return document;
+    }
+
+    private static byte[] save(PDDocument document) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        document.save(out);
+        return out.toByteArray();
+    }
+
+    private static BufferedImage scan(int index) {
+        return noise(800, 800, index);
+    }
+
+    private static void addImagePage(PDDocument document, BufferedImage image, PDRectangle box) throws Exception {
+        PDPage page = new PDPage(box);
+        document.addPage(page);
+        PDImageXObject xObject = LosslessFactory.createFromImage(document, image);
+        try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+            content.drawImage(xObject, 0, 0, Math.min(box.getWidth(), 100), Math.min(box.getHeight(), 100));
+        }
+    }
+
+    /**
+     * Smooth gradient with a little noise: compresses poorly with Flate, well
+     * with JPEG.
+     */
+    private static BufferedImage noise(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(16)) & 0xff;
+                int g = (y * 255 / height + random.nextInt(16)) & 0xff;
+                int b = ((x + y) * 127 / (width + height) + random.nextInt(16)) & 0xff;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static COSStream imageOf(PDDocument document, int pageIndex) throws Exception {
+        PDPage page = document.getPage(pageIndex);
+        COSName name = page.getResources().getXObjectNames().iterator().next();
+        return ((PDImageXObject) page.getResources().getXObject(name)).getCOSObject();
+    }
+
+    private static byte[] rawBytes(COSStream stream) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = stream.createRawInputStream()) {
+            in.transferTo(out);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,90 @@
+package com.exim.signer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH comparison of the old String round trip and SbCanonicalizer for
+ * preparing a flat file: strip, hash, and write payload + trailer.
+ *
+ * Run after mvn test-compile:
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt;
+ * com.exim.signer.SbCanonicalizerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SbCanonicalizerBenchmark {
+
+    @Param({ "16384", "2097152" })
+    public int size;
+
+    private byte[] bill;
+    private byte[] signature;
+    private SbEnvelope envelope;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(1);
+        bill = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bill[i] = (byte) (i % 80 == 79 ? '\n' : 'A' + random.nextInt(26));
+        }
+        bill[size - 2] = ' ';
+        bill[size - 1] = '\n';
+        signature = new byte[256];
+        envelope = new SbEnvelope(TestKeys.certificate("benchmark"));
+    }
+
+    @Benchmark
+    public byte[] legacyStringRoundTrip() throws Exception {
+        String dataPart = new String(bill, "ISO-8859-1").stripTrailing();
+        byte[] exactPayloadBytes = (dataPart + "\n").getBytes("ISO-8859-1");
+        byte[] strippedBytes = dataPart.getBytes("ISO-8859-1");
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(strippedBytes);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(exactPayloadBytes);
+        out.write(("<START-SIGNATURE>" + java.util.Base64.getEncoder().encodeToString(signature)
+                + "</START-SIGNATURE>\n<START-CERTIFICATE>" + envelope.getCertificateBase64()
+                + "</START-CERTIFICATE>\n<SIGNER-VERSION>" + SbEnvelope.SIGNER_VERSION + "</SIGNER-VERSION>")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        out.write(digest, 0, 1);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] canonicalizer() throws Exception {
+        int length = SbCanonicalizer.canonicalLength(bill);
+        byte[] digest = SbCanonicalizer.digest(bill, 0, length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) envelope.signedLength(length, signature.length) + 1);
+        envelope.write(out, bill, 0, length, signature);
+        out.write(digest, 0, 1);
+        return out.toByteArray();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(SbCanonicalizerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,154 @@
+package com.exim.signer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SbCanonicalizerTest {
+
+    @Test
+    void canonicalLengthMatchesStripTrailingForEveryByte() throws Exception {
+        for (int b = 0; b < 256; b++) {
+            byte[] data = { 'A', (byte) b, (byte) b };
+            assertEquals(legacyStripped(data).length, SbCanonicalizer.canonicalLength(data), "byte " + b);
+        }
+    }
+
+    @Test
+    void matchesTheLegacyStringPath() throws Exception {
+        Random random = new Random(11);
+        byte[] tailBytes = { ' ', '\t', '\n', '\r', 0x0B, 0x0C, 0x1C, 0x1F, (byte) 0xA0, 'x', 0 };
+        for (int round = 0; round < 20_000; round++) {
+            byte[] data = new byte[random.nextInt(64)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = random.nextBoolean() ? tailBytes[random.nextInt(tailBytes.length)]
+                        : (byte) random.nextInt(256);
+            }
+
+            byte[] stripped = legacyStripped(data);
+            int length = SbCanonicalizer.canonicalLength(data);
+            assertArrayEquals(stripped, Arrays.copyOf(data, length));
+            assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(stripped),
+                    SbCanonicalizer.digest(data, 0, length));
+        }
+    }
+
+    @Test
+    void envelopeWritesTheLegacyFileLayout() throws Exception {
+        byte[] data = "HREC\u00a0payload\nTREC \r\n\n".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] signature = { 1, 2, 3, 4, 5 };
+        SbEnvelope envelope = new SbEnvelope(TestKeys.certificate("canonical"));
+
+        // What the handlers built before: (stripTrailing + "\n") and the blocks
+        String dataPart = new String(data, StandardCharsets.ISO_8859_1).stripTrailing();
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        legacy.write((dataPart + "\n").getBytes(StandardCharsets.ISO_8859_1));
+        legacy.write(("<START-SIGNATURE>" + Base64.getEncoder().encodeToString(signature) + "</START-SIGNATURE>\n"
+                + "<START-CERTIFICATE>" + envelope.getCertificateBase64() + "</START-CERTIFICATE>\n"
+                + "<SIGNER-VERSION>" + SbEnvelope.SIGNER_VERSION + "</SIGNER-VERSION>")
+                .getBytes(StandardCharsets.ISO_8859_1));
+
+        int length = SbCanonicalizer.canonicalLength(data);
+        byte[] written = envelope.toByteArray(data, 0, length, signature);
+        assertArrayEquals(legacy.toByteArray(), written);
+        assertEquals(written.length, envelope.signedLength(length, signature.length));
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        envelope.write(streamed, new ByteArrayInputStream(data), length, signature);
+        assertArrayEquals(written, streamed.toByteArray());
+    }
+
+    /**
+     * The pre-canonicalizer code path.
+     */
+    static byte[] legacyStripped(byte[] data) {
+        return new String(data, StandardCharsets.ISO_8859_1).stripTrailing().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void streamDigestMatchesInMemoryDigest() throws Exception {
+        Random random = new Random(7);
+        for (String tail : new String[] { "", "\n", " \t\r\n", "\n\n\n   \u001c" }) {
+            for (int size : new int[] { 0, 1, 100, 64 * 1024 - 1, 64 * 1024, 200_000 }) {
+                byte[] body = new byte[size];
+                for (int i = 0; i < size; i++) {
+                    // Mostly text with whitespace runs inside the payload
+                    body[i] = (byte) (random.nextInt(8) == 0 ? ' ' : 'A' + random.nextInt(26));
+                }
+                byte[] data = concat(body, tail.getBytes(StandardCharsets.ISO_8859_1));
+
+                int length = SbCanonicalizer.canonicalLength(data);
+                SbCanonicalizer.StreamDigest streamed = SbCanonicalizer.digest(new TrickleInputStream(data, 4093));
+                assertEquals(length, streamed.getLength(), "size " + size);
+                assertArrayEquals(SbCanonicalizer.digest(data, 0, length), streamed.getDigest(), "size " + size);
+            }
+        }
+    }
+
+    @Test
+    void streamDigestHandlesWhitespaceAcrossReads() throws Exception {
+        // Whitespace run that spans several reads, then more payload
+        byte[] spaces = new byte[10_000];
+        Arrays.fill(spaces, (byte) ' ');
+        byte[] data = concat(concat("HREC".getBytes(StandardCharsets.ISO_8859_1), spaces),
+                "TREC\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+
+        SbCanonicalizer.StreamDigest streamed = SbCanonicalizer.digest(new TrickleInputStream(data, 7));
+        assertEquals(data.length - 4, streamed.getLength());
+        assertArrayEquals(SbCanonicalizer.digest(data, 0, data.length - 4), streamed.getDigest());
+    }
+
+    @Test
+    void streamDigestOfBlankPayloadIsEmpty() throws Exception {
+        byte[] blank = " \r\n\t\n".getBytes(StandardCharsets.ISO_8859_1);
+        SbCanonicalizer.StreamDigest streamed = SbCanonicalizer.digest(new ByteArrayInputStream(blank));
+        assertEquals(0, streamed.getLength());
+        assertArrayEquals(SbCanonicalizer.digest(blank, 0, 0), streamed.getDigest());
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+
+    /**
+     * Returns at most chunk bytes per read.
+     */
+    static final class TrickleInputStream extends InputStream {
+        private final byte[] data;
+        private final int chunk;
+        private int pos;
+
+        TrickleInputStream(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return pos < data.length ? data[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= data.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, chunk), data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.exim.signer;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceStream;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Visible signatures from the cached template, signed with a software key.
+ */
+class SignatureAppearanceTest {
+
+    @TempDir
+    File dir;
+
+    private final ExecutorService callers = Executors.newFixedThreadPool(4);
+    private SignatureAppearance appearance;
+    private PdfSignerService signer;
+
+    @BeforeEach
+    void login() throws Exception {
+        DscService dsc = new DscService("appearance");
+        dsc.loginKeyStore(TestKeys.PASSWORD, TestKeys.pkcs12(dir, "appearance"), "PKCS12", null);
+        appearance = new SignatureAppearance(null, SignatureAppearance.DEFAULT_WIDTH,
+                SignatureAppearance.DEFAULT_HEIGHT, new SignatureAppearance.Position(-1, 36, 36));
+        signer = new PdfSignerService();
+        signer.initialize(dsc);
+        signer.setAppearance(appearance);
+    }
+
+    @AfterEach
+    void stop() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    void visibleBlockFromTheCachedTemplate() throws Exception {
+        byte[] signed = sign(pdf(2));
+
+        try (PDDocument document = PDDocument.load(signed)) {
+            assertVerifies(document, signed);
+            PDPage last = document.getPage(1);
+            PDAnnotation widget = last.getAnnotations().get(0);
+            assertEquals(36, widget.getRectangle().getLowerLeftX(), 0.01);
+
+            PDAppearanceStream stream = widget.getAppearance().getNormalAppearance().getAppearanceStream();
+            PDXObject form = stream.getResources().getXObject(stream.getResources().getXObjectNames().iterator().next());
+            assertTrue(form instanceof PDFormXObject);
+            assertTrue(content((PDFormXObject) form).contains("(Digitally signed by) Tj"));
+            assertTrue(content((PDFormXObject) form).contains("(appearance) Tj"));
+            assertTrue(((PDFormXObject) form).getResources().getFontNames().iterator().hasNext());
+
+            // Renders without missing resources
+            new PDFRenderer(document).renderImage(1);
+        }
+    }
+
+    @Test
+    void concurrentSignaturesShareOneTemplate() throws Exception {
+        byte[] input = pdf(1);
+        List<Future<byte[]>> results = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            results.add(callers.submit(() -> sign(input)));
+        }
+        for (Future<byte[]> result : results) {
+            byte[] signed = result.get();
+            try (PDDocument document = PDDocument.load(signed)) {
+                assertVerifies(document, signed);
+                PDAppearanceStream stream = document.getPage(0).getAnnotations().get(0).getAppearance()
+                        .getNormalAppearance().getAppearanceStream();
+                PDFormXObject form = (PDFormXObject) stream.getResources()
+                        .getXObject(stream.getResources().getXObjectNames().iterator().next());
+                assertTrue(content(form).contains("(Digitally signed by) Tj"));
+            }
+        }
+        assertEquals(1, appearance.getTemplateCount());
+    }
+
+    private byte[] sign(byte[] input) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        signer.signPdf(new ByteArrayInputStream(input), out, "Test", "India");
+        return out.toByteArray();
+    }
+
+    private static byte[] pdf(int pages) throws Exception {
+        try (PDDocument document = new PDDocument()) {
+            for (int i = 0; i < pages; i++) {
+                document.addPage(new PDPage());
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    private static String content(PDFormXObject form) throws Exception {
+        try (InputStream in = form.getCOSObject().createInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static void assertVerifies(PDDocument document, byte[] signedPdf) throws Exception {
+        PDSignature signature = document.getSignatureDictionaries().get(0);
+        assertEquals(COSName.ADBE_PKCS7_DETACHED.getName(), signature.getSubFilter());
+        CMSSignedData cms = new CMSSignedData(new CMSProcessableByteArray(signature.getSignedContent(signedPdf)),
+                signature.getContents(signedPdf));
+        SignerInformation signerInfo = cms.getSignerInfos().getSigners().iterator().next();
+        @SuppressWarnings("unchecked")
+        X509CertificateHolder certificate = (X509CertificateHolder) cms.getCertificates()
+                .getMatches(signerInfo.getSID()).iterator().next();
+        assertTrue(signerInfo.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate)));
+    }
+}
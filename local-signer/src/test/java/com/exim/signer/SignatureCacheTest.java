@@ -0,0 +1,146 @@
+package com.exim.signer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SignatureCacheTest {
+
+    private static final byte[] DIGEST = new byte[32];
+    private static final byte[] SIGNATURE = { 1, 2, 3, 4 };
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void stop() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    void concurrentMissesShareOneSignerCall() throws Exception {
+        SignatureCache cache = new SignatureCache(16, 60);
+        String key = SignatureCache.key(DIGEST, "cert-a");
+        AtomicInteger signerCalls = new AtomicInteger();
+        CountDownLatch signing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<byte[]>> results = new ArrayList<>();
+        results.add(callers.submit(() -> cache.getOrSign(key, () -> {
+            signerCalls.incrementAndGet();
+            signing.countDown();
+            release.await();
+            return SIGNATURE.clone();
+        })));
+        assertTrue(signing.await(5, TimeUnit.SECONDS));
+
+        // These arrive while the first request is still on the token
+        int joiners = 7;
+        for (int i = 0; i < joiners; i++) {
+            results.add(callers.submit(() -> cache.getOrSign(key, () -> {
+                signerCalls.incrementAndGet();
+                return new byte[] { 9 };
+            })));
+        }
+        while (cache.getSharedInFlightCount() < joiners) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        for (Future<byte[]> result : results) {
+            assertArrayEquals(SIGNATURE, result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, signerCalls.get());
+        assertEquals(joiners, cache.getSharedInFlightCount());
+
+        // Later requests are plain hits
+        assertArrayEquals(SIGNATURE, cache.getOrSign(key, () -> {
+            throw new AssertionError("signer must not run on a hit");
+        }));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    void failureIsSharedAndNotCached() throws Exception {
+        SignatureCache cache = new SignatureCache(16, 60);
+        String key = SignatureCache.key(DIGEST, "cert-a");
+        CountDownLatch signing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<byte[]> first = callers.submit(() -> cache.getOrSign(key, () -> {
+            signing.countDown();
+            release.await();
+            throw new Exception("CKR_DEVICE_ERROR");
+        }));
+        assertTrue(signing.await(5, TimeUnit.SECONDS));
+        Future<byte[]> joiner = callers.submit(() -> cache.getOrSign(key, () -> SIGNATURE));
+        while (cache.getSharedInFlightCount() < 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        for (Future<byte[]> result : List.of(first, joiner)) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+            assertEquals("CKR_DEVICE_ERROR", e.getCause().getMessage());
+        }
+        assertEquals(0, cache.size());
+        assertArrayEquals(SIGNATURE, cache.getOrSign(key, () -> SIGNATURE));
+    }
+
+    @Test
+    void returnedSignaturesAreCopies() throws Exception {
+        SignatureCache cache = new SignatureCache(16, 60);
+        String key = SignatureCache.key(DIGEST, "cert-a");
+        byte[] signed = cache.getOrSign(key, SIGNATURE::clone);
+        signed[0] = 42;
+        assertArrayEquals(SIGNATURE, cache.getIfPresent(key));
+    }
+
+    @Test
+    void keysSeparateCertificates() {
+        assertNotEquals(SignatureCache.key(DIGEST, "cert-a"), SignatureCache.key(DIGEST, "cert-b"));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedBeyondMaxEntries() {
+        SignatureCache cache = new SignatureCache(2, 60);
+        cache.put("a", SIGNATURE);
+        cache.put("b", SIGNATURE);
+        cache.getIfPresent("a");
+        cache.put("c", SIGNATURE);
+
+        assertNull(cache.getIfPresent("b"));
+        assertArrayEquals(SIGNATURE, cache.getIfPresent("a"));
+        assertArrayEquals(SIGNATURE, cache.getIfPresent("c"));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    void disabledCacheAlwaysSigns() throws Exception {
+        SignatureCache cache = new SignatureCache(0, 60);
+        AtomicInteger signerCalls = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            cache.getOrSign("k", () -> {
+                signerCalls.incrementAndGet();
+                return SIGNATURE;
+            });
+        }
+        assertEquals(3, signerCalls.get());
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,186 @@
+package com.exim.signer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SigningWorkerTest {
+
+    private final List<SigningWorker> workers = new ArrayList<>();
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void stop() {
+        workers.forEach(SigningWorker::shutdown);
+        callers.shutdownNow();
+    }
+
+    private SigningWorker start(int queueCapacity, int sessions) {
+        return start(queueCapacity, sessions, 10_000);
+    }
+
+    private SigningWorker start(int queueCapacity, int sessions, long timeoutMillis) {
+        SigningWorker worker = new SigningWorker(new DscService("test"), queueCapacity,
+                SigningWorker.DEFAULT_MAX_BATCH_SIZE, timeoutMillis, sessions);
+        worker.start();
+        workers.add(worker);
+        return worker;
+    }
+
+    @Test
+    void queuedRequestsRunInOrderOnOneSession() throws Exception {
+        SigningWorker worker = start(16, 1);
+        CountDownLatch blocking = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<String> first = callers.submit(() -> worker.execute(dsc -> {
+            blocking.countDown();
+            release.await();
+            return "first";
+        }));
+        assertTrue(blocking.await(5, TimeUnit.SECONDS));
+
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        List<Future<Integer>> queued = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            int value = i;
+            queued.add(callers.submit(() -> worker.execute(dsc -> {
+                order.add(value);
+                return value;
+            })));
+            while (worker.getQueueDepth() < i + 1) {
+                Thread.sleep(1);
+            }
+        }
+        release.countDown();
+
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, queued.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(List.of(0, 1, 2, 3, 4), order);
+        assertEquals(6, worker.getCompletedCount());
+    }
+
+    @Test
+    void timedOutTaskSeesCancellationBetweenItems() throws Exception {
+        SigningWorker worker = start(8, 1, 200);
+        AtomicInteger items = new AtomicInteger();
+        CountDownLatch stopped = new CountDownLatch(1);
+
+        assertThrows(Exception.class, () -> worker.execute(dsc -> {
+            assertFalse(SigningWorker.isCurrentTaskCancelled());
+            for (int i = 0; i < 100; i++) {
+                if (SigningWorker.isCurrentTaskCancelled()) {
+                    stopped.countDown();
+                    return null;
+                }
+                Thread.sleep(20);
+                items.incrementAndGet();
+            }
+            return null;
+        }));
+
+        assertTrue(stopped.await(5, TimeUnit.SECONDS), "task ran to the end after its caller timed out");
+        assertTrue(items.get() < 100);
+        assertFalse(SigningWorker.isCurrentTaskCancelled());
+        // The worker is free again for the next caller
+        assertEquals("next", worker.execute(dsc -> "next"));
+    }
+
+    @Test
+    void burstSpreadsOverAllSessions() throws Exception {
+        int sessions = 4;
+        SigningWorker worker = start(64, sessions);
+
+        // Occupy every session, then queue a burst behind them
+        CountDownLatch busy = new CountDownLatch(sessions);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < sessions; i++) {
+            callers.submit(() -> worker.execute(dsc -> {
+                busy.countDown();
+                release.await();
+                return null;
+            }));
+        }
+        assertTrue(busy.await(5, TimeUnit.SECONDS));
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        List<Future<Object>> results = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            results.add(callers.submit(() -> worker.execute(dsc -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                threads.add(Thread.currentThread().getName());
+                Thread.sleep(50);
+                running.decrementAndGet();
+                return null;
+            })));
+        }
+        while (worker.getQueueDepth() < 16) {
+            Thread.sleep(1);
+        }
+
+        long started = System.nanoTime();
+        release.countDown();
+        for (Future<Object> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        // 16 tasks of 50 ms on 4 sessions: about 200 ms, not 800 ms on one
+        assertEquals(sessions, maxRunning.get());
+        assertEquals(sessions, threads.size());
+        assertTrue(elapsedMillis < 600, "burst took " + elapsedMillis + " ms");
+    }
+
+    @Test
+    void fullQueueIsRejectedWithRetryAfter() throws Exception {
+        SigningWorker worker = start(1, 1);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        callers.submit(() -> worker.execute(dsc -> {
+            running.countDown();
+            release.await();
+            return null;
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        callers.submit(() -> worker.execute(dsc -> null));
+        while (worker.getQueueDepth() < 1) {
+            Thread.sleep(1);
+        }
+
+        SigningWorker.QueueFullException e = assertThrows(SigningWorker.QueueFullException.class,
+                () -> worker.execute(dsc -> null));
+        assertTrue(e.getRetryAfterSeconds() >= 1);
+        assertEquals(1, worker.getRejectedCount());
+        release.countDown();
+    }
+
+    @Test
+    void taskExceptionsReachTheCaller() {
+        SigningWorker worker = start(8, 1);
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> worker.execute(dsc -> {
+            throw new IllegalStateException("token says no");
+        }));
+        assertEquals("token says no", e.getMessage());
+    }
+}
@@ -0,0 +1,67 @@
+package com.exim.signer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpillableBufferTest {
+
+    @Test
+    void staysInMemoryUpToTheThreshold() throws Exception {
+        SpillableBuffer buffer = new SpillableBuffer(10, "test-");
+        buffer.write(new byte[] { 1, 2, 3, 4, 5 });
+        buffer.write(new byte[] { 6, 7, 8, 9, 10 });
+        buffer.close();
+
+        assertFalse(buffer.isSpilled());
+        assertNull(buffer.getFile());
+        assertEquals(10, buffer.size());
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, buffer.toByteArray());
+        buffer.delete();
+    }
+
+    @Test
+    void spillsEverythingOnceTheThresholdIsCrossed() throws Exception {
+        SpillableBuffer buffer = new SpillableBuffer(10, "test-");
+        buffer.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        buffer.write(9);
+        buffer.write(new byte[] { 10, 11, 12 }, 0, 3);
+        buffer.close();
+
+        assertTrue(buffer.isSpilled());
+        File file = buffer.getFile();
+        assertEquals(12, file.length());
+        assertEquals(12, buffer.size());
+
+        byte[] expected = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 };
+        assertArrayEquals(expected, buffer.toByteArray());
+        try (InputStream in = buffer.openInputStream()) {
+            assertArrayEquals(expected, in.readAllBytes());
+        }
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        buffer.writeTo(copy);
+        assertArrayEquals(expected, copy.toByteArray());
+
+        buffer.delete();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    void rejectsWritesAfterClose() throws Exception {
+        SpillableBuffer buffer = new SpillableBuffer(10, "test-");
+        buffer.write(1);
+        buffer.close();
+        assertThrows(IOException.class, () -> buffer.write(2));
+        buffer.delete();
+    }
+}
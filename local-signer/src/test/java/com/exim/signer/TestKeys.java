@@ -0,0 +1,96 @@
+package com.exim.signer;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Software signing keys for tests: RSA key pairs with self-signed
+ * certificates, as key stores or PKCS#12 files.
+ */
+final class TestKeys {
+
+    static final String PASSWORD = "123456";
+    static final String ALIAS = "signer";
+
+    private static final Map<String, KeyPair> KEY_PAIRS = new ConcurrentHashMap<>();
+    private static final Map<String, X509Certificate> CERTIFICATES = new ConcurrentHashMap<>();
+
+    private TestKeys() {
+    }
+
+    /**
+     * One RSA 2048 key pair per name, generated once per test run.
+     */
+    static KeyPair keyPair(String name) {
+        return KEY_PAIRS.computeIfAbsent(name, n -> {
+            try {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(2048);
+                return generator.generateKeyPair();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Self-signed signing certificate with CN=name for keyPair(name).
+     */
+    static X509Certificate certificate(String name) {
+        return CERTIFICATES.computeIfAbsent(name, n -> {
+            try {
+                KeyPair keyPair = keyPair(n);
+                X500Name subject = new X500Name("CN=" + n + ",O=Exim Test,C=IN");
+                long now = System.currentTimeMillis();
+                JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject,
+                        BigInteger.valueOf(now), new Date(now - 86_400_000L), new Date(now + 365L * 86_400_000L),
+                        subject, keyPair.getPublic());
+                builder.addExtension(Extension.keyUsage, true,
+                        new KeyUsage(KeyUsage.digitalSignature | KeyUsage.nonRepudiation));
+                return new JcaX509CertificateConverter().getCertificate(
+                        builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * In-memory PKCS#12 key store holding keyPair(name) under ALIAS.
+     */
+    static KeyStore keyStore(String name) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry(ALIAS, keyPair(name).getPrivate(), PASSWORD.toCharArray(),
+                new Certificate[] { certificate(name) });
+        return keyStore;
+    }
+
+    /**
+     * keyStore(name) written to dir/name.p12 with PASSWORD.
+     */
+    static File pkcs12(File dir, String name) throws Exception {
+        File file = new File(dir, name + ".p12");
+        try (OutputStream out = new FileOutputStream(file)) {
+            keyStore(name).store(out, PASSWORD.toCharArray());
+        }
+        return file;
+    }
+}
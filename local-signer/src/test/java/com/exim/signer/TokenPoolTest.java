@@ -0,0 +1,215 @@
+package com.exim.signer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.security.ProviderException;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * TokenPool over software-keystore tokens, one key per token.
+ */
+class TokenPoolTest {
+
+    @TempDir
+    File dir;
+
+    private final List<TokenPool> pools = new ArrayList<>();
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void stop() {
+        pools.forEach(TokenPool::shutdown);
+        callers.shutdownNow();
+    }
+
+    private TokenPool.Token token(String name, boolean loggedIn) throws Exception {
+        DscService dsc = new DscService(name);
+        if (loggedIn) {
+            dsc.loginKeyStore(TestKeys.PASSWORD, TestKeys.pkcs12(dir, name), "PKCS12", null);
+        }
+        SigningWorker worker = new SigningWorker(dsc);
+        return new TokenPool.Token(name, dsc, worker, new PdfSignerService());
+    }
+
+    private TokenPool pool(long cooldownMillis, TokenPool.Token... tokens) {
+        TokenPool pool = new TokenPool(Arrays.asList(tokens), cooldownMillis);
+        pool.start();
+        pools.add(pool);
+        return pool;
+    }
+
+    private static void failWithTokenError(TokenPool.Token token) {
+        assertThrows(ProviderException.class, () -> token.execute(dsc -> {
+            throw new ProviderException("CKR_DEVICE_ERROR");
+        }));
+    }
+
+    @Test
+    void skipsTokensThatAreNotLoggedIn() throws Exception {
+        TokenPool.Token primary = token("pool-primary", false);
+        TokenPool.Token second = token("pool-b", true);
+        TokenPool pool = pool(30_000, primary, second);
+
+        for (int i = 0; i < 4; i++) {
+            assertSame(second, pool.select());
+        }
+    }
+
+    @Test
+    void fallsBackToThePrimaryWhenNothingIsLoggedIn() throws Exception {
+        TokenPool.Token primary = token("pool-primary", false);
+        TokenPool pool = pool(30_000, primary, token("pool-b", false));
+
+        assertSame(primary, pool.select());
+        Exception e = assertThrows(Exception.class, () -> pool.execute(dsc -> dsc.getEnvelope()));
+        assertTrue(e.getMessage().contains("DSC not initialized"), e.getMessage());
+    }
+
+    @Test
+    void routesToTheLeastLoadedToken() throws Exception {
+        TokenPool.Token a = token("pool-a", true);
+        TokenPool.Token b = token("pool-b", true);
+        TokenPool pool = pool(30_000, a, b);
+
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Object> busy = callers.submit(() -> a.execute(dsc -> {
+            running.countDown();
+            release.await();
+            return null;
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, a.getLoad());
+        for (int i = 0; i < 4; i++) {
+            assertSame(b, pool.select());
+        }
+        release.countDown();
+        busy.get(5, TimeUnit.SECONDS);
+        assertEquals(0, a.getLoad());
+    }
+
+    @Test
+    void concurrentRequestsUseEveryToken() throws Exception {
+        TokenPool pool = pool(30_000, token("pool-a", true), token("pool-b", true), token("pool-c", true));
+        CountDownLatch allRunning = new CountDownLatch(3);
+        Set<String> used = ConcurrentHashMap.newKeySet();
+
+        List<Future<Object>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(callers.submit(() -> pool.execute(dsc -> {
+                used.add(dsc.getTokenName());
+                allRunning.countDown();
+                // Every token holds its request until all three run at once
+                assertTrue(allRunning.await(5, TimeUnit.SECONDS));
+                return null;
+            })));
+        }
+        for (Future<Object> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(Set.of("pool-a", "pool-b", "pool-c"), used);
+    }
+
+    @Test
+    void signaturesVerifyWithTheSelectedTokensCertificate() throws Exception {
+        TokenPool pool = pool(30_000, token("pool-a", true), token("pool-b", true));
+        byte[] digest = SbCanonicalizer.digest(new byte[] { 'H', 'R', 'E', 'C' }, 0, 4);
+
+        for (int i = 0; i < 4; i++) {
+            TokenPool.Token token = pool.select();
+            byte[] signature = token.execute(dsc -> dsc.signSha256Digest(digest));
+
+            Signature verifier = Signature.getInstance("SHA1withRSA");
+            verifier.initVerify(token.getDscService().getCertificate());
+            verifier.update(digest);
+            assertTrue(verifier.verify(signature), token.getName());
+        }
+    }
+
+    @Test
+    void repeatedTokenFailuresStartACoolDown() throws Exception {
+        TokenPool.Token a = token("pool-a", true);
+        TokenPool.Token b = token("pool-b", true);
+        TokenPool pool = pool(400, a, b);
+
+        for (int i = 0; i < TokenPool.FAILURE_THRESHOLD - 1; i++) {
+            failWithTokenError(a);
+        }
+        assertTrue(pool.isHealthy(a));
+        failWithTokenError(a);
+        assertFalse(pool.isHealthy(a));
+        assertEquals(TokenPool.FAILURE_THRESHOLD, a.getFailureCount());
+
+        for (int i = 0; i < 4; i++) {
+            assertSame(b, pool.select());
+        }
+
+        // After the cool-down the token is tried again, and a success clears it
+        Thread.sleep(500);
+        assertTrue(pool.isHealthy(a));
+        a.execute(dsc -> null);
+        failWithTokenError(a);
+        assertTrue(pool.isHealthy(a));
+    }
+
+    @Test
+    void failureAfterTheCoolDownRestartsIt() throws Exception {
+        TokenPool.Token a = token("pool-a", true);
+        TokenPool pool = pool(400, a, token("pool-b", true));
+        for (int i = 0; i < TokenPool.FAILURE_THRESHOLD; i++) {
+            failWithTokenError(a);
+        }
+
+        Thread.sleep(500);
+        assertTrue(pool.isHealthy(a));
+        failWithTokenError(a);
+        assertFalse(pool.isHealthy(a));
+    }
+
+    @Test
+    void requestErrorsDoNotMakeATokenUnhealthy() throws Exception {
+        TokenPool.Token a = token("pool-a", true);
+        TokenPool pool = pool(30_000, a, token("pool-b", true));
+
+        for (int i = 0; i < TokenPool.FAILURE_THRESHOLD * 2; i++) {
+            assertThrows(Exception.class, () -> a.execute(dsc -> {
+                throw new Exception("No data provided for signing.");
+            }));
+        }
+        assertTrue(pool.isHealthy(a));
+        assertEquals("No data provided for signing.", a.getLastError());
+    }
+
+    @Test
+    void unhealthyTokenIsStillUsedWhenItIsTheOnlyOneLoggedIn() throws Exception {
+        TokenPool.Token primary = token("pool-primary", false);
+        TokenPool.Token only = token("pool-b", true);
+        TokenPool pool = pool(30_000, primary, only);
+        for (int i = 0; i < TokenPool.FAILURE_THRESHOLD; i++) {
+            failWithTokenError(only);
+        }
+
+        assertFalse(pool.isHealthy(only));
+        assertSame(only, pool.select());
+    }
+}
@@ -0,0 +1,137 @@
+package com.exim.signer;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * TokenSession against a software key store standing in for a token: a
+ * "logged out" token is a key store without the key entry, and logging in
+ * puts it back.
+ */
+class TokenSessionTest {
+
+    private static final String NAME = "session";
+
+    private final AtomicInteger logins = new AtomicInteger();
+
+    private TokenSession session(KeyStore keyStore, long probeIntervalMillis) {
+        return new TokenSession(keyStore, TestKeys.ALIAS, TestKeys.PASSWORD.toCharArray(), () -> {
+            logins.incrementAndGet();
+            restoreKey(keyStore);
+        }, probeIntervalMillis);
+    }
+
+    private static void restoreKey(KeyStore keyStore) throws Exception {
+        keyStore.setKeyEntry(TestKeys.ALIAS, TestKeys.keyPair(NAME).getPrivate(), TestKeys.PASSWORD.toCharArray(),
+                new Certificate[] { TestKeys.certificate(NAME) });
+    }
+
+    @Test
+    void keepsTheKeyHandleWithoutLoggingInAgain() throws Exception {
+        TokenSession session = session(TestKeys.keyStore(NAME), 60_000);
+
+        PrivateKey first = session.getPrivateKey();
+        for (int i = 0; i < 100; i++) {
+            assertSame(first, session.getPrivateKey());
+            session.withKey(key -> KeyStoreSigningBackend.sha1WithRsa(null, key, new byte[32], 0, 32, false));
+        }
+        assertEquals(0, logins.get());
+        assertEquals(0, session.getReloginCount());
+    }
+
+    @Test
+    void logsInLazilyWhenTheKeyIsNotVisible() throws Exception {
+        KeyStore keyStore = TestKeys.keyStore(NAME);
+        keyStore.deleteEntry(TestKeys.ALIAS);
+        TokenSession session = session(keyStore, 60_000);
+
+        assertNotNull(session.getPrivateKey());
+        assertEquals(1, logins.get());
+    }
+
+    @Test
+    void probeNoticesALostLogin() throws Exception {
+        KeyStore keyStore = TestKeys.keyStore(NAME);
+        TokenSession session = session(keyStore, 0);
+        session.getPrivateKey();
+
+        // Token logged out behind our back: private objects disappear
+        keyStore.deleteEntry(TestKeys.ALIAS);
+        session.verify();
+
+        assertEquals(1, logins.get());
+        assertTrue(keyStore.isKeyEntry(TestKeys.ALIAS));
+    }
+
+    @Test
+    void cachedHandleSkipsTheProbeWithinTheInterval() throws Exception {
+        KeyStore keyStore = TestKeys.keyStore(NAME);
+        TokenSession session = session(keyStore, 60_000);
+        PrivateKey key = session.getPrivateKey();
+
+        keyStore.deleteEntry(TestKeys.ALIAS);
+        assertSame(key, session.getPrivateKey());
+        assertEquals(0, logins.get());
+    }
+
+    @Test
+    void retriesOnceAfterALostSession() throws Exception {
+        TokenSession session = session(TestKeys.keyStore(NAME), 60_000);
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = session.withKey(key -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new Exception("sun.security.pkcs11.wrapper.PKCS11Exception: CKR_USER_NOT_LOGGED_IN");
+            }
+            return "signed";
+        });
+
+        assertEquals("signed", result);
+        assertEquals(2, attempts.get());
+        assertEquals(1, logins.get());
+    }
+
+    @Test
+    void genuineFailuresAreNotRetried() throws Exception {
+        TokenSession session = session(TestKeys.keyStore(NAME), 60_000);
+        AtomicInteger attempts = new AtomicInteger();
+
+        Exception e = assertThrows(Exception.class, () -> session.withKey(key -> {
+            attempts.incrementAndGet();
+            throw new Exception("CKR_DATA_LEN_RANGE");
+        }));
+
+        assertEquals("CKR_DATA_LEN_RANGE", e.getMessage());
+        assertEquals(1, attempts.get());
+        assertEquals(0, logins.get());
+    }
+
+    @Test
+    void failsWhenTheKeyStaysMissingAfterLogin() throws Exception {
+        KeyStore keyStore = TestKeys.keyStore(NAME);
+        keyStore.deleteEntry(TestKeys.ALIAS);
+        TokenSession session = new TokenSession(keyStore, TestKeys.ALIAS, TestKeys.PASSWORD.toCharArray(),
+                logins::incrementAndGet, 60_000);
+
+        assertThrows(Exception.class, session::getPrivateKey);
+        assertEquals(1, logins.get());
+    }
+
+    @Test
+    void recognisesLostSessionErrors() {
+        assertTrue(TokenSession.isSessionLost(new RuntimeException("wrapped",
+                new Exception("CKR_SESSION_HANDLE_INVALID"))));
+        assertFalse(TokenSession.isSessionLost(new Exception("CKR_PIN_INCORRECT")));
+    }
+}